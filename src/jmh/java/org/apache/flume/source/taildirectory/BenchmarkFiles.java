@@ -0,0 +1,109 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+import org.apache.flume.Event;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.channel.ReplicatingChannelSelector;
+
+/**
+ * Builds the files and collaborators used by the benchmarks
+ */
+final class BenchmarkFiles {
+
+	// Mixes single and multi byte characters in charsets that support them
+	private static final String TEXT = "INFO [main] request served in 12 ms, user=jörg path=/café ";
+
+	private BenchmarkFiles() {
+	}
+
+	/**
+	 * Returns a line of the given length in characters, without terminator
+	 */
+	static String line(int length) {
+		StringBuilder sb = new StringBuilder(length);
+		while (sb.length() < length)
+			sb.append(TEXT.charAt(sb.length() % TEXT.length()));
+		return sb.toString();
+	}
+
+	/**
+	 * Writes a temporary file of at least the given size with lines of the
+	 * given length encoded in the given charset
+	 */
+	static Path write(long size, int lineLength, String charset)
+			throws IOException {
+		Path file = Files.createTempFile("taildirectory-bench", ".log");
+		byte[] line = (line(lineLength) + "\n").getBytes(Charset.forName(charset));
+
+		try (OutputStream out = new BufferedOutputStream(
+				Files.newOutputStream(file), 1 << 16)) {
+			for (long written = 0; written < size; written += line.length)
+				out.write(line);
+		}
+		return file;
+	}
+
+	static void delete(Path path) throws IOException {
+		if (path == null || !Files.exists(path))
+			return;
+
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+					throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e)
+					throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Returns a channel processor that drops every event
+	 */
+	static ChannelProcessor noOpChannelProcessor() {
+		return new ChannelProcessor(new ReplicatingChannelSelector()) {
+			@Override
+			public void processEvent(Event event) {
+			}
+
+			@Override
+			public void processEventBatch(List<Event> events) {
+			}
+		};
+	}
+}
@@ -0,0 +1,120 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.flume.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extracting headers from event bodies at the source, and with a regex over
+ * the decoded body as an interceptor does
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineParserBenchmark {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte[] LOG_LINE = ("2026-10-17 12:00:00,123 INFO "
+			+ "[worker-3] level=INFO user=john status=200 took=12 "
+			+ "path=/api/v1/items/42 msg=\"request handled\"").getBytes(UTF8);
+	private static final byte[] JSON_LINE = ("{\"time\":\"2026-10-17T12:00:00Z\","
+			+ "\"level\":\"INFO\",\"logger\":\"api\",\"http\":{\"method\":\"GET\","
+			+ "\"status\":200,\"path\":\"/api/v1/items/42\"},\"took\":12,"
+			+ "\"msg\":\"request handled\"}").getBytes(UTF8);
+
+	private static final Pattern INTERCEPTOR = Pattern
+			.compile("^(\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2},\\d{3}) (\\w+)");
+
+	private LineParser timestamp;
+	private LineParser keyValue;
+	private LineParser json;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		timestamp = new TimestampParser();
+		timestamp.configure(new Context());
+
+		Context keyValueContext = new Context();
+		keyValueContext.put("keys", "level status");
+		keyValue = new KeyValueParser();
+		keyValue.configure(keyValueContext);
+
+		Context jsonContext = new Context();
+		jsonContext.put("fields", "level http.status");
+		json = new JsonFieldParser();
+		json.configure(jsonContext);
+	}
+
+	/**
+	 * The regex extractor interceptor, kept as a reference
+	 */
+	@Benchmark
+	public Map<String, String> regexInterceptor() {
+		Map<String, String> headers = new HashMap<String, String>();
+		Matcher matcher = INTERCEPTOR.matcher(new String(LOG_LINE, UTF8));
+		if (matcher.find()) {
+			headers.put("timestamp", matcher.group(1));
+			headers.put("level", matcher.group(2));
+		}
+		return headers;
+	}
+
+	@Benchmark
+	public Map<String, String> timestampParser() {
+		Map<String, String> headers = new HashMap<String, String>();
+		timestamp.parse(LOG_LINE, 0, LOG_LINE.length, UTF8, headers);
+		return headers;
+	}
+
+	@Benchmark
+	public Map<String, String> keyValueParser() {
+		Map<String, String> headers = new HashMap<String, String>();
+		keyValue.parse(LOG_LINE, 0, LOG_LINE.length, UTF8, headers);
+		return headers;
+	}
+
+	@Benchmark
+	public Map<String, String> jsonFieldParser() {
+		Map<String, String> headers = new HashMap<String, String>();
+		json.parse(JSON_LINE, 0, JSON_LINE.length, UTF8, headers);
+		return headers;
+	}
+}
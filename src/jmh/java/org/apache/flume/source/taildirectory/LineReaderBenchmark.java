@@ -0,0 +1,134 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading a whole file line by line, and finding its last line
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineReaderBenchmark {
+
+	@Param({ "80", "1024" })
+	public int lineLength;
+
+	@Param({ "16777216" })
+	public long fileSize;
+
+	@Param({ "UTF-8", "ISO-8859-1" })
+	public String charset;
+
+	private Path file;
+	private FileSet fileSet;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		file = BenchmarkFiles.write(fileSize, lineLength, charset);
+		fileSet = new FileSet(file, "begin");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		fileSet.close();
+		BenchmarkFiles.delete(file);
+	}
+
+	@Benchmark
+	public long fileSetReadLine(Blackhole bh) throws IOException {
+		fileSet.close();
+		fileSet.setSavedPosition(0);
+		fileSet.open();
+
+		long lines = 0;
+		while (fileSet.readLine()) {
+			bh.consume(fileSet.getLineLength());
+			lines++;
+		}
+		return lines;
+	}
+
+	/**
+	 * Reads every line into an event body, the only copy of its bytes
+	 */
+	@Benchmark
+	public long fileSetEventBody(Blackhole bh) throws IOException {
+		fileSet.close();
+		fileSet.setSavedPosition(0);
+		fileSet.open();
+
+		long lines = 0;
+		while (fileSet.readLine()) {
+			fileSet.appendLine();
+			bh.consume(fileSet.getAllLines());
+			fileSet.clear();
+			lines++;
+		}
+		return lines;
+	}
+
+	/**
+	 * The reader used before LineReader, kept as a reference
+	 */
+	@Benchmark
+	public long randomAccessFileReadLine(Blackhole bh) throws IOException {
+		long lines = 0;
+		try (RandomAccessFile reader = new RandomAccessFile(file.toFile(), "r")) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				bh.consume(line.getBytes());
+				lines++;
+			}
+		}
+		return lines;
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public long seekToLastLine() throws IOException {
+		try (LineReader reader = new LineReader(file.toFile(),
+				LineReader.DEFAULT_BUFFER_SIZE)) {
+			reader.seekToLastLine();
+			return reader.getPosition();
+		}
+	}
+}
@@ -0,0 +1,693 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.flume.Channel;
+import org.apache.flume.ChannelSelector;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.channel.MemoryChannel;
+import org.apache.flume.channel.ReplicatingChannelSelector;
+import org.apache.flume.conf.Configurables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the source against a temporary directory written by concurrent
+ * writers and reports its throughput, the latency from the write of a line
+ * to its put in the channel and the lines lost or delivered twice. Writers
+ * append at a given rate, rotate their files by renaming them or with
+ * copytruncate and may move to new files that replace the old ones.
+ * <p>
+ * Parameters are given as key=value, those starting with {@code source.}
+ * configure the source. The report is printed and, with {@code report},
+ * appended to a file so runs of different versions can be compared.
+ * {@code drainRate} and {@code drainStall} slow down or stop the sink so the
+ * channel fills up and the source retries, backs off and, with several
+ * {@code directories} read by several threads, pauses its readers. A writer
+ * that fails is logged and stops, its failures are reported as failed writes.
+ *
+ * <pre>
+ * mvn -Pbenchmarks package
+ * java -cp target/benchmarks.jar org.apache.flume.source.taildirectory.LoadGenerator \
+ *     files=16 rate=2000 duration=60 rotation=rename report=load.txt label=1.1.2
+ * java -cp target/benchmarks.jar org.apache.flume.source.taildirectory.LoadGenerator \
+ *     files=8 directories=8 channelCapacity=500 channelKeepAlive=0 drainRate=5000 \
+ *     drainStall=2 source.readerThreads=4 source.maxBufferedBytes=400000
+ * </pre>
+ */
+public class LoadGenerator {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(LoadGenerator.class);
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final String ROTATION_NONE = "none";
+	private static final String ROTATION_RENAME = "rename";
+	private static final String ROTATION_COPYTRUNCATE = "copytruncate";
+	// Writers append what is due every tick
+	private static final long TICK_MILLIS = 10;
+	private static final int MAX_LINES_PER_TICK = 10000;
+	private static final int MAX_TRANSACTION_CAPACITY = 10000;
+
+	private final Context params;
+	private final int files;
+	private final int directories;
+	private final int lineLength;
+	private final long rate;
+	private final long duration;
+	private final String rotation;
+	private final long rotateBytes;
+	private final int keepRotated;
+	private final long churn;
+	private final long settle;
+	private final int channelCapacity;
+	private final long channelKeepAlive;
+	private final int transactionCapacity;
+	private final long drainRate;
+	private final long drainStall;
+
+	private Path dir;
+	private boolean deleteDir;
+	private MemoryChannel channel;
+	private DirectoryTailSource source;
+	private Writer[] writers;
+	private final Deliveries deliveries = new Deliveries();
+	private volatile boolean draining = true;
+
+	public static void main(String[] args) throws Exception {
+		Context params = new Context();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals < 1)
+				throw new IllegalArgumentException("Expected key=value: " + arg);
+			params.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		new LoadGenerator(params).run();
+		System.exit(0);
+	}
+
+	public LoadGenerator(Context params) {
+		this.params = params;
+		this.files = params.getInteger("files", 4);
+		this.directories = params.getInteger("directories", 1);
+		this.lineLength = params.getInteger("lineLength", 200);
+		this.rate = params.getLong("rate", 1000L);
+		this.duration = params.getLong("duration", 30L);
+		this.rotation = params.getString("rotation", ROTATION_NONE);
+		this.rotateBytes = params.getLong("rotateBytes", 64L * 1024 * 1024);
+		this.keepRotated = params.getInteger("keepRotated", 3);
+		this.churn = params.getLong("churn", 0L);
+		this.settle = params.getLong("settle", 10L);
+		this.channelCapacity = params.getInteger("channelCapacity", 1000000);
+		this.transactionCapacity = Math.min(channelCapacity,
+				MAX_TRANSACTION_CAPACITY);
+		this.channelKeepAlive = params.getLong("channelKeepAlive", 3L);
+		this.drainRate = params.getLong("drainRate", 0L);
+		this.drainStall = params.getLong("drainStall", 0L);
+
+		if (files < 1 || lineLength < 40 || rate < 0 || duration < 1
+				|| keepRotated < 1 || directories < 1 || directories > files
+				|| channelCapacity < 1 || channelKeepAlive < 0 || drainRate < 0
+				|| drainStall < 0)
+			throw new IllegalArgumentException("files, duration, keepRotated and "
+					+ "channelCapacity must be greater than 0, directories between 1 "
+					+ "and files, lineLength at least 40 and rate, channelKeepAlive, "
+					+ "drainRate and drainStall not negative");
+		if (!ROTATION_NONE.equals(rotation) && !ROTATION_RENAME.equals(rotation)
+				&& !ROTATION_COPYTRUNCATE.equals(rotation))
+			throw new IllegalArgumentException("rotation must be none, rename "
+					+ "or copytruncate");
+	}
+
+	public void run() throws Exception {
+		String dirParam = params.getString("dir");
+		deleteDir = dirParam == null;
+		dir = deleteDir ? Files.createTempDirectory("taildirectory-load")
+				: Files.createDirectories(Paths.get(dirParam));
+
+		try {
+			startSource();
+
+			writers = new Writer[files];
+			for (int i = 0; i < files; i++)
+				writers[i] = new Writer(i);
+			long start = System.nanoTime();
+			Thread drainer = startDrainer(start);
+			for (Writer writer : writers)
+				writer.start();
+
+			Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+			for (Writer writer : writers)
+				writer.finish();
+			long written = 0, failedWrites = 0, failedLines = 0;
+			for (Writer writer : writers) {
+				writer.join();
+				written += writer.lines;
+				failedWrites += writer.failedWrites;
+				failedLines += writer.failedLines;
+			}
+			long writeEnd = System.nanoTime();
+
+			// Delivered once every line is in or nothing arrived for a while
+			long lastProgress = System.nanoTime();
+			long lastDelivered = -1;
+			while (deliveries.distinct() < written
+					&& System.nanoTime() - lastProgress < TimeUnit.SECONDS.toNanos(settle)) {
+				Thread.sleep(100);
+				long delivered = deliveries.distinct();
+				if (delivered != lastDelivered) {
+					lastDelivered = delivered;
+					lastProgress = System.nanoTime();
+				}
+			}
+			long end = deliveries.lastDelivery(start);
+
+			Map<String, String> counters = sourceCounters();
+			source.stop();
+			draining = false;
+			drainer.join();
+			channel.stop();
+
+			report(start, writeEnd, end, written, failedWrites, failedLines,
+					counters);
+		} finally {
+			if (writers != null)
+				for (Writer writer : writers)
+					writer.close();
+			if (deleteDir)
+				BenchmarkFiles.delete(dir);
+		}
+	}
+
+	private void startSource() throws IOException {
+		channel = new MemoryChannel();
+		Context channelContext = new Context();
+		channelContext.put("capacity", String.valueOf(channelCapacity));
+		channelContext.put("transactionCapacity",
+				String.valueOf(transactionCapacity));
+		channelContext.put("keep-alive", String.valueOf(channelKeepAlive));
+		Configurables.configure(channel, channelContext);
+		channel.start();
+
+		List<Channel> channels = new ArrayList<Channel>();
+		channels.add(channel);
+		ChannelSelector selector = new ReplicatingChannelSelector();
+		selector.setChannels(channels);
+
+		Context sourceContext = new Context();
+		StringBuilder dirs = new StringBuilder();
+		for (int i = 0; i < directories; i++) {
+			String nick = "load" + i;
+			dirs.append(i == 0 ? "" : " ").append(nick);
+			sourceContext.put("dirs." + nick + ".path", writerDir(i).toString());
+			sourceContext.put("dirs." + nick + ".includePatterns", "*.log");
+		}
+		sourceContext.put("dirs", dirs.toString());
+		// A batch is put in a single transaction
+		sourceContext.put("batchSize", String.valueOf(Math.min(1000,
+				transactionCapacity)));
+		sourceContext.put("batchTimeout", "100");
+		sourceContext.putAll(params.getSubProperties("source."));
+
+		source = new DirectoryTailSource();
+		source.setName("load");
+		source.setChannelProcessor(new RecordingChannelProcessor(selector));
+		source.configure(sourceContext);
+		source.start();
+	}
+
+	/**
+	 * Directory of the files of a writer, the writers are spread over the
+	 * subdirectories when there are several directories
+	 */
+	private Path writerDir(int writer) throws IOException {
+		if (directories == 1)
+			return dir;
+		return Files.createDirectories(dir.resolve("dir-" + writer % directories));
+	}
+
+	/**
+	 * Empties the channel as a sink would, as fast as it can unless a drain
+	 * rate is given, and takes nothing during the stall at the start of the
+	 * writes
+	 */
+	private Thread startDrainer(final long start) {
+		final TokenBucket bucket = drainRate > 0 ? new TokenBucket(drainRate)
+				: null;
+		Thread drainer = new Thread("load-drainer") {
+			@Override
+			public void run() {
+				try {
+					long stallEnd = start + TimeUnit.SECONDS.toNanos(drainStall);
+					while (draining && System.nanoTime() < stallEnd)
+						Thread.sleep(5);
+
+					while (draining) {
+						long delay = bucket == null ? 0 : bucket.delay();
+						if (delay > 0) {
+							Thread.sleep(Math.min(delay, 100));
+							continue;
+						}
+						Transaction transaction = channel.getTransaction();
+						transaction.begin();
+						int taken = 0;
+						while (taken < transactionCapacity && channel.take() != null)
+							taken++;
+						transaction.commit();
+						transaction.close();
+						if (bucket != null)
+							bucket.consume(taken);
+						if (taken == 0)
+							Thread.sleep(5);
+					}
+				} catch (InterruptedException e) {
+					// Stopped
+				}
+			}
+		};
+		drainer.setDaemon(true);
+		drainer.start();
+		return drainer;
+	}
+
+	private Map<String, String> sourceCounters() {
+		Map<String, String> counters = new LinkedHashMap<String, String>();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(
+					"org.apache.flume.source:type=SOURCE.DirectoryTailSource-load");
+			for (String attribute : new String[] { "CounterChannelRetry",
+					"ChannelBlockedTime", "CounterFileEvicted", "CounterReadYielded",
+					"CounterReadThrottled", "CounterReadPaused", "CounterLongLines",
+					"CounterEventLimited", "CounterWatchOverflow", "CommitLatencyP99" })
+				counters.put(attribute, String.valueOf(server.getAttribute(name,
+						attribute)));
+		} catch (Exception e) {
+			counters.put("error", e.toString());
+		}
+		return counters;
+	}
+
+	private void report(long start, long writeEnd, long end, long written,
+			long failedWrites, long failedLines, Map<String, String> counters)
+			throws IOException {
+		double seconds = Math.max(1, end - start) / 1e9;
+		long lost = written - deliveries.distinct();
+
+		Map<String, String> report = new LinkedHashMap<String, String>();
+		report.put("label", params.getString("label", "-"));
+		report.put("date", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ")
+				.format(new Date()));
+		report.put("java", System.getProperty("java.version"));
+		report.put("params", new TreeMap<String, String>(
+				params.getParameters()).toString());
+		report.put("write.seconds", format((writeEnd - start) / 1e9));
+		report.put("lines.written", String.valueOf(written));
+		report.put("writes.failed", String.valueOf(failedWrites));
+		report.put("lines.failed", String.valueOf(failedLines));
+		report.put("lines.delivered", String.valueOf(deliveries.distinct()));
+		report.put("lines.lost", String.valueOf(lost));
+		report.put("lines.duplicated", String.valueOf(deliveries.duplicates()));
+		report.put("lines.reordered", String.valueOf(deliveries.reordered()));
+		report.put("events.per.second", format(deliveries.events() / seconds));
+		report.put("bytes.per.second", format(deliveries.bytes() / seconds));
+		for (double percentile : new double[] { 50, 90, 99, 99.9 })
+			report.put("latency.ms.p" + format(percentile),
+					format(deliveries.latency.percentile(percentile) / 1000.0));
+		report.put("latency.ms.max", format(deliveries.latency.max() / 1000.0));
+		for (Map.Entry<String, String> counter : counters.entrySet())
+			report.put("source." + counter.getKey(), counter.getValue());
+
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, String> entry : report.entrySet())
+			text.append(entry.getKey()).append('=').append(entry.getValue())
+					.append('\n');
+		System.out.println(text);
+
+		String reportFile = params.getString("report");
+		if (reportFile != null) {
+			try (PrintStream out = new PrintStream(new FileOutputStream(
+					reportFile, true), true, "UTF-8")) {
+				out.println(text);
+			}
+		}
+	}
+
+	private static String format(double value) {
+		return value == Math.rint(value) ? String.valueOf((long) value)
+				: String.format(Locale.ROOT, "%.2f", value);
+	}
+
+	/**
+	 * Records every line put in the channel, after the put succeeded so the
+	 * retries of a full channel are not counted twice
+	 */
+	private class RecordingChannelProcessor extends ChannelProcessor {
+
+		RecordingChannelProcessor(ChannelSelector selector) {
+			super(selector);
+		}
+
+		@Override
+		public void processEventBatch(List<Event> events) {
+			super.processEventBatch(events);
+			deliveries.record(events, System.nanoTime());
+		}
+
+		@Override
+		public void processEvent(Event event) {
+			super.processEvent(event);
+			deliveries.record(Arrays.asList(event), System.nanoTime());
+		}
+	}
+
+	/**
+	 * Lines seen in the channel by writer, lines start with the writer, their
+	 * sequence number and the nano time they were written at
+	 */
+	private static class Deliveries {
+
+		private final List<BitSet> seen = new ArrayList<BitSet>();
+		private final List<long[]> lastSequence = new ArrayList<long[]>();
+		private final Histogram latency = new Histogram();
+		private long distinct, duplicates, reordered, events, bytes;
+		private long lastDelivery;
+
+		synchronized void record(List<Event> batch, long now) {
+			for (Event event : batch) {
+				byte[] body = event.getBody();
+				events++;
+				bytes += body.length;
+				lastDelivery = now;
+
+				int i = 0;
+				long writer = 0, sequence = 0, written = 0;
+				if (body.length == 0 || body[i++] != 'W')
+					continue;
+				while (i < body.length && body[i] != ' ')
+					writer = writer * 10 + body[i++] - '0';
+				i++;
+				while (i < body.length && body[i] != ' ')
+					sequence = sequence * 10 + body[i++] - '0';
+				i++;
+				while (i < body.length && body[i] != ' ')
+					written = written * 10 + body[i++] - '0';
+
+				while (seen.size() <= writer) {
+					seen.add(new BitSet());
+					lastSequence.add(new long[] { -1 });
+				}
+				BitSet writerSeen = seen.get((int) writer);
+				if (writerSeen.get((int) sequence)) {
+					duplicates++;
+					continue;
+				}
+				writerSeen.set((int) sequence);
+				distinct++;
+				long[] last = lastSequence.get((int) writer);
+				if (sequence < last[0])
+					reordered++;
+				last[0] = sequence;
+				latency.record((now - written) / 1000);
+			}
+		}
+
+		synchronized long distinct() {
+			return distinct;
+		}
+
+		synchronized long duplicates() {
+			return duplicates;
+		}
+
+		synchronized long reordered() {
+			return reordered;
+		}
+
+		synchronized long events() {
+			return events;
+		}
+
+		synchronized long bytes() {
+			return bytes;
+		}
+
+		synchronized long lastDelivery(long start) {
+			return Math.max(start, lastDelivery);
+		}
+	}
+
+	/**
+	 * Latencies in microseconds in buckets about 3% wide
+	 */
+	private static class Histogram {
+
+		private static final int SUB_BUCKETS = 32;
+		private final long[] counts = new long[2 * SUB_BUCKETS + 58 * SUB_BUCKETS];
+		private long count, max;
+
+		void record(long micros) {
+			if (micros < 0)
+				micros = 0;
+			counts[index(micros)]++;
+			count++;
+			max = Math.max(max, micros);
+		}
+
+		private static int index(long value) {
+			if (value < 2 * SUB_BUCKETS)
+				return (int) value;
+			int shift = 63 - Long.numberOfLeadingZeros(value) - 5;
+			return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS
+					+ (int) ((value >>> shift) - SUB_BUCKETS);
+		}
+
+		private static long upperBound(int index) {
+			if (index < 2 * SUB_BUCKETS)
+				return index;
+			int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+			long sub = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+			return ((sub + 1) << shift) - 1;
+		}
+
+		long percentile(double percentile) {
+			if (count == 0)
+				return 0;
+			long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(upperBound(i), max);
+			}
+			return max;
+		}
+
+		long max() {
+			return max;
+		}
+	}
+
+	/**
+	 * Appends numbered lines to its file at the configured rate, rotating it
+	 * and moving to new files as configured
+	 */
+	private class Writer extends Thread {
+
+		private final int id;
+		private final Path writerDir;
+		private final byte[] padding;
+		private volatile boolean finished;
+		private OutputStream out;
+		private Path file;
+		private int generation;
+		private long fileBytes;
+		// Lines written to the files, the ones generated after a failure are
+		// failed lines
+		private long lines;
+		private long failedWrites;
+		private long failedLines;
+
+		Writer(int id) throws IOException {
+			super("load-writer-" + id);
+			this.id = id;
+			this.writerDir = writerDir(id);
+			this.padding = new byte[lineLength];
+			Arrays.fill(padding, (byte) 'x');
+			open();
+		}
+
+		private void open() throws IOException {
+			file = writerDir.resolve("app-" + id + "-" + generation + ".log");
+			out = Files.newOutputStream(file, StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND);
+			fileBytes = Files.size(file);
+		}
+
+		void finish() {
+			finished = true;
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			long lastChurn = start;
+			byte[] buffer = new byte[64 * 1024];
+			long sequence = 0;
+			try {
+				while (!finished) {
+					long now = System.nanoTime();
+					long due = rate == 0 ? MAX_LINES_PER_TICK : Math.min(
+							MAX_LINES_PER_TICK, (now - start) * rate / 1000000000L - lines);
+
+					int length = 0;
+					for (long i = 0; i < due; i++) {
+						if (length + lineLength > buffer.length) {
+							write(buffer, length);
+							lines = sequence;
+							length = 0;
+						}
+						length = line(buffer, length, sequence++, System.nanoTime());
+					}
+					write(buffer, length);
+					lines = sequence;
+
+					if (!ROTATION_NONE.equals(rotation) && fileBytes >= rotateBytes)
+						rotate();
+					if (churn > 0 && now - lastChurn >= TimeUnit.SECONDS.toNanos(churn)) {
+						replace();
+						lastChurn = now;
+					}
+					if (rate > 0)
+						Thread.sleep(TICK_MILLIS);
+				}
+			} catch (IOException | InterruptedException e) {
+				failedWrites++;
+				failedLines += sequence - lines;
+				LOGGER.error("Writer " + id + " failed on " + file + ", stopping it "
+						+ "after " + lines + " lines", e);
+			}
+			close();
+		}
+
+		/**
+		 * Writes a line of the configured length, returns the end of the buffer
+		 */
+		private int line(byte[] buffer, int offset, long sequence, long nanos) {
+			byte[] prefix = ("W" + id + " " + sequence + " " + nanos + " ")
+					.getBytes(ASCII);
+			System.arraycopy(prefix, 0, buffer, offset, prefix.length);
+			int rest = lineLength - 1 - prefix.length;
+			System.arraycopy(padding, 0, buffer, offset + prefix.length, rest);
+			buffer[offset + lineLength - 1] = '\n';
+			return offset + lineLength;
+		}
+
+		private void write(byte[] buffer, int length) throws IOException {
+			if (length == 0)
+				return;
+			out.write(buffer, 0, length);
+			out.flush();
+			fileBytes += length;
+		}
+
+		private void rotate() throws IOException {
+			Path oldest = rotated(keepRotated);
+			Files.deleteIfExists(oldest);
+			for (int i = keepRotated - 1; i >= 1; i--) {
+				if (Files.exists(rotated(i)))
+					Files.move(rotated(i), rotated(i + 1));
+			}
+
+			if (ROTATION_RENAME.equals(rotation)) {
+				out.close();
+				Files.move(file, rotated(1));
+				open();
+			} else {
+				Files.copy(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+				try (FileChannel truncated = FileChannel.open(file,
+						StandardOpenOption.WRITE)) {
+					truncated.truncate(0);
+				}
+				fileBytes = 0;
+			}
+		}
+
+		private Path rotated(int index) {
+			return file.resolveSibling(file.getFileName() + "." + index);
+		}
+
+		/**
+		 * Moves to a new file and deletes the files older than the rotated
+		 * ones kept, as applications starting new files do
+		 */
+		private void replace() throws IOException {
+			out.close();
+			generation++;
+			open();
+			int old = generation - keepRotated - 1;
+			if (old >= 0) {
+				Path oldFile = writerDir.resolve("app-" + id + "-" + old + ".log");
+				Files.deleteIfExists(oldFile);
+				for (int i = 1; i <= keepRotated; i++)
+					Files.deleteIfExists(oldFile.resolveSibling(oldFile.getFileName()
+							+ "." + i));
+			}
+		}
+
+		void close() {
+			try {
+				if (out != null)
+					out.close();
+			} catch (IOException e) {
+				failedWrites++;
+				LOGGER.error("Unable to close " + file, e);
+			}
+		}
+	}
+}
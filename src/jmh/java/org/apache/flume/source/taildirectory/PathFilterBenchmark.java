@@ -0,0 +1,103 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Deciding whether a file of a watched directory is tailed
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathFilterBenchmark {
+
+	private static final String PATTERN = ".*/app-[0-9]+\\.log";
+
+	@Param({ "16", "100000" })
+	public int distinctPaths;
+
+	private Path[] paths;
+	private PathFilter cached;
+	private PathFilter uncached;
+	private PathFilter globs;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		paths = new Path[distinctPaths];
+		for (int i = 0; i < distinctPaths; i++)
+			paths[i] = Paths.get("/var/log/app", "app-" + i
+					+ (i % 3 == 0 ? ".log.gz" : ".log"));
+
+		cached = new PathFilter(PATTERN, null, null,
+				PathFilter.DEFAULT_CACHE_SIZE);
+		uncached = new PathFilter(PATTERN, null, null, 0);
+		globs = new PathFilter(null, "app-*.log regex:access-[0-9]+\\.txt",
+				"*.gz", 0);
+	}
+
+	private Path nextPath() {
+		Path path = paths[next];
+		next = (next + 1) % paths.length;
+		return path;
+	}
+
+	/**
+	 * The matching used before PathFilter, kept as a reference
+	 */
+	@Benchmark
+	public boolean patternMatches() {
+		return Pattern.matches(PATTERN, nextPath().toString());
+	}
+
+	@Benchmark
+	public boolean pathFilterCached() {
+		return cached.accept(nextPath());
+	}
+
+	@Benchmark
+	public boolean pathFilterUncached() {
+		return uncached.accept(nextPath());
+	}
+
+	@Benchmark
+	public boolean pathFilterGlobs() {
+		return globs.accept(nextPath());
+	}
+}
@@ -0,0 +1,129 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.flume.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building events from read lines and handing them to a channel processor
+ * that drops them, so only the work done by the source is measured
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendEventBenchmark {
+
+	@Param({ "80", "1024" })
+	public int lineLength;
+
+	@Param({ "4194304" })
+	public long fileSize;
+
+	@Param({ "UTF-8" })
+	public String charset;
+
+	// Transcoded bodies when it differs from the charset of the file
+	@Param({ "UTF-8", "ISO-8859-1" })
+	public String outputCharset;
+
+	@Param({ "false", "true" })
+	public boolean headers;
+
+	private Path dir;
+	private DirectoryTailSource source;
+	private WatchDir watchDir;
+	private FileSet fileSet;
+	private byte[] line;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("taildirectory-bench");
+		Path file = BenchmarkFiles.write(fileSize, lineLength, charset);
+		Path log = Files.move(file, dir.resolve("bench.log"));
+
+		Context context = new Context();
+		context.put("dirs", "bench");
+		context.put("dirs.bench.path", dir.toString());
+		context.put("fileHeader", String.valueOf(headers));
+		context.put("basenameHeader", String.valueOf(headers));
+		context.put("offsetHeader", String.valueOf(headers));
+		context.put("inputCharset", charset);
+		context.put("outputCharset", outputCharset);
+
+		source = new DirectoryTailSource();
+		source.setName("bench");
+		source.setChannelProcessor(BenchmarkFiles.noOpChannelProcessor());
+		source.configure(context);
+		source.start();
+
+		watchDir = new WatchDir(new WatchDirConfig(dir.toString(), ""),
+				source, context);
+		fileSet = new FileSet(log, "begin");
+		line = BenchmarkFiles.line(lineLength).getBytes(Charset.forName(charset));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		watchDir.stop();
+		source.stop();
+		fileSet.close();
+		BenchmarkFiles.delete(dir);
+	}
+
+	@Benchmark
+	public void sendEvent() {
+		fileSet.appendLine(line);
+		watchDir.sendEvent(fileSet);
+	}
+
+	/**
+	 * Reads the whole file and sends every line
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void readLines() throws IOException {
+		fileSet.close();
+		fileSet.setSavedPosition(0);
+		fileSet.open();
+		watchDir.readLines(fileSet);
+	}
+}
@@ -0,0 +1,325 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Splits the bytes of a source into lines through a reusable buffer. Lines
+ * are terminated by '\n', a '\r' right before it is dropped. An incomplete
+ * last line is kept until its terminator is read, so a line being appended is
+ * never split in two events.
+ * <p>
+ * Nothing is allocated per line: a line is returned as a range of the read
+ * buffer, or of the buffer of a line spanning more than one fill, that is
+ * only valid until the next call to {@link #readLine()}.
+ * <p>
+ * Lines can be limited to a number of bytes, so a file without line feeds
+ * does not have to be held in memory: the bytes over the limit are dropped
+ * up to the end of the line, returned as further lines or the whole line is
+ * dropped, see {@link LongLinePolicy}.
+ * <p>
+ * Subclasses provide the bytes through {@link #read(ByteBuffer, long)}, see
+ * {@link LineReader} for plain files and {@link CompressedLineReader} for
+ * compressed ones.
+ */
+public abstract class AbstractLineReader implements Closeable {
+
+	public static final int DEFAULT_MAX_LINE_BYTES = 1024 * 1024;
+
+	/**
+	 * What is done with a line longer than the limit
+	 */
+	public enum LongLinePolicy {
+		// The line is cut at the limit, the rest is dropped
+		TRUNCATE,
+		// The line is returned in parts as long as the limit
+		SPLIT,
+		// The line is dropped
+		SKIP
+	}
+
+	protected static final byte LF = '\n';
+	private static final byte CR = '\r';
+	private static final int PENDING_SIZE = 256;
+	// Larger pending buffers are dropped once their line is returned
+	private static final int MAX_KEPT_PENDING_SIZE = 64 * 1024;
+
+	private final ByteBuffer buffer;
+	private final byte[] bytes;
+
+	// Bytes of a line that spans more than one buffer fill
+	private byte[] pending;
+	private int pendingLength;
+
+	// Max bytes of a line, 0 if unlimited
+	private int maxLineBytes;
+	private LongLinePolicy longLinePolicy = LongLinePolicy.TRUNCATE;
+	// The rest of a long line is being dropped
+	private boolean discarding;
+	// A long line is being returned in parts
+	private boolean splitting;
+	// Lines over the limit since the last call to drainLongLines()
+	private int longLines;
+
+	// Last line returned
+	private byte[] lineArray;
+	private int lineOffset;
+	private int lineLength;
+
+	// Offset of the first byte after the last line returned
+	private long position;
+	// Offset of the next byte to read into the buffer
+	private long readPosition;
+
+	protected AbstractLineReader(int bufferSize) {
+		this.buffer = ByteBuffer.allocate(bufferSize);
+		this.bytes = buffer.array();
+		this.pending = new byte[PENDING_SIZE];
+		this.buffer.flip();
+	}
+
+	/**
+	 * Moves to the next complete line, returns false if there is no complete
+	 * line available yet. The line is then available through
+	 * {@link #getLineArray()}, {@link #getLineOffset()} and
+	 * {@link #getLineLength()} without its terminator.
+	 */
+	public boolean readLine() throws IOException {
+
+		if (pendingLength == 0 && pending.length > MAX_KEPT_PENDING_SIZE)
+			pending = new byte[PENDING_SIZE];
+
+		lines: for (;;) {
+			int start = buffer.position();
+			int limit = buffer.limit();
+			int max = maxLineBytes > 0 ? maxLineBytes : Integer.MAX_VALUE;
+
+			for (int i = start; i < limit; i++) {
+				if (bytes[i] == LF) {
+					int length = i - start;
+
+					if (!discarding && pendingLength + length > max) {
+						if (longLinePolicy == LongLinePolicy.SPLIT) {
+							returnPart(start, max);
+							return true;
+						}
+						discard(start, max);
+					}
+
+					buffer.position(i + 1);
+					position = readPosition - buffer.remaining();
+					splitting = false;
+
+					if (discarding) {
+						discarding = false;
+						if (longLinePolicy == LongLinePolicy.SKIP)
+							continue lines;
+						setLine(pending, 0, pendingLength);
+					} else if (pendingLength == 0) {
+						setLine(bytes, start, length);
+					} else {
+						append(start, length);
+						setLine(pending, 0, pendingLength);
+					}
+					pendingLength = 0;
+					return true;
+				}
+			}
+
+			int length = limit - start;
+			if (!discarding && pendingLength + length > max) {
+				if (longLinePolicy == LongLinePolicy.SPLIT) {
+					returnPart(start, max);
+					return true;
+				}
+				discard(start, max);
+			} else if (!discarding) {
+				append(start, length);
+			}
+			buffer.position(limit);
+
+			if (!fill()) {
+				// Nothing will complete the last line of a finished source
+				if (isEndOfInput() && (pendingLength > 0 || discarding)) {
+					boolean skipped = discarding
+							&& longLinePolicy == LongLinePolicy.SKIP;
+					discarding = false;
+					splitting = false;
+					position = readPosition;
+					if (skipped)
+						return false;
+					setLine(pending, 0, pendingLength);
+					pendingLength = 0;
+					return true;
+				}
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Returns the first part of a long line, the buffered bytes followed by
+	 * the bytes from the given offset up to the limit
+	 */
+	private void returnPart(int start, int max) {
+		if (!splitting)
+			longLines++;
+		splitting = true;
+
+		int length = max - pendingLength;
+		if (pendingLength == 0) {
+			lineArray = bytes;
+			lineOffset = start;
+		} else {
+			append(start, length);
+			lineArray = pending;
+			lineOffset = 0;
+			pendingLength = 0;
+		}
+		// A carriage return inside a line is part of it
+		lineLength = max;
+		buffer.position(start + length);
+		position = readPosition - buffer.remaining();
+	}
+
+	/**
+	 * Keeps the bytes of a long line up to the limit if it is truncated and
+	 * drops the rest of it up to its terminator
+	 */
+	private void discard(int start, int max) {
+		longLines++;
+		if (longLinePolicy == LongLinePolicy.TRUNCATE)
+			append(start, max - pendingLength);
+		else
+			pendingLength = 0;
+		discarding = true;
+	}
+
+	private void setLine(byte[] array, int offset, int length) {
+		if (length > 0 && array[offset + length - 1] == CR)
+			length--;
+		lineArray = array;
+		lineOffset = offset;
+		lineLength = length;
+	}
+
+	/**
+	 * Array holding the last line returned, it is overwritten by the next read
+	 */
+	public byte[] getLineArray() {
+		return lineArray;
+	}
+
+	public int getLineOffset() {
+		return lineOffset;
+	}
+
+	public int getLineLength() {
+		return lineLength;
+	}
+
+	private void append(int offset, int length) {
+		if (pendingLength + length > pending.length)
+			pending = Arrays.copyOf(pending,
+					Math.max(pending.length * 2, pendingLength + length));
+
+		System.arraycopy(bytes, offset, pending, pendingLength, length);
+		pendingLength += length;
+	}
+
+	private boolean fill() throws IOException {
+		buffer.clear();
+		int read = read(buffer, readPosition);
+		buffer.flip();
+
+		if (read <= 0)
+			return false;
+
+		readPosition += read;
+		return true;
+	}
+
+	/**
+	 * Limits lines to the given number of bytes, 0 for no limit. Longer lines
+	 * are handled by the given policy.
+	 */
+	public void setMaxLineBytes(int maxLineBytes, LongLinePolicy policy) {
+		this.maxLineBytes = maxLineBytes;
+		this.longLinePolicy = policy;
+	}
+
+	/**
+	 * Returns the number of lines longer than the limit found since the last
+	 * call, a split line is counted once
+	 */
+	public int drainLongLines() {
+		int lines = longLines;
+		longLines = 0;
+		return lines;
+	}
+
+	/**
+	 * Reads the bytes of the source at the given offset into the buffer
+	 */
+	protected abstract int read(ByteBuffer buffer, long offset)
+			throws IOException;
+
+	/**
+	 * True if the source will not have more bytes
+	 */
+	protected boolean isEndOfInput() {
+		return false;
+	}
+
+	/**
+	 * Offset of the first byte that has not been returned as part of a line
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	public void seek(long newPosition) {
+		position = newPosition;
+		readPosition = newPosition;
+		pendingLength = 0;
+		discarding = false;
+		splitting = false;
+		buffer.clear();
+		buffer.flip();
+	}
+
+	/**
+	 * Offset of the next byte to read from the source
+	 */
+	protected long getReadPosition() {
+		return readPosition;
+	}
+
+	/**
+	 * The read buffer, its content is dropped by the next call to
+	 * {@link #seek(long)}
+	 */
+	protected ByteBuffer getBuffer() {
+		return buffer;
+	}
+}
@@ -0,0 +1,89 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Converts event bodies from the charset of the files to the charset expected
+ * downstream. The decoder, the encoder and their buffers are reused, only the
+ * body itself is allocated. Malformed or unmappable input is replaced. It is
+ * not thread safe, every file has its own.
+ */
+public class BodyTranscoder {
+
+	private final CharsetDecoder decoder;
+	private final CharsetEncoder encoder;
+	private CharBuffer chars;
+	private ByteBuffer out;
+
+	public BodyTranscoder(Charset inputCharset, Charset outputCharset) {
+		this.decoder = inputCharset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.encoder = outputCharset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.chars = CharBuffer.allocate(256);
+		this.out = ByteBuffer.allocate(256);
+	}
+
+	/**
+	 * True if lines of the charset can be split on the '\n' byte
+	 */
+	public static boolean isAsciiCompatible(Charset charset) {
+		return charset.canEncode()
+				&& Arrays.equals("\n".getBytes(charset), new byte[] { '\n' });
+	}
+
+	public byte[] transcode(byte[] array, int offset, int length) {
+		decode(ByteBuffer.wrap(array, offset, length));
+		encode();
+		return Arrays.copyOf(out.array(), out.position());
+	}
+
+	private void decode(ByteBuffer in) {
+		int capacity = (int) (in.remaining() * (double) decoder.maxCharsPerByte()) + 1;
+		if (chars.capacity() < capacity)
+			chars = CharBuffer.allocate(capacity);
+
+		chars.clear();
+		decoder.reset();
+		decoder.decode(in, chars, true);
+		decoder.flush(chars);
+		chars.flip();
+	}
+
+	private void encode() {
+		int capacity = (int) (chars.remaining() * (double) encoder.maxBytesPerChar()) + 1;
+		if (out.capacity() < capacity)
+			out = ByteBuffer.allocate(capacity);
+
+		out.clear();
+		encoder.reset();
+		encoder.encode(chars, out, true);
+		encoder.flush(out);
+	}
+}
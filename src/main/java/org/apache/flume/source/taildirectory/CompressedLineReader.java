@@ -0,0 +1,231 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads the lines of a gzip or zip file while it is decompressed, nothing is
+ * written to disk. Offsets are offsets of the decompressed data, so a file can
+ * only be resumed by decompressing it again up to its offset. The entries of
+ * a zip file are read one after another as a single file.
+ */
+public class CompressedLineReader extends AbstractLineReader {
+
+	private static final String GZIP_EXTENSION = ".gz";
+	private static final String ZIP_EXTENSION = ".zip";
+
+	private final InputStream in;
+	// The whole file was decompressed
+	private boolean finished;
+	// The compressed data ends too early, it may still be being written
+	private boolean incomplete;
+
+	public CompressedLineReader(File file, int bufferSize) throws IOException {
+		super(bufferSize);
+
+		InputStream raw = new BufferedInputStream(new FileInputStream(file),
+				bufferSize);
+		try {
+			if (file.getName().toLowerCase().endsWith(ZIP_EXTENSION))
+				in = new ZipEntriesInputStream(raw);
+			else
+				in = new GZIPInputStream(raw, bufferSize);
+		} catch (IOException e) {
+			raw.close();
+			throw e;
+		}
+	}
+
+	public static boolean isCompressed(Path path) {
+		Path name = path.getFileName();
+		if (name == null)
+			return false;
+
+		String fileName = name.toString().toLowerCase();
+		return fileName.endsWith(GZIP_EXTENSION)
+				|| fileName.endsWith(ZIP_EXTENSION);
+	}
+
+	/**
+	 * Path of the file an archive was made from, the path without its
+	 * extension. Null if the path is not compressed.
+	 */
+	public static Path getSourcePath(Path path) {
+		if (!isCompressed(path))
+			return null;
+
+		String fileName = path.getFileName().toString();
+		int length = fileName.toLowerCase().endsWith(GZIP_EXTENSION)
+				? GZIP_EXTENSION.length() : ZIP_EXTENSION.length();
+		if (fileName.length() == length)
+			return null;
+		return path.resolveSibling(fileName.substring(0,
+				fileName.length() - length));
+	}
+
+	/**
+	 * Length of the decompressed data recorded at the end of a gzip file,
+	 * modulo 2^32. Returns -1 for a zip file or a file too short to hold it.
+	 */
+	public static long getRecordedLength(File file) throws IOException {
+		if (!file.getName().toLowerCase().endsWith(GZIP_EXTENSION))
+			return -1;
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			// Header, empty deflate block and trailer
+			if (raf.length() < 20)
+				return -1;
+			raf.seek(raf.length() - 4);
+			byte[] size = new byte[4];
+			raf.readFully(size);
+			return (size[0] & 0xffL) | (size[1] & 0xffL) << 8
+					| (size[2] & 0xffL) << 16 | (size[3] & 0xffL) << 24;
+		}
+	}
+
+	/**
+	 * Decompresses and drops the given number of bytes, it stops early at the
+	 * end of the file
+	 */
+	public void skip(long bytes) throws IOException {
+		long skipped = 0;
+		try {
+			while (skipped < bytes) {
+				long n = in.skip(bytes - skipped);
+				if (n <= 0) {
+					if (in.read() < 0) {
+						finished = true;
+						break;
+					}
+					n = 1;
+				}
+				skipped += n;
+			}
+		} catch (EOFException e) {
+			incomplete = true;
+		}
+		seek(skipped);
+	}
+
+	@Override
+	protected int read(ByteBuffer buffer, long offset) throws IOException {
+		if (finished || incomplete)
+			return -1;
+
+		try {
+			// Decompressed straight into the buffer of the lines
+			int read = in.read(buffer.array(),
+					buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			if (read < 0)
+				finished = true;
+			else
+				buffer.position(buffer.position() + read);
+			return read;
+		} catch (EOFException e) {
+			incomplete = true;
+			return -1;
+		}
+	}
+
+	@Override
+	protected boolean isEndOfInput() {
+		return finished;
+	}
+
+	public boolean isFinished() {
+		return finished;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * The entries of a zip file as a single stream, a line separator is added
+	 * between two entries if the first one does not end with it
+	 */
+	private static class ZipEntriesInputStream extends InputStream {
+
+		private final ZipInputStream zip;
+		private boolean inEntry;
+		private boolean separator;
+		private byte last = '\n';
+
+		ZipEntriesInputStream(InputStream in) {
+			this.zip = new ZipInputStream(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+
+			for (;;) {
+				if (separator) {
+					separator = false;
+					last = '\n';
+					b[off] = '\n';
+					return 1;
+				}
+
+				if (!inEntry) {
+					ZipEntry entry = zip.getNextEntry();
+					while (entry != null && entry.isDirectory())
+						entry = zip.getNextEntry();
+					if (entry == null)
+						return -1;
+					inEntry = true;
+				}
+
+				int read = zip.read(b, off, len);
+				if (read > 0) {
+					last = b[off + read - 1];
+					return read;
+				}
+				inEntry = false;
+				if (last != '\n')
+					separator = true;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			zip.close();
+		}
+	}
+}
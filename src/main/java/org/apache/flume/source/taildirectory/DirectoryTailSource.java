@@ -20,17 +20,32 @@ package org.apache.flume.source.taildirectory;
 
 import java.io.IOException;
 import java.nio.file.FileSystems;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.flume.Context;
 import org.apache.flume.EventDrivenSource;
+import org.apache.flume.channel.ChannelProcessor;
 import org.apache.flume.conf.Configurable;
+import org.apache.flume.lifecycle.LifecycleState;
 import org.apache.flume.source.AbstractSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class DirectoryTailSource extends AbstractSource implements
 		Configurable, EventDrivenSource {
@@ -38,17 +53,60 @@ public class DirectoryTailSource extends AbstractSource implements
 	private static final String CONFIG_DIRS = "dirs";
 	private static final String CONFIG_PATH = "path";
 	private static final String FILENAME_PATTERN = "filenamePattern";
+	private static final String INCLUDE_PATTERNS = "includePatterns";
+	private static final String EXCLUDE_PATTERNS = "excludePatterns";
+	private static final String FILTER_CACHE_SIZE = "filterCacheSize";
+	private static final String MAX_LINES_PER_SECOND = "maxLinesPerSecond";
+	private static final String MAX_BYTES_PER_SECOND = "maxBytesPerSecond";
+	private static final String READER_THREADS = "readerThreads";
+	private static final String SCHEDULER_THREADS = "schedulerThreads";
+	private static final String MAX_OPEN_FILES = "maxOpenFiles";
+	private static final String DECOMPRESS_THREADS = "decompressThreads";
+	private static final String SCAN_THREADS = "scanThreads";
+	private static final String MAX_BUFFERED_BYTES = "maxBufferedBytes";
+	private static final String POSITION_FILE = "positionFile";
+	private static final String POSITION_FSYNC_INTERVAL = "positionFsyncInterval";
 	
 	private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryTailSource.class);
 	
-	private String confDirs;
 	private Set<WatchDirConfig> dirs;
-	private Set<WatchDir> watchDirs;
+	private Map<WatchDirConfig, WatchDir> watchDirs;
+	// Held while directories are added or removed
+	private final Object reconfigureLock = new Object();
 	private DirectoryTailSourceCounter counter;
+	private volatile ChannelProcessor channelProcessor;
+	private PositionStore positionStore;
+	private WatchDispatcher dispatcher;
+	private ScheduledExecutorService scheduler;
+	private FileReaderPool readerPool;
+	private FileReaderPool decompressPool;
+	private FileHandlePool handlePool;
+	private ForkJoinPool scanPool;
+	private MemoryBudget memoryBudget;
+	// Applies directory changes one configuration after the other
+	private ExecutorService reconfigurePool;
+	private int readerThreads;
+	private int schedulerThreads;
+	private int maxOpenFiles;
+	private int decompressThreads;
+	private int scanThreads;
+	private long maxBufferedBytes;
 	private Context context;
 
+	/**
+	 * Configures the source. A running source is reconfigured in place when
+	 * only its directories change: the unchanged ones keep their open files
+	 * and offsets, the removed ones are drained and released and the added
+	 * ones are scanned in the background. Any other change restarts its
+	 * directories and threads, its counters are kept. Flume itself never
+	 * configures a running source, it is for applications embedding it.
+	 */
 	@Override
-	public void configure(Context context) {
+	public synchronized void configure(Context context) {
+		if (getLifecycleState() == LifecycleState.START) {
+			reconfigure(context);
+			return;
+		}
 		LOGGER.info("Source Configuring..");
 		
 		this.context = context;
@@ -59,50 +117,191 @@ public class DirectoryTailSource extends AbstractSource implements
 	}
 
 	@Override
-	public void start() {
+	public synchronized void start() {
 		LOGGER.info("Source Starting..");
-		watchDirs = new HashSet<WatchDir>();
 		counter.start();
+		startSource();
+		super.start();
+	}
+
+	/**
+	 * Starts the threads and the directories of the source
+	 */
+	private void startSource() {
+		watchDirs = new ConcurrentHashMap<WatchDirConfig, WatchDir>();
+
+		scheduler = Executors.newScheduledThreadPool(schedulerThreads,
+				new ThreadFactoryBuilder().setNameFormat(getName() + "-scheduler-%d")
+						.setDaemon(true).build());
+		readerPool = new FileReaderPool(getName(), readerThreads);
+		decompressPool = new FileReaderPool(getName() + "-decompress",
+				decompressThreads);
+		handlePool = new FileHandlePool(maxOpenFiles);
+		scanPool = new ForkJoinPool(scanThreads, new ScanThreadFactory(),
+				null, false);
+		memoryBudget = new MemoryBudget(maxBufferedBytes);
+		counter.setMemoryBudget(memoryBudget);
+		reconfigurePool = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+				.setNameFormat(getName() + "-reconfigure").setDaemon(true).build());
+		counter.startThroughputCalculation(scheduler);
+		scheduler.scheduleAtFixedRate(new PrintThroughput(), 0, 5, TimeUnit.SECONDS);
+
+		if (positionStore != null)
+			positionStore.start(scheduler);
 
 		try {
+			dispatcher = new WatchDispatcher();
 			for (WatchDirConfig dir : dirs) {
-				WatchDir watchDir = new WatchDir(FileSystems.getDefault().getPath(dir.getDir())
-						,dir.getFilenamePattern(), this, context, counter);
-				watchDirs.add(watchDir);
+				WatchDir watchDir = new WatchDir(dir, this, context);
+				watchDirs.put(dir, watchDir);
+				counter.addWatchDir(watchDir);
 			}
+			dispatcher.start(getName());
 		} catch (IOException e) {
 			LOGGER.error(e.getMessage(),e);
 		}
-
-		super.start();
 	}
 
 	@Override
-	public void stop() {
+	public synchronized void stop() {
 		counter.stop();
 		LOGGER.info("DirectoryTailSource {} stopped. Metrics: {}", getName(),
 				counter);
-		for (WatchDir watchDir : watchDirs) {
-			watchDir.stop();
-		}
+		stopSource();
 		super.stop();
 	}
+
+	/**
+	 * Stops the directories of the source, sending what they buffered, then
+	 * its threads
+	 */
+	private void stopSource() {
+		if (dispatcher != null)
+			dispatcher.stop();
+		reconfigurePool.shutdownNow();
+		synchronized (reconfigureLock) {
+			for (WatchDir watchDir : watchDirs.values()) {
+				watchDir.stop();
+				counter.removeWatchDir(watchDir);
+			}
+			watchDirs.clear();
+		}
+		readerPool.stop(TimeUnit.SECONDS.toMillis(10));
+		decompressPool.stop(TimeUnit.SECONDS.toMillis(10));
+		scanPool.shutdownNow();
+		scheduler.shutdown();
+		if (positionStore != null)
+			positionStore.stop();
+	}
+
+	/**
+	 * Not synchronized unlike the one of AbstractSource: stop() holds the
+	 * lock of the source while the directories send their last batches
+	 */
+	@Override
+	public ChannelProcessor getChannelProcessor() {
+		return channelProcessor;
+	}
+
+	@Override
+	public synchronized void setChannelProcessor(ChannelProcessor channelProcessor) {
+		super.setChannelProcessor(channelProcessor);
+		this.channelProcessor = channelProcessor;
+	}
+
+	DirectoryTailSourceCounter getCounter() {
+		return counter;
+	}
+
+	PositionStore getPositionStore() {
+		return positionStore;
+	}
+
+	Collection<WatchDir> getWatchDirs() {
+		return watchDirs.values();
+	}
+
+	WatchDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	FileReaderPool getReaderPool() {
+		return readerPool;
+	}
+
+	FileReaderPool getDecompressPool() {
+		return decompressPool;
+	}
+
+	FileHandlePool getHandlePool() {
+		return handlePool;
+	}
+
+	ForkJoinPool getScanPool() {
+		return scanPool;
+	}
+
+	MemoryBudget getMemoryBudget() {
+		return memoryBudget;
+	}
 	
 	private void loadConfiguration(){
 		
-		confDirs = context.getString(CONFIG_DIRS).trim();
+		dirs = loadDirs(context);
+		
+		String positionFile = context.getString(POSITION_FILE);
+		if (positionFile != null && !positionFile.trim().isEmpty()) {
+			positionStore = new PositionStore(FileSystems.getDefault().getPath(
+					positionFile.trim()), context.getLong(POSITION_FSYNC_INTERVAL, 2000L));
+		} else {
+			positionStore = null;
+		}
+
+		readerThreads = context.getInteger(READER_THREADS, 1);
+		schedulerThreads = context.getInteger(SCHEDULER_THREADS, 2);
+		maxOpenFiles = context.getInteger(MAX_OPEN_FILES, 1000);
+		decompressThreads = context.getInteger(DECOMPRESS_THREADS, 1);
+		scanThreads = context.getInteger(SCAN_THREADS, Runtime.getRuntime()
+				.availableProcessors());
+		maxBufferedBytes = context.getLong(MAX_BUFFERED_BYTES, 0L);
+		Preconditions.checkState(readerThreads > 0, READER_THREADS + " must be greater than 0");
+		Preconditions.checkState(schedulerThreads > 0, SCHEDULER_THREADS + " must be greater than 0");
+		Preconditions.checkState(decompressThreads > 0, DECOMPRESS_THREADS + " must be greater than 0");
+		Preconditions.checkState(scanThreads > 0, SCAN_THREADS + " must be greater than 0");
+		Preconditions.checkState(maxBufferedBytes >= 0, MAX_BUFFERED_BYTES + " must not be negative");
+	}
+
+	private static Set<WatchDirConfig> loadDirs(Context context) {
+
+		String confDirs = context.getString(CONFIG_DIRS);
 		Preconditions.checkState(confDirs != null, "Configuration must be specified directory(ies).");
 
-		String[] confDirArr = confDirs.split(" ");
+		String[] confDirArr = confDirs.trim().split(" ");
 		Preconditions.checkState(confDirArr.length > 0, CONFIG_DIRS	+ " must be specified at least one.");
 		
-		dirs = new HashSet<WatchDirConfig>();
+		int filterCacheSize = context.getInteger(FILTER_CACHE_SIZE, PathFilter.DEFAULT_CACHE_SIZE);
+
+		Set<WatchDirConfig> dirs = new HashSet<WatchDirConfig>();
 		
 		for (int i = 0; i < confDirArr.length; i++) {
 			String path = context.getString(CONFIG_DIRS + "." + confDirArr[i] + "." + CONFIG_PATH);
 			String filenamePattern = context.getString(CONFIG_DIRS + "." + confDirArr[i] + "." + FILENAME_PATTERN);
+			String includePatterns = context.getString(CONFIG_DIRS + "." + confDirArr[i] + "." + INCLUDE_PATTERNS);
+			String excludePatterns = context.getString(CONFIG_DIRS + "." + confDirArr[i] + "." + EXCLUDE_PATTERNS);
 			
-			WatchDirConfig dc = new WatchDirConfig(path, filenamePattern);
+			long maxLinesPerSecond = context.getLong(CONFIG_DIRS + "." + confDirArr[i] + "." + MAX_LINES_PER_SECOND, 0L);
+			long maxBytesPerSecond = context.getLong(CONFIG_DIRS + "." + confDirArr[i] + "." + MAX_BYTES_PER_SECOND, 0L);
+			Preconditions.checkState(maxLinesPerSecond >= 0, MAX_LINES_PER_SECOND + " must not be negative");
+			Preconditions.checkState(maxBytesPerSecond >= 0, MAX_BYTES_PER_SECOND + " must not be negative");
+			
+			WatchDirConfig dc = new WatchDirConfig(path, filenamePattern,
+					includePatterns, excludePatterns, filterCacheSize);
+			dc.setMaxLinesPerSecond(maxLinesPerSecond);
+			dc.setMaxBytesPerSecond(maxBytesPerSecond);
 			dirs.add(dc);
 			
 			if (path == null) {
@@ -110,5 +309,123 @@ public class DirectoryTailSource extends AbstractSource implements
 				continue;
 			}
 		}
+		return dirs;
+	}
+
+	/**
+	 * Applies a new configuration to the running source
+	 */
+	private void reconfigure(Context newContext) {
+		Set<WatchDirConfig> newDirs = loadDirs(newContext);
+
+		if (!sourceSettings(context).equals(sourceSettings(newContext))) {
+			LOGGER.info("Source settings changed, restarting source {}", getName());
+			// The counters are not started again, it would reset them
+			stopSource();
+			context = newContext;
+			loadConfiguration();
+			startSource();
+			return;
+		}
+
+		List<WatchDirConfig> removed = new ArrayList<WatchDirConfig>(dirs);
+		removed.removeAll(newDirs);
+		List<WatchDirConfig> added = new ArrayList<WatchDirConfig>(newDirs);
+		added.removeAll(dirs);
+
+		context = newContext;
+		dirs = newDirs;
+		if (removed.isEmpty() && added.isEmpty()) {
+			LOGGER.info("Source {} configuration unchanged", getName());
+			return;
+		}
+
+		LOGGER.info("Reconfiguring source {}, removing {}, adding {}",
+				new Object[] { getName(), removed, added });
+		reconfigurePool.execute(new ChangeDirectories(removed, added, newContext));
+	}
+
+	/**
+	 * Settings of the source other than its directories
+	 */
+	private static Map<String, String> sourceSettings(Context context) {
+		Map<String, String> settings = new HashMap<String, String>(
+				context.getParameters());
+		for (String key : context.getParameters().keySet()) {
+			if (key.equals(CONFIG_DIRS) || key.startsWith(CONFIG_DIRS + "."))
+				settings.remove(key);
+		}
+		return settings;
+	}
+
+	/**
+	 * Stops the removed directories, sending what their files buffered and
+	 * saving their offsets, then scans the added ones. Directories kept by
+	 * the new configuration are not touched.
+	 */
+	private class ChangeDirectories implements Runnable {
+
+		private final List<WatchDirConfig> removed;
+		private final List<WatchDirConfig> added;
+		private final Context context;
+
+		ChangeDirectories(List<WatchDirConfig> removed,
+				List<WatchDirConfig> added, Context context) {
+			this.removed = removed;
+			this.added = added;
+			this.context = context;
+		}
+
+		@Override
+		public void run() {
+			synchronized (reconfigureLock) {
+				if (getLifecycleState() != LifecycleState.START)
+					return;
+
+				for (WatchDirConfig dir : removed) {
+					WatchDir watchDir = watchDirs.remove(dir);
+					if (watchDir != null) {
+						LOGGER.info("Removing directory: " + dir.getDir());
+						watchDir.stop();
+						counter.removeWatchDir(watchDir);
+					}
+				}
+				for (WatchDirConfig dir : added) {
+					try {
+						WatchDir watchDir = new WatchDir(dir, DirectoryTailSource.this,
+								context);
+						watchDirs.put(dir, watchDir);
+						counter.addWatchDir(watchDir);
+					} catch (IOException e) {
+						LOGGER.error("Unable to add directory " + dir.getDir()
+								+ ": " + e.getMessage(), e);
+					} catch (RuntimeException e) {
+						LOGGER.error(e.getMessage(), e);
+					}
+				}
+			}
+		}
+	}
+
+	private class ScanThreadFactory implements
+			ForkJoinPool.ForkJoinWorkerThreadFactory {
+
+		@Override
+		public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory
+					.newThread(pool);
+			thread.setName(getName() + "-scanner-" + thread.getPoolIndex());
+			return thread;
+		}
+	}
+
+	private class PrintThroughput implements Runnable {
+
+		@Override
+		public void run() {
+			LOGGER.debug("Current throughput: "
+					+ counter.getCurrentThroughput());
+		}
+
 	}
 }
@@ -1,6 +1,10 @@
 package org.apache.flume.source.taildirectory;
 
-import java.util.concurrent.Executors;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -10,23 +14,52 @@ public class DirectoryTailSourceCounter extends MonitoredCounterGroup implements
 		DirectoryTailSourceCounterMBean {
 
 	private long startTime;
+	private final List<WatchDir> watchDirs = new CopyOnWriteArrayList<WatchDir>();
+	private final LatencyHistogram commitLatency = new LatencyHistogram();
+	private volatile MemoryBudget memoryBudget;
 
 	private static final String COUNTER_MESSAGE_SENT = "source.counter.message.sent";
 	private static final String COUNTER_MESSAGE_SENT_ERROR = "source.counter.message.sent.error";
 	private static final String AVERAGE_THROUGHPUT = "source.average.throughput";
 	private static final String CURRENT_THROUGHPUT = "source.current.throughput";
-
-	private final ScheduledExecutorService scheduler = Executors
-			.newScheduledThreadPool(1);
+	private static final String COUNTER_BATCH_SENT = "source.counter.batch.sent";
+	private static final String LAST_BATCH_SIZE = "source.last.batch.size";
+	private static final String AVERAGE_BATCH_SIZE = "source.average.batch.size";
+	private static final String COUNTER_CHANNEL_RETRY = "source.counter.channel.retry";
+	private static final String CHANNEL_BLOCKED_TIME = "source.channel.blocked.time";
+	private static final String BYTES_READ = "source.bytes.read";
+	private static final String COUNTER_FILE_EVICTED = "source.counter.file.evicted";
+	private static final String COMMIT_LATENCY_P50 = "source.commit.latency.p50";
+	private static final String COMMIT_LATENCY_P99 = "source.commit.latency.p99";
+	private static final String COMMIT_LATENCY_MAX = "source.commit.latency.max";
+	private static final String COUNTER_WATCH_OVERFLOW = "source.counter.watch.overflow";
+	private static final String COUNTER_READ_YIELDED = "source.counter.read.yielded";
+	private static final String COUNTER_READ_THROTTLED = "source.counter.read.throttled";
+	private static final String COUNTER_READ_PAUSED = "source.counter.read.paused";
+	private static final String COUNTER_LONG_LINES = "source.counter.long.lines";
+	private static final String COUNTER_EVENT_LIMITED = "source.counter.event.limited";
+	private static final String SCAN_DIRECTORIES = "source.scan.directories";
+	private static final String SCAN_FILES = "source.scan.files";
+	private static final String SCAN_TIME = "source.scan.time";
 
 	private static final String[] ATTRIBUTES = { COUNTER_MESSAGE_SENT,
-			COUNTER_MESSAGE_SENT_ERROR, CURRENT_THROUGHPUT, AVERAGE_THROUGHPUT };
+			COUNTER_MESSAGE_SENT_ERROR, CURRENT_THROUGHPUT, AVERAGE_THROUGHPUT,
+			COUNTER_BATCH_SENT, LAST_BATCH_SIZE, AVERAGE_BATCH_SIZE,
+			COUNTER_CHANNEL_RETRY, CHANNEL_BLOCKED_TIME, BYTES_READ,
+			COMMIT_LATENCY_P50, COMMIT_LATENCY_P99, COMMIT_LATENCY_MAX,
+			COUNTER_FILE_EVICTED, SCAN_DIRECTORIES, SCAN_FILES, SCAN_TIME,
+			COUNTER_WATCH_OVERFLOW, COUNTER_READ_YIELDED, COUNTER_READ_THROTTLED,
+			COUNTER_READ_PAUSED, COUNTER_LONG_LINES, COUNTER_EVENT_LIMITED };
 
 	public DirectoryTailSourceCounter(String name) {
 		super(MonitoredCounterGroup.Type.SOURCE, name, ATTRIBUTES);
 		startTime = System.currentTimeMillis() / 1000;
+	}
 
-		// Start running current throughput calculate every second
+	/**
+	 * Starts running current throughput calculate every second
+	 */
+	public void startThroughputCalculation(ScheduledExecutorService scheduler) {
 		final Runnable runnableThroughput = new ThroughputCalculate();
 		scheduler.scheduleAtFixedRate(runnableThroughput, 0, 1,
 				TimeUnit.SECONDS);
@@ -52,6 +85,292 @@ public class DirectoryTailSourceCounter extends MonitoredCounterGroup implements
 		return get(COUNTER_MESSAGE_SENT_ERROR);
 	}
 
+	@Override
+	public void increaseCounterBatchSent(int batchSize) {
+		long messages = addAndGet(COUNTER_MESSAGE_SENT, batchSize);
+		long batches = increment(COUNTER_BATCH_SENT);
+		set(LAST_BATCH_SIZE, batchSize);
+		set(AVERAGE_BATCH_SIZE, messages / batches);
+	}
+
+	@Override
+	public long getCounterBatchSent() {
+		return get(COUNTER_BATCH_SENT);
+	}
+
+	@Override
+	public long getLastBatchSize() {
+		return get(LAST_BATCH_SIZE);
+	}
+
+	@Override
+	public long getAverageBatchSize() {
+		return get(AVERAGE_BATCH_SIZE);
+	}
+
+	@Override
+	public void increaseCounterChannelRetry() {
+		increment(COUNTER_CHANNEL_RETRY);
+	}
+
+	@Override
+	public long getCounterChannelRetry() {
+		return get(COUNTER_CHANNEL_RETRY);
+	}
+
+	@Override
+	public void addChannelBlockedTime(long millis) {
+		addAndGet(CHANNEL_BLOCKED_TIME, millis);
+	}
+
+	@Override
+	public long getChannelBlockedTime() {
+		return get(CHANNEL_BLOCKED_TIME);
+	}
+
+	@Override
+	public void addBytesRead(long bytes) {
+		if (bytes > 0)
+			addAndGet(BYTES_READ, bytes);
+	}
+
+	@Override
+	public long getBytesRead() {
+		return get(BYTES_READ);
+	}
+
+	@Override
+	public void increaseCounterFileEvicted() {
+		increment(COUNTER_FILE_EVICTED);
+	}
+
+	@Override
+	public long getCounterFileEvicted() {
+		return get(COUNTER_FILE_EVICTED);
+	}
+
+	@Override
+	public void increaseCounterWatchOverflow() {
+		increment(COUNTER_WATCH_OVERFLOW);
+	}
+
+	@Override
+	public long getCounterWatchOverflow() {
+		return get(COUNTER_WATCH_OVERFLOW);
+	}
+
+	@Override
+	public void increaseCounterReadYielded() {
+		increment(COUNTER_READ_YIELDED);
+	}
+
+	@Override
+	public long getCounterReadYielded() {
+		return get(COUNTER_READ_YIELDED);
+	}
+
+	@Override
+	public void increaseCounterReadThrottled() {
+		increment(COUNTER_READ_THROTTLED);
+	}
+
+	@Override
+	public long getCounterReadThrottled() {
+		return get(COUNTER_READ_THROTTLED);
+	}
+
+	@Override
+	public void increaseCounterReadPaused() {
+		increment(COUNTER_READ_PAUSED);
+	}
+
+	@Override
+	public long getCounterReadPaused() {
+		return get(COUNTER_READ_PAUSED);
+	}
+
+	@Override
+	public void increaseCounterLongLines(long lines) {
+		if (lines > 0)
+			addAndGet(COUNTER_LONG_LINES, lines);
+	}
+
+	@Override
+	public long getCounterLongLines() {
+		return get(COUNTER_LONG_LINES);
+	}
+
+	@Override
+	public void increaseCounterEventLimited() {
+		increment(COUNTER_EVENT_LIMITED);
+	}
+
+	@Override
+	public long getCounterEventLimited() {
+		return get(COUNTER_EVENT_LIMITED);
+	}
+
+	@Override
+	public void increaseScannedDirectories() {
+		increment(SCAN_DIRECTORIES);
+	}
+
+	@Override
+	public long getScannedDirectories() {
+		return get(SCAN_DIRECTORIES);
+	}
+
+	@Override
+	public long addScannedFiles(long files) {
+		return addAndGet(SCAN_FILES, files);
+	}
+
+	@Override
+	public long getScannedFiles() {
+		return get(SCAN_FILES);
+	}
+
+	@Override
+	public void addScanTime(long millis) {
+		addAndGet(SCAN_TIME, millis);
+	}
+
+	@Override
+	public long getScanTime() {
+		return get(SCAN_TIME);
+	}
+
+	/**
+	 * Records the time between the append of an event to its file and its
+	 * commit to the channel
+	 */
+	public void recordCommitLatency(long millis) {
+		commitLatency.record(millis, 1);
+	}
+
+	@Override
+	public long getCommitLatencyP50() {
+		return get(COMMIT_LATENCY_P50);
+	}
+
+	@Override
+	public long getCommitLatencyP99() {
+		return get(COMMIT_LATENCY_P99);
+	}
+
+	@Override
+	public long getCommitLatencyMax() {
+		return get(COMMIT_LATENCY_MAX);
+	}
+
+	@Override
+	public Map<String, Long> getCommitLatencyHistogram() {
+		return commitLatency.getBuckets();
+	}
+
+	/**
+	 * Per file and per directory metrics are computed from the files of the
+	 * registered directories when they are requested
+	 */
+	public void addWatchDir(WatchDir watchDir) {
+		watchDirs.add(watchDir);
+	}
+
+	public void removeWatchDir(WatchDir watchDir) {
+		watchDirs.remove(watchDir);
+	}
+
+	public void setMemoryBudget(MemoryBudget memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	@Override
+	public long getBufferedBytes() {
+		MemoryBudget budget = memoryBudget;
+		return budget == null ? 0 : budget.getUsed();
+	}
+
+	@Override
+	public long getOpenFiles() {
+		long open = 0;
+		for (WatchDir watchDir : watchDirs) {
+			for (FileSet fileSet : watchDir.getFileSets()) {
+				if (fileSet.isFileIsOpen())
+					open++;
+			}
+		}
+		return open;
+	}
+
+	@Override
+	public long getLag() {
+		long lag = 0;
+		for (WatchDir watchDir : watchDirs) {
+			for (FileSet fileSet : watchDir.getFileSets())
+				lag += fileSet.getLag();
+		}
+		return lag;
+	}
+
+	@Override
+	public Map<String, Long> getFileLag() {
+		Map<String, Long> lags = new TreeMap<String, Long>();
+		for (WatchDir watchDir : watchDirs) {
+			for (FileSet fileSet : watchDir.getFileSets())
+				lags.put(fileSet.getFilePath().toString(), fileSet.getLag());
+		}
+		return lags;
+	}
+
+	@Override
+	public Map<String, Long> getFileBytesRead() {
+		Map<String, Long> bytes = new TreeMap<String, Long>();
+		for (WatchDir watchDir : watchDirs) {
+			for (FileSet fileSet : watchDir.getFileSets())
+				bytes.put(fileSet.getFilePath().toString(),
+						fileSet.getBytesRead());
+		}
+		return bytes;
+	}
+
+	@Override
+	public Map<String, Long> getDirectoryLag() {
+		Map<String, Long> lags = new HashMap<String, Long>();
+		for (WatchDir watchDir : watchDirs) {
+			long lag = 0;
+			for (FileSet fileSet : watchDir.getFileSets())
+				lag += fileSet.getLag();
+			lags.put(watchDir.getDir().toString(), lag);
+		}
+		return lags;
+	}
+
+	@Override
+	public Map<String, Long> getDirectoryBytesRead() {
+		Map<String, Long> bytes = new HashMap<String, Long>();
+		for (WatchDir watchDir : watchDirs) {
+			long read = 0;
+			for (FileSet fileSet : watchDir.getFileSets())
+				read += fileSet.getBytesRead();
+			bytes.put(watchDir.getDir().toString(), read);
+		}
+		return bytes;
+	}
+
+	@Override
+	public Map<String, Long> getDirectoryOpenFiles() {
+		Map<String, Long> open = new HashMap<String, Long>();
+		for (WatchDir watchDir : watchDirs) {
+			long count = 0;
+			for (FileSet fileSet : watchDir.getFileSets()) {
+				if (fileSet.isFileIsOpen())
+					count++;
+			}
+			open.put(watchDir.getDir().toString(), count);
+		}
+		return open;
+	}
+
 	@Override
 	public long getAverageThroughput() {
 		return get(AVERAGE_THROUGHPUT);
@@ -64,7 +383,8 @@ public class DirectoryTailSourceCounter extends MonitoredCounterGroup implements
 
 	private class ThroughputCalculate implements Runnable {
 
-		private long previousMessages = 0;
+		// A source restarted by a new configuration keeps its counters
+		private long previousMessages = get(COUNTER_MESSAGE_SENT);
 		private long currentMessages = 0;
 		private long currentThroughput = 0;
 		private long currentTime = 0;
@@ -86,6 +406,10 @@ public class DirectoryTailSourceCounter extends MonitoredCounterGroup implements
 				set(AVERAGE_THROUGHPUT, averageThroughput);
 				previousMessages = currentMessages;
 			}
+
+			set(COMMIT_LATENCY_P50, commitLatency.getPercentile(50));
+			set(COMMIT_LATENCY_P99, commitLatency.getPercentile(99));
+			set(COMMIT_LATENCY_MAX, commitLatency.getMax());
 		}
 	}
 }
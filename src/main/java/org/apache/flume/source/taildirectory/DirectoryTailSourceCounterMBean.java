@@ -1,5 +1,7 @@
 package org.apache.flume.source.taildirectory;
 
+import java.util.Map;
+
 public interface DirectoryTailSourceCounterMBean {
 
 	public void increaseCounterMessageSent();
@@ -13,4 +15,88 @@ public interface DirectoryTailSourceCounterMBean {
 	public long getCurrentThroughput();
 
 	public long getAverageThroughput();
+
+	public void increaseCounterBatchSent(int batchSize);
+
+	public long getCounterBatchSent();
+
+	public long getLastBatchSize();
+
+	public long getAverageBatchSize();
+
+	public void increaseCounterChannelRetry();
+
+	public long getCounterChannelRetry();
+
+	public void addChannelBlockedTime(long millis);
+
+	public long getChannelBlockedTime();
+
+	public void addBytesRead(long bytes);
+
+	public long getBytesRead();
+
+	public void increaseCounterFileEvicted();
+
+	public long getCounterFileEvicted();
+
+	public void increaseCounterWatchOverflow();
+
+	public long getCounterWatchOverflow();
+
+	public void increaseCounterReadYielded();
+
+	public long getCounterReadYielded();
+
+	public void increaseCounterReadThrottled();
+
+	public long getCounterReadThrottled();
+
+	public void increaseCounterReadPaused();
+
+	public long getCounterReadPaused();
+
+	public void increaseCounterLongLines(long lines);
+
+	public long getCounterLongLines();
+
+	public void increaseCounterEventLimited();
+
+	public long getCounterEventLimited();
+
+	public void increaseScannedDirectories();
+
+	public long getScannedDirectories();
+
+	public long addScannedFiles(long files);
+
+	public long getScannedFiles();
+
+	public void addScanTime(long millis);
+
+	public long getScanTime();
+
+	public long getCommitLatencyP50();
+
+	public long getCommitLatencyP99();
+
+	public long getCommitLatencyMax();
+
+	public Map<String, Long> getCommitLatencyHistogram();
+
+	public long getBufferedBytes();
+
+	public long getOpenFiles();
+
+	public long getLag();
+
+	public Map<String, Long> getFileLag();
+
+	public Map<String, Long> getFileBytesRead();
+
+	public Map<String, Long> getDirectoryLag();
+
+	public Map<String, Long> getDirectoryBytesRead();
+
+	public Map<String, Long> getDirectoryOpenFiles();
 }
@@ -0,0 +1,128 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Headers of an event. The headers of its file are shared by all the events
+ * of the file, the headers parsed from its body are added over them and the
+ * offset and line headers are only formatted when they are read.
+ * Interceptors and channels may change the headers or iterate over them,
+ * then they are copied into a map of the event.
+ */
+public class EventHeaders extends AbstractMap<String, String> {
+
+	private final Map<String, String> fileHeaders;
+	private final Map<String, String> parsedHeaders;
+	private final String offsetKey;
+	private final long offset;
+	private final String lineKey;
+	private final long line;
+	private Map<String, String> copy;
+
+	/**
+	 * A null key disables its header
+	 */
+	public EventHeaders(Map<String, String> fileHeaders, String offsetKey,
+			long offset, String lineKey, long line) {
+		this(fileHeaders, null, offsetKey, offset, lineKey, line);
+	}
+
+	/**
+	 * Parsed headers may be null
+	 */
+	public EventHeaders(Map<String, String> fileHeaders,
+			Map<String, String> parsedHeaders, String offsetKey, long offset,
+			String lineKey, long line) {
+		this.fileHeaders = fileHeaders;
+		this.parsedHeaders = parsedHeaders;
+		this.offsetKey = offsetKey;
+		this.offset = offset;
+		this.lineKey = lineKey;
+		this.line = line;
+	}
+
+	@Override
+	public String get(Object key) {
+		if (copy != null)
+			return copy.get(key);
+		if (offsetKey != null && offsetKey.equals(key))
+			return String.valueOf(offset);
+		if (lineKey != null && lineKey.equals(key))
+			return String.valueOf(line);
+		if (parsedHeaders != null && parsedHeaders.containsKey(key))
+			return parsedHeaders.get(key);
+		return fileHeaders.get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		if (copy != null)
+			return copy.containsKey(key);
+		return (offsetKey != null && offsetKey.equals(key))
+				|| (lineKey != null && lineKey.equals(key))
+				|| (parsedHeaders != null && parsedHeaders.containsKey(key))
+				|| fileHeaders.containsKey(key);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		if (copy != null)
+			return copy.isEmpty();
+		return offsetKey == null && lineKey == null && fileHeaders.isEmpty()
+				&& (parsedHeaders == null || parsedHeaders.isEmpty());
+	}
+
+	@Override
+	public String put(String key, String value) {
+		return copy().put(key, value);
+	}
+
+	@Override
+	public String remove(Object key) {
+		return copy().remove(key);
+	}
+
+	@Override
+	public void clear() {
+		copy().clear();
+	}
+
+	@Override
+	public Set<Map.Entry<String, String>> entrySet() {
+		return copy().entrySet();
+	}
+
+	private Map<String, String> copy() {
+		if (copy == null) {
+			copy = new HashMap<String, String>(fileHeaders);
+			if (parsedHeaders != null)
+				copy.putAll(parsedHeaders);
+			if (offsetKey != null)
+				copy.put(offsetKey, String.valueOf(offset));
+			if (lineKey != null)
+				copy.put(lineKey, String.valueOf(line));
+		}
+		return copy;
+	}
+}
@@ -0,0 +1,89 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounds the files kept open by a source. Every read marks its file as the
+ * most recently used, once there are more open files than the limit the least
+ * recently used ones are handed back to their WatchDir to be closed. A closed
+ * file remembers its offset and is opened there on its next read.
+ */
+public class FileHandlePool {
+
+	private final int maxOpenFiles;
+	private final LinkedHashMap<FileSet, WatchDir> openFiles;
+
+	/**
+	 * A limit lower than 1 keeps every file open
+	 */
+	public FileHandlePool(int maxOpenFiles) {
+		this.maxOpenFiles = maxOpenFiles;
+		this.openFiles = new LinkedHashMap<FileSet, WatchDir>(16, 0.75f, true);
+	}
+
+	/**
+	 * Records that the file is open and being read, the files over the limit
+	 * are evicted
+	 */
+	public void opened(FileSet fileSet, WatchDir owner) {
+		List<FileSet> victims = null;
+		List<WatchDir> owners = null;
+
+		// Victims are picked under the lock and closed outside of it
+		synchronized (openFiles) {
+			openFiles.put(fileSet, owner);
+			if (maxOpenFiles < 1 || openFiles.size() <= maxOpenFiles)
+				return;
+
+			Iterator<Map.Entry<FileSet, WatchDir>> it = openFiles.entrySet()
+					.iterator();
+			while (openFiles.size() > maxOpenFiles && it.hasNext()) {
+				Map.Entry<FileSet, WatchDir> entry = it.next();
+				FileSet victim = entry.getKey();
+				// Rotated files can not be opened again
+				if (victim == fileSet || victim.isRotated())
+					continue;
+				if (victims == null) {
+					victims = new ArrayList<FileSet>();
+					owners = new ArrayList<WatchDir>();
+				}
+				victims.add(victim);
+				owners.add(entry.getValue());
+				it.remove();
+			}
+		}
+
+		if (victims != null) {
+			for (int i = 0; i < victims.size(); i++)
+				owners.get(i).evict(victims.get(i));
+		}
+	}
+
+	public void closed(FileSet fileSet) {
+		synchronized (openFiles) {
+			openFiles.remove(fileSet);
+		}
+	}
+}
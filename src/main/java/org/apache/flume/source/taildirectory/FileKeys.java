@@ -2,6 +2,7 @@ package org.apache.flume.source.taildirectory;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 
@@ -13,22 +14,35 @@ public class FileKeys {
 	private static final Logger LOGGER= LoggerFactory
 			.getLogger(FileKeys.class);
 	
+	private static final boolean WINDOWS = System.getProperty("os.name")
+			.toLowerCase().indexOf("win") >= 0;
+
 	private FileKeys(){
 	}
 	
 	public static String getFileKey(Path path){
-		if (System.getProperty("os.name").toLowerCase().indexOf("win") >= 0)
+		if (WINDOWS)
 			return path.toString();
 		else
 			try{
-				if (Files.exists(path))
-					return Files.readAttributes(path, BasicFileAttributes.class)
-							.fileKey().toString();
-				else
-					return null;
+				return getFileKey(path, Files.readAttributes(path,
+						BasicFileAttributes.class));
+			}catch (NoSuchFileException e){
+				return null;
 			}catch (IOException e){
 				LOGGER.warn(e.getMessage(),e);
 				return null;
 			}
 	}
+
+	/**
+	 * Key of a file whose attributes have already been read
+	 */
+	public static String getFileKey(Path path, BasicFileAttributes attrs){
+		if (WINDOWS)
+			return path.toString();
+
+		Object fileKey = attrs.fileKey();
+		return fileKey == null ? null : fileKey.toString();
+	}
 }
@@ -0,0 +1,90 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs the reads of the tailed files outside of the thread watching the
+ * directories. Every file is always read by the same worker so its lines are
+ * sent in order, and a file already waiting to be read is queued only once.
+ */
+public class FileReaderPool {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(FileReaderPool.class);
+
+	private final ExecutorService[] workers;
+
+	public FileReaderPool(String name, int threads) {
+		workers = new ExecutorService[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+					.setNameFormat(name + "-reader-" + i).setDaemon(true).build());
+		}
+	}
+
+	/**
+	 * Queues the task in the worker of the file unless the file is already
+	 * queued
+	 */
+	public void read(FileSet fileSet, Runnable task) {
+		if (fileSet.markReadQueued())
+			execute(fileSet, task);
+	}
+
+	/**
+	 * Queues the task in the worker of the file after any pending read,
+	 * returns false if the pool is stopped
+	 */
+	public boolean execute(FileSet fileSet, Runnable task) {
+		try {
+			workers[(fileSet.hashCode() & Integer.MAX_VALUE) % workers.length]
+					.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			LOGGER.warn("Reader pool stopped, ignoring task for {}",
+					fileSet.getFilePath());
+			return false;
+		}
+	}
+
+	public void stop(long timeout) {
+		for (ExecutorService worker : workers) {
+			worker.shutdown();
+		}
+		for (ExecutorService worker : workers) {
+			try {
+				if (!worker.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+					worker.shutdownNow();
+			} catch (InterruptedException e) {
+				worker.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,278 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The files tailed by a WatchDir, indexed by file key (inode) and by path.
+ * Lookups and iterations do not lock, so the readers, the periodic tasks and
+ * the metrics never wait for the thread handling the events. Files are added
+ * and removed only while holding the lock of the registry.
+ * <p>
+ * The key of a path is cached until a create, delete or rename event of that
+ * path, so the events of a file being written are resolved without reading
+ * its attributes.
+ */
+public class FileRegistry {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(FileRegistry.class);
+
+	private final ConcurrentMap<String, FileSet> fileSets;
+	private final ConcurrentMap<String, String> fileKeys;
+	private final int bufferSize;
+	private final int maxLineBytes;
+	private final LineReader.LongLinePolicy longLinePolicy;
+	private final PositionStore positionStore;
+
+	public FileRegistry(int bufferSize, int maxLineBytes,
+			LineReader.LongLinePolicy longLinePolicy, PositionStore positionStore) {
+		this.fileSets = new ConcurrentHashMap<String, FileSet>();
+		this.fileKeys = new ConcurrentHashMap<String, String>();
+		this.bufferSize = bufferSize;
+		this.maxLineBytes = maxLineBytes;
+		this.longLinePolicy = longLinePolicy;
+		this.positionStore = positionStore;
+	}
+
+	public FileSet get(String fileKey) {
+		return fileKey == null ? null : fileSets.get(fileKey);
+	}
+
+	/**
+	 * Key of the file last seen at the path, null if there is none
+	 */
+	public String getFileKey(Path path) {
+		return fileKeys.get(path.toString());
+	}
+
+	/**
+	 * Returns the file at the path, a file not tailed yet is added and read
+	 * from its last line
+	 */
+	public FileSet getFileSet(Path path) throws IOException {
+		FileSet fileSet = get(getFileKey(path));
+		if (fileSet != null)
+			return fileSet;
+		return addFileSet(path, "lastLine");
+	}
+
+	/**
+	 * Adds the file at the path, if it is already tailed under another path
+	 * it has been renamed. Returns null if it is a symbolic link or it no
+	 * longer exists.
+	 */
+	public FileSet addFileSet(Path path, String startFrom) throws IOException {
+
+		if (Files.isSymbolicLink(path)){
+			LOGGER.warn("Symbolic links not accepted, ignoring {}",path);
+			return null;
+		}
+
+		return addFileSet(path, startFrom, FileKeys.getFileKey(path), -1);
+	}
+
+	/**
+	 * Adds a file found by a directory scan, its attributes are used instead
+	 * of reading them again
+	 */
+	public FileSet addFileSet(Path path, String startFrom,
+			BasicFileAttributes attrs) throws IOException {
+		return addFileSet(path, startFrom, FileKeys.getFileKey(path, attrs),
+				attrs.size());
+	}
+
+	private FileSet addFileSet(Path path, String startFrom, String fileKey,
+			long size) throws IOException {
+
+		if (fileKey == null) {
+			LOGGER.debug("File deleted before being added: " + path);
+			return null;
+		}
+
+		FileSet fileSet = fileSets.get(fileKey);
+
+		if (fileSet == null) {
+			LOGGER.debug("Scanning file: " + path.toString() + " with key: "
+					+ fileKey);
+			boolean compressed = CompressedLineReader.isCompressed(path);
+			// Compressed files are opened by their reader
+			fileSet = new FileSet(path, compressed ? "end" : startFrom,
+					bufferSize);
+			// Rotated between reading its key and opening it, the file now at
+			// the path is added instead
+			if (fileSet.isFileIsOpen()
+					&& !fileKey.equals(FileKeys.getFileKey(path))) {
+				fileSet.close();
+				return addFileSet(path, startFrom, FileKeys.getFileKey(path), -1);
+			}
+			fileSet.setCompressed(compressed);
+			fileSet.setMaxLineBytes(maxLineBytes, longLinePolicy);
+			fileSet.setFileKey(fileKey);
+			restorePosition(fileSet, startFrom, size);
+			fileSets.put(fileKey, fileSet);
+		} else if (!fileSet.getFilePath().equals(path)) {
+			// The former path keeps its key until its own event arrives
+			fileSet.setFilePath(path);
+			if (positionStore != null)
+				positionStore.renamed(fileKey, path);
+		}
+		fileKeys.put(path.toString(), fileKey);
+		return fileSet;
+	}
+
+	/**
+	 * Moves a file found under a new path
+	 */
+	public void renamed(FileSet fileSet, Path path) {
+		fileSet.setFilePath(path);
+		if (fileSet.getFileKey() != null)
+			fileKeys.put(path.toString(), fileSet.getFileKey());
+		if (positionStore != null)
+			positionStore.renamed(fileSet.getFileKey(), path);
+	}
+
+	/**
+	 * Forgets the key of the path, returns it or null if it was unknown
+	 */
+	public String removePath(Path path) {
+		return fileKeys.remove(path.toString());
+	}
+
+	/**
+	 * Forgets the file and the key of its path if it still points to it
+	 */
+	public void remove(FileSet fileSet) {
+		String fileKey = fileSet.getFileKey();
+		if (fileKey == null)
+			return;
+
+		fileSets.remove(fileKey, fileSet);
+		fileKeys.remove(fileSet.getFilePath().toString(), fileKey);
+	}
+
+	/**
+	 * Paths whose key is known
+	 */
+	public List<Path> getPaths() {
+		List<Path> paths = new ArrayList<Path>(fileKeys.size());
+		for (String path : fileKeys.keySet())
+			paths.add(Paths.get(path));
+		return paths;
+	}
+
+	/**
+	 * Live view of the tailed files, it can be iterated while files are added
+	 * and removed
+	 */
+	public Collection<FileSet> getFileSets() {
+		return fileSets.values();
+	}
+
+	public int size() {
+		return fileSets.size();
+	}
+
+	/**
+	 * Files found when the directory is scanned resume from their saved
+	 * position. The ones without it are read from the beginning if they were
+	 * created while the source was stopped, otherwise they remember their
+	 * current length so nothing appended from now on is skipped. They are
+	 * opened by their first read, so a large directory does not hold a handle
+	 * for every file.
+	 */
+	private void restorePosition(FileSet fileSet, String startFrom, long size)
+			throws IOException {
+
+		if (fileSet.isCompressed()) {
+			restoreCompressedPosition(fileSet, startFrom);
+			return;
+		}
+
+		if ("begin".equals(startFrom))
+			return;
+
+		Long position = positionStore == null ? null : positionStore
+				.getPosition(fileSet.getFileKey(), fileSet.getFilePath());
+
+		// The file was replaced by a shorter one with the same inode
+		if (position != null) {
+			long length = size >= 0 ? size : Files.size(fileSet.getFilePath());
+			if (position > length) {
+				LOGGER.warn("File {} is shorter than its saved position {}, "
+						+ "reading it from the beginning", fileSet.getFilePath(),
+						position);
+				position = 0L;
+			}
+		}
+
+		if ("end".equals(startFrom)) {
+			if (position == null) {
+				position = positionStore != null && positionStore.isRecovered() ? 0L
+						: size >= 0 ? size : Files.size(fileSet.getFilePath());
+				if (positionStore != null)
+					positionStore.update(fileSet.getFileKey(),
+							fileSet.getFilePath(), position);
+			}
+			fileSet.setSavedPosition(position);
+		} else if (position != null) {
+			fileSet.close();
+			fileSet.setSavedPosition(position);
+			fileSet.open();
+		}
+	}
+
+	/**
+	 * Compressed files are read once from the beginning. The ones found when
+	 * the directory is scanned resume from their saved position, are read if
+	 * they were created while the source was stopped and are skipped
+	 * otherwise.
+	 */
+	private void restoreCompressedPosition(FileSet fileSet, String startFrom) {
+
+		Long position = positionStore == null ? null : positionStore
+				.getPosition(fileSet.getFileKey(), fileSet.getFilePath());
+
+		if (position == null) {
+			if ("end".equals(startFrom)) {
+				position = positionStore != null && positionStore.isRecovered() ? 0L
+						: FileSet.COMPLETED;
+				if (positionStore != null)
+					positionStore.update(fileSet.getFileKey(),
+							fileSet.getFilePath(), position);
+			} else {
+				position = 0L;
+			}
+		}
+		fileSet.setSavedPosition(position);
+	}
+}
@@ -21,12 +21,11 @@ package org.apache.flume.source.taildirectory;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.flume.Transaction;
 import org.slf4j.Logger;
@@ -35,19 +34,70 @@ import org.slf4j.LoggerFactory;
 public class FileSet {
 	private static final Logger LOGGER = LoggerFactory.getLogger(FileSet.class);
 	private BufferedReader bufferedReader;
-	private RandomAccessFile rReader;
+	private AbstractLineReader reader;
+	private int bufferSize;
+	private int maxLineBytes;
+	private LineReader.LongLinePolicy longLinePolicy = LineReader.LongLinePolicy.TRUNCATE;
 	private Transaction transaction;
-	private List<String> bufferList;
-	private Map<String, String> headers;
+	// Lines of the event being built joined by a line separator. The first
+	// line is left in the reader until the next read would overwrite it, so
+	// a single line event is copied only once, into its body.
+	private byte[] eventBuffer;
+	private int lineCount;
+	private int bufferBytes;
+	private byte[] firstLine;
+	private int firstLineOffset;
+	private BodyTranscoder transcoder;
+	// Headers shared by the events of the file, built again once it moves
+	private volatile CachedHeaders headers;
 	private long lastAppendTime;
-	private Path filePath;
-	private boolean fileIsOpen;
-	private File file;
+	private volatile Path filePath;
+	private volatile boolean fileIsOpen;
+	private final AtomicBoolean readQueued = new AtomicBoolean();
+	private volatile File file;
+	private String fileKey;
+	// Offset where reading resumes when the file is opened again
+	private long savedPosition = -1;
+	// Offset right after the last line added to the buffer
+	private long bufferPosition;
+	// Offset and number of the first line of the buffered event
+	private long eventPosition;
+	private long eventLineNumber;
+	// Offset and number of the last line read, numbers start at 1 where the
+	// file started being read
+	private long linePosition;
+	private long lineNumber;
+	// Offset of the next byte to read, -1 if unknown. Both are written only
+	// by the reader of the file and read by the metrics without locking.
+	private volatile long readPosition = -1;
+	private volatile long bytesRead;
+	// Modification time of the file when the buffered lines were read
+	private long lastModified;
+	// Renamed or deleted file still read until its writer moves to the new one
+	private volatile boolean rotated;
+	private volatile boolean released;
+	// Rotated file that has to be read to its end before this one
+	private volatile FileSet predecessor;
+
+	private static final byte LINE_SEPARATOR = '\n';
+	private static final int EVENT_BUFFER_SIZE = 1024;
+	// Larger event buffers are dropped once their event is sent
+	private static final int MAX_KEPT_EVENT_BUFFER_SIZE = 64 * 1024;
+
+	// Saved position of a compressed file that has been read to its end
+	public static final long COMPLETED = Long.MAX_VALUE;
+
+	private boolean compressed;
 
 	public FileSet(Path filePath, String startFrom) throws IOException {
+		this(filePath, startFrom, LineReader.DEFAULT_BUFFER_SIZE);
+	}
+
+	public FileSet(Path filePath, String startFrom, int bufferSize)
+			throws IOException {
 
-		this.bufferList = new ArrayList<String>();
-		this.headers = new HashMap<String, String>();
+		this.eventBuffer = new byte[EVENT_BUFFER_SIZE];
+		this.bufferSize = bufferSize;
 		this.lastAppendTime = System.currentTimeMillis();
 		this.filePath = filePath;
 		
@@ -56,47 +106,95 @@ public class FileSet {
 		if ("end".equals(startFrom)) {
 			fileIsOpen = false;
 		} else {
-			rReader = new RandomAccessFile(file, "r");
+			LineReader lineReader = new LineReader(file, bufferSize);
+			reader = lineReader;
 			fileIsOpen = true;
 			if ("begin".equals(startFrom)) {
-				rReader.seek(0);
+				lineReader.seek(0);
 			} else if ("lastLine".equals(startFrom)) {
-				seekToLastLine(rReader);
+				lineReader.seekToLastLine();
 			}
+			bufferPosition = reader.getPosition();
+			readPosition = bufferPosition;
 
 			LOGGER.debug("File length --> " + file.length());
-			LOGGER.debug("File pointer --> " + rReader.getFilePointer());
+			LOGGER.debug("File pointer --> " + reader.getPosition());
 			LOGGER.debug("FileSet has been created " + filePath);
 		}
 	}
 
-	// This method is use to avoid lost last line log
-	private void seekToLastLine(RandomAccessFile rReader) throws IOException {
-
-		long fileLength = rReader.length() - 1;
-		long filePointer = fileLength;
-		boolean posReached = false;
-		int readByte = 0;
-
-		while (filePointer != -1 && !posReached) {
-			rReader.seek(filePointer);
-			readByte = rReader.readByte();
-			if (readByte == 0xA) {
-				if (filePointer != fileLength) {
-					posReached = true;
-					rReader.seek(filePointer);
-				}
-			} else if (readByte == 0xD && filePointer != fileLength - 1) {
-				posReached = true;
-				rReader.seek(filePointer);
-			}
+	/**
+	 * Limits the lines read from the file, see
+	 * {@link LineReader#setMaxLineBytes(int, LineReader.LongLinePolicy)}
+	 */
+	public void setMaxLineBytes(int maxLineBytes,
+			LineReader.LongLinePolicy policy) {
+		this.maxLineBytes = maxLineBytes;
+		this.longLinePolicy = policy;
+		if (reader != null)
+			reader.setMaxLineBytes(maxLineBytes, policy);
+	}
 
-			filePointer--;
+	/**
+	 * Lines longer than the limit read since the last call
+	 */
+	public int drainLongLines() {
+		return reader == null ? 0 : reader.drainLongLines();
+	}
+
+	/**
+	 * Moves to the next complete line of the file, returns false if there is
+	 * none yet. The line is only valid until the next read.
+	 */
+	public boolean readLine() throws IOException {
+		keepLines();
+		long start = reader.getPosition();
+		boolean read = reader.readLine();
+		if (read) {
+			linePosition = start;
+			lineNumber++;
+			long position = reader.getPosition();
+			bytesRead += position - readPosition;
+			readPosition = position;
 		}
+		return read;
 	}
 
-	public String readLine() throws IOException {
-		return rReader.readLine();
+	public byte[] getLineArray() {
+		return reader.getLineArray();
+	}
+
+	public int getLineOffset() {
+		return reader.getLineOffset();
+	}
+
+	public int getLineLength() {
+		return reader.getLineLength();
+	}
+
+	/**
+	 * True if the open file is now shorter than the offset already read
+	 */
+	public boolean isTruncated() throws IOException {
+		return reader instanceof LineReader
+				&& ((LineReader) reader).isTruncated();
+	}
+
+	/**
+	 * Reads the file again from the beginning, the lines still buffered must
+	 * be sent before
+	 */
+	public void restart() {
+		LOGGER.info("File {} was truncated, reading from the beginning",
+				filePath);
+		reader.seek(0);
+		bufferPosition = 0;
+		readPosition = 0;
+		lineNumber = 0;
+	}
+
+	public long length() {
+		return file.length();
 	}
 
 	public long getLastAppendTime() {
@@ -107,57 +205,151 @@ public class FileSet {
 		this.lastAppendTime = lastAppendTime;
 	}
 
-	public boolean appendLine(String buffer) {
-		boolean ret = bufferList.add(buffer);
-		if (ret) {
-			lastAppendTime = System.currentTimeMillis();
+	/**
+	 * Adds the last line read to the event being built
+	 */
+	public void appendLine() {
+		appendLine(reader.getLineArray(), reader.getLineOffset(),
+				reader.getLineLength());
+	}
+
+	public void appendLine(byte[] line) {
+		appendLine(line, 0, line.length);
+	}
+
+	private void appendLine(byte[] array, int offset, int length) {
+		if (lineCount == 0) {
+			firstLine = array;
+			firstLineOffset = offset;
+			bufferBytes = length;
+			eventPosition = linePosition;
+			eventLineNumber = lineNumber;
+		} else {
+			keepLines();
+			ensureCapacity(bufferBytes + 1 + length);
+			eventBuffer[bufferBytes++] = LINE_SEPARATOR;
+			System.arraycopy(array, offset, eventBuffer, bufferBytes, length);
+			bufferBytes += length;
 		}
+		lineCount++;
+		lastAppendTime = System.currentTimeMillis();
+		bufferPosition = reader.getPosition();
+	}
+
+	/**
+	 * Copies the first line out of the reader before it is overwritten
+	 */
+	private void keepLines() {
+		if (firstLine == null)
+			return;
+
+		ensureCapacity(bufferBytes);
+		System.arraycopy(firstLine, firstLineOffset, eventBuffer, 0, bufferBytes);
+		firstLine = null;
+	}
 
-		return ret;
+	private void ensureCapacity(int capacity) {
+		if (capacity > eventBuffer.length)
+			eventBuffer = Arrays.copyOf(eventBuffer,
+					Math.max(eventBuffer.length * 2, capacity));
 	}
 
 	public int getLineSize() {
-		return bufferList.size();
+		return lineCount;
 	}
 
-	public StringBuilder getAllLines() {
+	public boolean isEmpty() {
+		return lineCount == 0;
+	}
 
-		StringBuilder sb = new StringBuilder();
+	/**
+	 * Size of the buffered lines joined by a line separator
+	 */
+	public int getBufferBytes() {
+		return bufferBytes;
+	}
 
-		for (int i = 0; i < bufferList.size(); i++) {
-			sb.append(bufferList.get(i));
-		}
-		return sb;
+	/**
+	 * Returns the buffered lines joined by a line separator in a new array,
+	 * converted to the output charset if the file has a transcoder
+	 */
+	public byte[] getAllLines() {
+		byte[] array = firstLine != null ? firstLine : eventBuffer;
+		int offset = firstLine != null ? firstLineOffset : 0;
+
+		if (transcoder != null)
+			return transcoder.transcode(array, offset, bufferBytes);
+		return Arrays.copyOfRange(array, offset, offset + bufferBytes);
+	}
+
+	/**
+	 * Array holding the bytes of the buffered event as they were read, from
+	 * {@link #getEventOffset()} and {@link #getEventLength()} long. It is only
+	 * valid until the event is cleared or the next line is read.
+	 */
+	public byte[] getEventArray() {
+		return firstLine != null ? firstLine : eventBuffer;
+	}
+
+	public int getEventOffset() {
+		return firstLine != null ? firstLineOffset : 0;
+	}
+
+	public int getEventLength() {
+		return bufferBytes;
+	}
+
+	public BodyTranscoder getTranscoder() {
+		return transcoder;
+	}
+
+	public void setTranscoder(BodyTranscoder transcoder) {
+		this.transcoder = transcoder;
 	}
 
-	public void setHeader(String key, String value) {
-		headers.put(key, value);
+	/**
+	 * Offset of the first byte of the buffered event, an offset of the
+	 * decompressed data for compressed files
+	 */
+	public long getEventPosition() {
+		return eventPosition;
 	}
 
-	public String getHeader(String key) {
-		headers.get(key);
-		return null;
+	/**
+	 * Number of the first line of the buffered event, counted from where the
+	 * file started being read
+	 */
+	public long getEventLineNumber() {
+		return eventLineNumber;
 	}
 
 	public void clear() {
-		bufferList.clear();
-		headers.clear();
+		lineCount = 0;
+		bufferBytes = 0;
+		firstLine = null;
+		if (eventBuffer.length > MAX_KEPT_EVENT_BUFFER_SIZE)
+			eventBuffer = new byte[EVENT_BUFFER_SIZE];
 	}
 
 	public boolean isFileIsOpen() {
 		return fileIsOpen;
 	}
 
+	/**
+	 * Headers of the events of the file, null until they are set or once the
+	 * file has been renamed
+	 */
 	public Map<String, String> getHeaders() {
-		return headers;
+		CachedHeaders cached = headers;
+		return cached != null && cached.path == filePath ? cached.headers
+				: null;
 	}
 
-	public List<String> getBufferList() {
-		return bufferList;
-	}
-
-	public void setBufferList(List<String> bufferList) {
-		this.bufferList = bufferList;
+	/**
+	 * Caches the headers built for the file at the given path
+	 */
+	public void setHeaders(Path path, Map<String, String> headers) {
+		this.headers = new CachedHeaders(path, headers);
 	}
 
 	public Transaction getTransaction() {
@@ -177,16 +369,197 @@ public class FileSet {
 	}
 
 	public void close() throws IOException {
-		rReader.close();
+		if (reader != null) {
+			savedPosition = reader.getPosition();
+			reader.close();
+			reader = null;
+		}
 		fileIsOpen = false;
 	}
 
+	/**
+	 * Opens the file at the saved position if there is one, at the beginning
+	 * if the file is now shorter than that position or at its last line if the
+	 * position is unknown. Compressed files are decompressed up to the saved
+	 * position. Throws NoSuchFileException if the path now holds another
+	 * file, the events of its rename have not been handled yet.
+	 */
 	public void open() throws IOException {
-		rReader = new RandomAccessFile(file, "r");
-		seekToLastLine(rReader);
+		if (compressed) {
+			CompressedLineReader compressedReader = new CompressedLineReader(
+					file, bufferSize);
+			try {
+				compressedReader.skip(Math.max(0, savedPosition));
+			} catch (IOException e) {
+				compressedReader.close();
+				throw e;
+			}
+			reader = compressedReader;
+		} else {
+			openFile();
+		}
+		if (fileKey != null && !fileKey.equals(FileKeys.getFileKey(filePath))) {
+			reader.close();
+			reader = null;
+			throw new NoSuchFileException(filePath.toString(), null,
+					"replaced by another file");
+		}
+		reader.setMaxLineBytes(maxLineBytes, longLinePolicy);
+		bufferPosition = reader.getPosition();
+		readPosition = bufferPosition;
 		fileIsOpen = true;
 	}
 
+	private void openFile() throws IOException {
+		LineReader lineReader = new LineReader(file, bufferSize);
+		reader = lineReader;
+		if (savedPosition < 0) {
+			lineReader.seekToLastLine();
+		} else if (savedPosition > lineReader.length()) {
+			LOGGER.info("File {} is shorter than its saved position {}, "
+					+ "reading from the beginning", filePath, savedPosition);
+			lineReader.seek(0);
+		} else {
+			lineReader.seek(savedPosition);
+		}
+	}
+
+	/**
+	 * Offset right after the last line added to the buffer, this is where
+	 * reading has to resume once the buffer has been delivered
+	 */
+	public long getBufferPosition() {
+		return bufferPosition;
+	}
+
+	public long getSavedPosition() {
+		return savedPosition;
+	}
+
+	public void setSavedPosition(long savedPosition) {
+		this.savedPosition = savedPosition;
+		if (!fileIsOpen)
+			readPosition = savedPosition;
+	}
+
+	/**
+	 * Bytes of the file not read yet, 0 if the read position is unknown
+	 */
+	public long getLag() {
+		long position = readPosition;
+		if (position < 0 || position == COMPLETED)
+			return 0;
+		// The decompressed offset can not be compared with the file length
+		if (compressed)
+			return file.length();
+		return Math.max(0, file.length() - position);
+	}
+
+	/**
+	 * True if the file has bytes after the offset where it would be read or is
+	 * now shorter than it
+	 */
+	public boolean hasUnreadData() {
+		return hasUnreadData(compressed ? 0 : file.length());
+	}
+
+	/**
+	 * Same as {@link #hasUnreadData()} with the length already known
+	 */
+	public boolean hasUnreadData(long length) {
+		long position = readPosition;
+		if (compressed)
+			return position >= 0 && position != COMPLETED;
+		return position >= 0 && position != length;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Compressed files are decompressed while they are read, it has to be set
+	 * before the file is opened
+	 */
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+
+	/**
+	 * True if the open file is compressed and has been read to its end
+	 */
+	public boolean isFinished() {
+		return reader instanceof CompressedLineReader
+				&& ((CompressedLineReader) reader).isFinished();
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * Remembers when the file was last modified before reading it, used as the
+	 * append time of the lines read next
+	 */
+	public void updateLastModified() {
+		lastModified = file.lastModified();
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Marks the file as waiting to be read, returns false if it already was
+	 */
+	public boolean markReadQueued() {
+		return readQueued.compareAndSet(false, true);
+	}
+
+	public void clearReadQueued() {
+		readQueued.set(false);
+	}
+
+	public String getFileKey() {
+		return fileKey;
+	}
+
+	public void setFileKey(String fileKey) {
+		this.fileKey = fileKey;
+		headers = null;
+	}
+
+	public boolean isRotated() {
+		return rotated;
+	}
+
+	public void setRotated(boolean rotated) {
+		this.rotated = rotated;
+	}
+
+	/**
+	 * True once the file has been dropped, it must not be opened again
+	 */
+	public boolean isReleased() {
+		return released;
+	}
+
+	public void setReleased(boolean released) {
+		this.released = released;
+	}
+
+	public FileSet getPredecessor() {
+		return predecessor;
+	}
+
+	public void setPredecessor(FileSet predecessor) {
+		this.predecessor = predecessor;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
 	public Path getFilePath() {
 		return filePath;
 	}
@@ -199,4 +572,14 @@ public class FileSet {
 	public Path getFileName(){
 		return filePath.getFileName();
 	}
+
+	private static class CachedHeaders {
+		private final Path path;
+		private final Map<String, String> headers;
+
+		CachedHeaders(Path path, Map<String, String> headers) {
+			this.path = path;
+			this.headers = headers;
+		}
+	}
 }
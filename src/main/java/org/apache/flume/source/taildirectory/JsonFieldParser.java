@@ -0,0 +1,277 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.flume.Context;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Copies fields of an event holding a JSON object into headers. Fields are
+ * given by their path, nested fields with dots, e.g. {@code level} or
+ * {@code http.status}. The body is scanned once without building the object,
+ * fields not asked for are skipped. Strings are unescaped, other values are
+ * copied as they are written. Scanning stops at the first error of the body,
+ * a body that is not an object adds no header.
+ */
+public class JsonFieldParser implements LineParser {
+
+	private static final String FIELDS = "fields";
+	private static final String HEADER_PREFIX = "headerPrefix";
+
+	// Fields asked for, as a tree of their names
+	private Field root;
+
+	@Override
+	public void configure(Context context) {
+		String fields = context.getString(FIELDS, "").trim();
+		Preconditions.checkState(!fields.isEmpty(), FIELDS
+				+ " must list at least one field");
+		String headerPrefix = context.getString(HEADER_PREFIX, "");
+
+		root = new Field(new byte[0]);
+		for (String path : fields.split("\\s+")) {
+			Field field = root;
+			for (String name : path.split("\\.")) {
+				field = field.child(name.getBytes(Charset.forName("UTF-8")));
+			}
+			field.header = headerPrefix + path;
+		}
+	}
+
+	@Override
+	public void parse(byte[] array, int offset, int length, Charset charset,
+			Map<String, String> headers) {
+		Scanner scanner = new Scanner(array, offset + length, charset, headers);
+		int i = scanner.space(offset);
+		if (i < scanner.end && array[i] == '{')
+			scanner.object(i, root);
+	}
+
+	private static class Field {
+
+		private final byte[] name;
+		private final List<Field> children = new ArrayList<Field>(2);
+		// Header of the field, null if only its children are asked for
+		private String header;
+
+		Field(byte[] name) {
+			this.name = name;
+		}
+
+		Field child(byte[] childName) {
+			for (Field child : children) {
+				if (Arrays.equals(child.name, childName))
+					return child;
+			}
+			Field child = new Field(childName);
+			children.add(child);
+			return child;
+		}
+
+		Field find(byte[] array, int start, int end) {
+			int length = end - start;
+			for (int c = 0; c < children.size(); c++) {
+				Field child = children.get(c);
+				byte[] childName = child.name;
+				if (childName.length != length)
+					continue;
+				int j = 0;
+				while (j < length && childName[j] == array[start + j])
+					j++;
+				if (j == length)
+					return child;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Scans a body, every method returns the index right after what it read
+	 * or -1 if the body is not valid JSON
+	 */
+	private static class Scanner {
+
+		private final byte[] array;
+		private final int end;
+		private final Charset charset;
+		private final Map<String, String> headers;
+
+		Scanner(byte[] array, int end, Charset charset,
+				Map<String, String> headers) {
+			this.array = array;
+			this.end = end;
+			this.charset = charset;
+			this.headers = headers;
+		}
+
+		int space(int i) {
+			while (i < end && (array[i] == ' ' || array[i] == '\t'
+					|| array[i] == '\n' || array[i] == '\r'))
+				i++;
+			return i;
+		}
+
+		/**
+		 * Reads the object starting at i, the fields of the node are copied
+		 */
+		int object(int i, Field node) {
+			i = space(i + 1);
+			if (i < end && array[i] == '}')
+				return i + 1;
+
+			while (i < end) {
+				if (array[i] != '"')
+					return -1;
+				int keyStart = i + 1;
+				int keyEnd = string(i);
+				if (keyEnd < 0)
+					return -1;
+				i = space(keyEnd);
+				if (i >= end || array[i] != ':')
+					return -1;
+				i = space(i + 1);
+				if (i >= end)
+					return -1;
+
+				Field field = node.find(array, keyStart, keyEnd - 1);
+				int valueEnd;
+				if (field != null && !field.children.isEmpty() && array[i] == '{')
+					valueEnd = object(i, field);
+				else
+					valueEnd = value(i);
+				if (valueEnd < 0)
+					return -1;
+				if (field != null && field.header != null)
+					headers.put(field.header, text(i, valueEnd));
+
+				i = space(valueEnd);
+				if (i >= end)
+					return -1;
+				if (array[i] == '}')
+					return i + 1;
+				if (array[i] != ',')
+					return -1;
+				i = space(i + 1);
+			}
+			return -1;
+		}
+
+		int value(int i) {
+			byte b = array[i];
+			if (b == '"')
+				return string(i);
+			if (b == '{' || b == '[')
+				return nested(i);
+			while (i < end && array[i] != ',' && array[i] != '}'
+					&& array[i] != ']' && array[i] != ' ' && array[i] != '\t'
+					&& array[i] != '\r' && array[i] != '\n')
+				i++;
+			return i;
+		}
+
+		/**
+		 * Skips an object or an array
+		 */
+		int nested(int i) {
+			int depth = 0;
+			while (i < end) {
+				byte b = array[i];
+				if (b == '"') {
+					i = string(i);
+					if (i < 0)
+						return -1;
+					continue;
+				}
+				if (b == '{' || b == '[')
+					depth++;
+				else if ((b == '}' || b == ']') && --depth == 0)
+					return i + 1;
+				i++;
+			}
+			return -1;
+		}
+
+		int string(int i) {
+			for (i++; i < end; i++) {
+				if (array[i] == '\\')
+					i++;
+				else if (array[i] == '"')
+					return i + 1;
+			}
+			return -1;
+		}
+
+		/**
+		 * Text of a value, strings without their quotes and unescaped
+		 */
+		String text(int start, int valueEnd) {
+			if (array[start] != '"')
+				return new String(array, start, valueEnd - start, charset);
+
+			int i = start + 1, last = valueEnd - 1;
+			int escape = i;
+			while (escape < last && array[escape] != '\\')
+				escape++;
+			if (escape == last)
+				return new String(array, i, last - i, charset);
+			return unescape(new String(array, i, last - i, charset));
+		}
+
+		private static String unescape(String value) {
+			StringBuilder builder = new StringBuilder(value.length());
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c != '\\' || i + 1 == value.length()) {
+					builder.append(c);
+					continue;
+				}
+				c = value.charAt(++i);
+				switch (c) {
+				case 'n': builder.append('\n'); break;
+				case 't': builder.append('\t'); break;
+				case 'r': builder.append('\r'); break;
+				case 'b': builder.append('\b'); break;
+				case 'f': builder.append('\f'); break;
+				case 'u':
+					if (i + 4 < value.length()) {
+						try {
+							builder.append((char) Integer.parseInt(
+									value.substring(i + 1, i + 5), 16));
+							i += 4;
+							break;
+						} catch (NumberFormatException e) {
+							// Kept as written
+						}
+					}
+					builder.append('\\').append(c);
+					break;
+				default: builder.append(c);
+				}
+			}
+			return builder.toString();
+		}
+	}
+}
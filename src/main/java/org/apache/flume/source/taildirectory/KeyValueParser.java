@@ -0,0 +1,155 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import org.apache.flume.Context;
+
+/**
+ * Parses key=value pairs of an event into headers. Pairs are separated by
+ * spaces, a value may be quoted with double quotes to hold the separator, a
+ * backslash escapes the next character inside quotes. Keys are compared as
+ * bytes, only the keys and values turned into headers are decoded.
+ */
+public class KeyValueParser implements LineParser {
+
+	private static final String KEYS = "keys";
+	private static final String PAIR_SEPARATOR = "pairSeparator";
+	private static final String VALUE_SEPARATOR = "valueSeparator";
+	private static final String HEADER_PREFIX = "headerPrefix";
+
+	private static final byte QUOTE = '"';
+	private static final byte ESCAPE = '\\';
+
+	// Keys turned into headers, every key if null
+	private byte[][] keys;
+	private String[] keyHeaders;
+	private byte pairSeparator;
+	private byte valueSeparator;
+	private String headerPrefix;
+
+	@Override
+	public void configure(Context context) {
+		pairSeparator = separator(context, PAIR_SEPARATOR, " ");
+		valueSeparator = separator(context, VALUE_SEPARATOR, "=");
+		headerPrefix = context.getString(HEADER_PREFIX, "");
+
+		String keyList = context.getString(KEYS, "").trim();
+		if (keyList.isEmpty()) {
+			keys = null;
+		} else {
+			String[] names = keyList.split("\\s+");
+			keys = new byte[names.length][];
+			keyHeaders = new String[names.length];
+			for (int i = 0; i < names.length; i++) {
+				keys[i] = names[i].getBytes(Charset.forName("UTF-8"));
+				keyHeaders[i] = headerPrefix + names[i];
+			}
+		}
+	}
+
+	private static byte separator(Context context, String key, String defaultValue) {
+		String value = context.getString(key, defaultValue);
+		if (value.length() != 1 || value.charAt(0) > 127)
+			throw new IllegalArgumentException(key
+					+ " must be a single ASCII character");
+		return (byte) value.charAt(0);
+	}
+
+	@Override
+	public void parse(byte[] array, int offset, int length, Charset charset,
+			Map<String, String> headers) {
+		int end = offset + length;
+		int i = offset;
+
+		while (i < end) {
+			while (i < end && array[i] == pairSeparator)
+				i++;
+			int keyStart = i;
+			while (i < end && array[i] != valueSeparator && array[i] != pairSeparator)
+				i++;
+			if (i == end || array[i] == pairSeparator)
+				continue;
+
+			int keyEnd = i++;
+			int valueStart = i, valueEnd;
+			boolean quoted = i < end && array[i] == QUOTE;
+			boolean escaped = false;
+			if (quoted) {
+				valueStart = ++i;
+				while (i < end && array[i] != QUOTE) {
+					if (array[i] == ESCAPE && i + 1 < end) {
+						escaped = true;
+						i++;
+					}
+					i++;
+				}
+				valueEnd = i;
+				if (i < end)
+					i++;
+			} else {
+				while (i < end && array[i] != pairSeparator)
+					i++;
+				valueEnd = i;
+			}
+
+			String header = header(array, keyStart, keyEnd, charset);
+			if (header != null) {
+				String value = new String(array, valueStart, valueEnd - valueStart,
+						charset);
+				headers.put(header, escaped ? unescape(value) : value);
+			}
+		}
+	}
+
+	/**
+	 * Header of the key, null if it is not one of the configured keys
+	 */
+	private String header(byte[] array, int start, int end, Charset charset) {
+		if (keys == null)
+			return start == end ? null : headerPrefix
+					+ new String(array, start, end - start, charset);
+
+		int length = end - start;
+		for (int k = 0; k < keys.length; k++) {
+			byte[] key = keys[k];
+			if (key.length != length)
+				continue;
+			int j = 0;
+			while (j < length && key[j] == array[start + j])
+				j++;
+			if (j == length)
+				return keyHeaders[k];
+		}
+		return null;
+	}
+
+	private static String unescape(String value) {
+		StringBuilder builder = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == ESCAPE && i + 1 < value.length())
+				c = value.charAt(++i);
+			builder.append(c);
+		}
+		return builder.toString();
+	}
+}
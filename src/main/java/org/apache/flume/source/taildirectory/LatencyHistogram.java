@@ -0,0 +1,111 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in fixed buckets without locking. Percentiles are the upper
+ * bound of the bucket holding them.
+ */
+public class LatencyHistogram {
+
+	// Upper bounds of the buckets in milliseconds, the last one is unbounded
+	private static final long[] BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500,
+			1000, 2000, 5000, 10000, 30000, 60000, 300000, Long.MAX_VALUE };
+
+	private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length);
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long millis, long times) {
+		if (times < 1)
+			return;
+		if (millis < 0)
+			millis = 0;
+
+		int bucket = 0;
+		while (millis > BOUNDS[bucket])
+			bucket++;
+		counts.addAndGet(bucket, times);
+
+		long current;
+		while (millis > (current = max.get())) {
+			if (max.compareAndSet(current, millis))
+				break;
+		}
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BOUNDS.length; i++)
+			count += counts.get(i);
+		return count;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the upper bound of the bucket holding the given percentile, or
+	 * the max for the last bucket
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = snapshot();
+		long count = 0;
+		for (long c : snapshot)
+			count += c;
+		if (count == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= Math.max(rank, 1))
+				return i == BOUNDS.length - 1 ? getMax() : Math.min(BOUNDS[i],
+						getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * Returns the count of every bucket by its upper bound
+	 */
+	public Map<String, Long> getBuckets() {
+		long[] snapshot = snapshot();
+		Map<String, Long> buckets = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < BOUNDS.length; i++) {
+			String label = i == BOUNDS.length - 1 ? ">" + BOUNDS[i - 1] + "ms"
+					: "<=" + BOUNDS[i] + "ms";
+			buckets.put(label, snapshot[i]);
+		}
+		return buckets;
+	}
+
+	private long[] snapshot() {
+		long[] snapshot = new long[BOUNDS.length];
+		for (int i = 0; i < BOUNDS.length; i++)
+			snapshot[i] = counts.get(i);
+		return snapshot;
+	}
+}
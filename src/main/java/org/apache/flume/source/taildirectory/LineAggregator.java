@@ -0,0 +1,239 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.flume.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides which lines of a file belong to the same event. A line starts a new
+ * event if it matches the start pattern or if it does not match the
+ * continuation pattern, every other line is appended to the previous one.
+ * Without any pattern every line is an event.
+ * <p>
+ * Patterns made of ASCII characters are matched against the bytes of the line
+ * seen as single byte characters, the line is neither decoded nor copied.
+ * Patterns with other characters are matched against the line decoded with
+ * the charset of the files.
+ */
+public class LineAggregator {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(LineAggregator.class);
+
+	private static final String START_PATTERN = "multilineStartPattern";
+	private static final String CONTINUE_PATTERN = "multilineContinuePattern";
+	private static final String MAX_LINES = "multilineMaxLines";
+	private static final String MAX_BYTES = "multilineMaxBytes";
+	private static final String FLUSH_TIMEOUT = "multilineFlushTimeout";
+
+	private static final int CHARS_SIZE = 256;
+	// Larger decoded lines are not kept by the matchers of a thread
+	private static final int MAX_KEPT_CHARS_SIZE = 64 * 1024;
+
+	private final Pattern startPattern;
+	private final Pattern continuePattern;
+	private final int maxLines;
+	private final int maxBytes;
+	private final long flushTimeout;
+	private final Charset charset;
+	// Lines are decoded before they are matched
+	private final boolean decode;
+	// Every reader thread reuses its matchers for all the lines it reads
+	private final ThreadLocal<LineMatchers> matchers;
+
+	public LineAggregator(Context context, Charset charset) {
+		String start = context.getString(START_PATTERN);
+		String cont = context.getString(CONTINUE_PATTERN);
+
+		startPattern = start == null || start.isEmpty() ? null : Pattern
+				.compile(start);
+		continuePattern = cont == null || cont.isEmpty() ? null : Pattern
+				.compile(cont);
+		maxLines = context.getInteger(MAX_LINES, 500);
+		maxBytes = context.getInteger(MAX_BYTES, 1024 * 1024);
+		flushTimeout = context.getLong(FLUSH_TIMEOUT, 1000L);
+		this.charset = charset;
+		decode = !isAscii(start) || !isAscii(cont);
+		matchers = new ThreadLocal<LineMatchers>() {
+			@Override
+			protected LineMatchers initialValue() {
+				return new LineMatchers();
+			}
+		};
+
+		if (isEnabled())
+			LOGGER.info("Multiline events enabled, start pattern: {}, "
+					+ "continuation pattern: {}", start, cont);
+		if (decode)
+			LOGGER.info("Multiline patterns are not ASCII, lines are decoded "
+					+ "as {} before they are matched", charset.name());
+	}
+
+	private static boolean isAscii(String pattern) {
+		if (pattern == null)
+			return true;
+		for (int i = 0; i < pattern.length(); i++)
+			if (pattern.charAt(i) >= 0x80)
+				return false;
+		return true;
+	}
+
+	public boolean isEnabled() {
+		return startPattern != null || continuePattern != null;
+	}
+
+	/**
+	 * True if the last line read from the file is the first one of a new event
+	 */
+	public boolean startsEvent(FileSet fileSet) {
+		return startsEvent(fileSet.getLineArray(), fileSet.getLineOffset(),
+				fileSet.getLineLength());
+	}
+
+	public boolean startsEvent(byte[] array, int offset, int length) {
+		if (!isEnabled())
+			return true;
+
+		LineMatchers lineMatchers = matchers.get();
+		CharSequence line = lineMatchers.set(array, offset, length);
+
+		if (startPattern != null && lineMatchers.start.reset(line).find())
+			return true;
+
+		if (continuePattern != null)
+			return !lineMatchers.cont.reset(line).find();
+
+		return false;
+	}
+
+	/**
+	 * True if the lines buffered by the file can not grow any more
+	 */
+	public boolean isComplete(FileSet fileSet) {
+		return !isEnabled() || fileSet.getLineSize() >= maxLines
+				|| fileSet.getBufferBytes() >= maxBytes;
+	}
+
+	/**
+	 * True if the last line read can be appended to the buffered lines without
+	 * going over the max size of an event, the buffer of a file never grows
+	 * past it unless a single line is longer
+	 */
+	public boolean fits(FileSet fileSet) {
+		return fileSet.isEmpty()
+				|| fileSet.getBufferBytes() + 1 + fileSet.getLineLength() <= maxBytes;
+	}
+
+	/**
+	 * True if the buffered lines waited long enough for a continuation
+	 */
+	public boolean isExpired(FileSet fileSet, long now) {
+		return !fileSet.isEmpty()
+				&& now - fileSet.getLastAppendTime() >= flushTimeout;
+	}
+
+	public long getFlushTimeout() {
+		return flushTimeout;
+	}
+
+	private class LineMatchers {
+		private final ByteCharSequence line = new ByteCharSequence();
+		private final Matcher start = startPattern == null ? null
+				: startPattern.matcher(line);
+		private final Matcher cont = continuePattern == null ? null
+				: continuePattern.matcher(line);
+		private final CharsetDecoder decoder = decode ? charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE) : null;
+		private CharBuffer chars = decode ? CharBuffer.allocate(CHARS_SIZE)
+				: null;
+
+		/**
+		 * Returns the line to match, the bytes themselves or the line decoded
+		 */
+		CharSequence set(byte[] array, int offset, int length) {
+			if (!decode) {
+				line.set(array, offset, length);
+				return line;
+			}
+
+			int capacity = (int) (length * (double) decoder.maxCharsPerByte()) + 1;
+			if (chars.capacity() < capacity || chars.capacity() > MAX_KEPT_CHARS_SIZE)
+				chars = CharBuffer.allocate(Math.max(capacity, CHARS_SIZE));
+
+			chars.clear();
+			decoder.reset();
+			decoder.decode(ByteBuffer.wrap(array, offset, length), chars, true);
+			decoder.flush(chars);
+			chars.flip();
+			return chars;
+		}
+	}
+
+	/**
+	 * A line seen as single byte characters, so patterns match any byte
+	 * sequence without decoding it and without copying it
+	 */
+	static class ByteCharSequence implements CharSequence {
+		private byte[] array;
+		private int offset;
+		private int length;
+
+		void set(byte[] array, int offset, int length) {
+			this.array = array;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= length)
+				throw new IndexOutOfBoundsException(String.valueOf(index));
+			return (char) (array[offset + index] & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return toString().substring(start, end);
+		}
+
+		@Override
+		public String toString() {
+			char[] chars = new char[length];
+			for (int i = 0; i < length; i++)
+				chars[i] = (char) (array[offset + i] & 0xff);
+			return new String(chars);
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import org.apache.flume.conf.Configurable;
+
+/**
+ * Extracts headers from the body of an event before the event is built, so
+ * the body does not have to be parsed again by an interceptor. A parser is
+ * configured with the properties under its name and is called by every
+ * reader thread, it must be thread safe.
+ */
+public interface LineParser extends Configurable {
+
+	/**
+	 * Adds the headers found in the event body to the given map. The body is
+	 * the range of the array in the charset of the file, it must not be kept
+	 * or changed.
+	 */
+	void parse(byte[] array, int offset, int length, Charset charset,
+			Map<String, String> headers);
+}
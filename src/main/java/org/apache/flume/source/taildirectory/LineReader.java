@@ -0,0 +1,103 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads lines from a file as raw bytes through a FileChannel, the lines are
+ * split by {@link AbstractLineReader}. The file can be opened at its last
+ * line and checked for truncation since its length is known.
+ */
+public class LineReader extends AbstractLineReader {
+
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+
+	public LineReader(File file, int bufferSize) throws IOException {
+		super(bufferSize);
+		this.file = new RandomAccessFile(file, "r");
+		this.channel = this.file.getChannel();
+	}
+
+	@Override
+	protected int read(ByteBuffer buffer, long offset) throws IOException {
+		return channel.read(buffer, offset);
+	}
+
+	/**
+	 * Moves to the beginning of the last line of the file, a trailing
+	 * terminator is not considered the beginning of a new line.
+	 */
+	public void seekToLastLine() throws IOException {
+
+		long end = channel.size() - 1;
+		long lineStart = 0;
+		ByteBuffer buffer = getBuffer();
+		byte[] bytes = buffer.array();
+
+		if (end > 0) {
+			// A terminator at the very end belongs to the last line
+			long blockEnd = end;
+			boolean found = false;
+
+			while (blockEnd > 0 && !found) {
+				long blockStart = Math.max(0, blockEnd - buffer.capacity());
+				buffer.clear();
+				buffer.limit((int) (blockEnd - blockStart));
+				while (buffer.hasRemaining()
+						&& channel.read(buffer, blockStart + buffer.position()) > 0);
+				buffer.flip();
+
+				for (int i = buffer.limit() - 1; i >= 0; i--) {
+					if (bytes[i] == LF) {
+						lineStart = blockStart + i + 1;
+						found = true;
+						break;
+					}
+				}
+				blockEnd = blockStart;
+			}
+		}
+
+		seek(lineStart);
+	}
+
+	/**
+	 * True if the file is now shorter than what has already been read from it
+	 */
+	public boolean isTruncated() throws IOException {
+		return channel.size() < getReadPosition();
+	}
+
+	public long length() throws IOException {
+		return channel.size();
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+}
@@ -0,0 +1,63 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bytes of the events built by the directories of a source and not delivered
+ * to the channel yet. Reads pause while they are over the limit, so it can be
+ * exceeded by what a read in progress adds, up to a read quantum per reader
+ * thread.
+ */
+public class MemoryBudget {
+
+	private final long maxBytes;
+	private final AtomicLong used = new AtomicLong();
+
+	/**
+	 * A limit lower than 1 never pauses the reads
+	 */
+	public MemoryBudget(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public void reserve(long bytes) {
+		used.addAndGet(bytes);
+	}
+
+	public void release(long bytes) {
+		used.addAndGet(-bytes);
+	}
+
+	/**
+	 * True if the reads have to wait for buffered events to be delivered
+	 */
+	public boolean isExceeded() {
+		return maxBytes > 0 && used.get() >= maxBytes;
+	}
+
+	public long getUsed() {
+		return used.get();
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+}
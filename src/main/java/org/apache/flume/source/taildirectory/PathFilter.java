@@ -0,0 +1,124 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which files of a watched directory are tailed. A file is accepted if
+ * its absolute path matches the filename pattern, its name matches any of the
+ * include patterns and none of the exclude patterns. Include and exclude
+ * patterns are globs unless they are prefixed with "regex:". Every pattern is
+ * compiled once and the last decisions are cached by path.
+ */
+public class PathFilter {
+
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+
+	private static final String GLOB = "glob:";
+	private static final String REGEX = "regex:";
+
+	private final Pattern filenamePattern;
+	private final List<PathMatcher> includes;
+	private final List<PathMatcher> excludes;
+	private final Map<String, Boolean> decisions;
+
+	public PathFilter(String filenamePattern, String includes,
+			String excludes, final int cacheSize) {
+
+		this.filenamePattern = filenamePattern == null
+				|| filenamePattern.isEmpty() ? null : Pattern
+				.compile(filenamePattern);
+		this.includes = compile(includes);
+		this.excludes = compile(excludes);
+		this.decisions = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	private static List<PathMatcher> compile(String patterns) {
+		List<PathMatcher> matchers = new ArrayList<PathMatcher>();
+
+		if (patterns == null)
+			return matchers;
+
+		for (String pattern : patterns.trim().split("\\s+")) {
+			if (pattern.isEmpty())
+				continue;
+			if (!pattern.startsWith(GLOB) && !pattern.startsWith(REGEX))
+				pattern = GLOB + pattern;
+			matchers.add(FileSystems.getDefault().getPathMatcher(pattern));
+		}
+		return matchers;
+	}
+
+	public boolean accept(Path path) {
+
+		String key = path.toString();
+		Boolean decision;
+
+		synchronized (decisions) {
+			decision = decisions.get(key);
+		}
+
+		if (decision == null) {
+			decision = matches(path);
+			synchronized (decisions) {
+				decisions.put(key, decision);
+			}
+		}
+		return decision;
+	}
+
+	private boolean matches(Path path) {
+
+		if (filenamePattern != null
+				&& !filenamePattern.matcher(path.toString()).matches())
+			return false;
+
+		Path name = path.getFileName();
+		if (name == null)
+			return false;
+
+		if (!includes.isEmpty() && !matchesAny(includes, name))
+			return false;
+
+		return !matchesAny(excludes, name);
+	}
+
+	private static boolean matchesAny(List<PathMatcher> matchers, Path name) {
+		for (PathMatcher matcher : matchers) {
+			if (matcher.matches(name))
+				return true;
+		}
+		return false;
+	}
+}
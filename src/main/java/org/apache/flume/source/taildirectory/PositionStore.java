@@ -0,0 +1,246 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the byte offset of the data already delivered to the channel for every
+ * tailed file, keyed by its file key (inode) and path. Updates are kept in
+ * memory and written to disk asynchronously, all of them at once, every
+ * fsync interval.
+ */
+public class PositionStore {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(PositionStore.class);
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final String SEPARATOR = "\t";
+
+	private final Path positionFile;
+	private final long fsyncInterval;
+	private final Map<String, Position> positions;
+	private volatile boolean dirty;
+	private boolean recovered;
+	private ScheduledFuture<?> writeTask;
+
+	public PositionStore(Path positionFile, long fsyncInterval) {
+		this.positionFile = positionFile;
+		this.fsyncInterval = fsyncInterval;
+		this.positions = new ConcurrentHashMap<String, Position>();
+	}
+
+	public void start(ScheduledExecutorService scheduler) {
+		load();
+		writeTask = scheduler.scheduleWithFixedDelay(new WritePositions(),
+				fsyncInterval, fsyncInterval, TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		if (writeTask != null)
+			writeTask.cancel(false);
+		write();
+	}
+
+	/**
+	 * Returns the saved offset for the file or null if it is unknown. The key
+	 * must have been saved with the same path: renames seen by the source
+	 * update it, so another path means the file was renamed while the source
+	 * was stopped or its inode was reused by a new file.
+	 */
+	public Long getPosition(String fileKey, Path path) {
+		if (fileKey == null)
+			return null;
+
+		Position position = positions.get(fileKey);
+		if (position == null)
+			return null;
+
+		if (!position.path.equals(path.toString())) {
+			LOGGER.warn("Ignoring the position saved for {} with the same key "
+					+ "as {}, it was renamed while the source was stopped or "
+					+ "it is a new file", position.path, path);
+			return null;
+		}
+		return position.offset;
+	}
+
+	/**
+	 * Moves the saved offset of a file the source has seen renamed
+	 */
+	public void renamed(String fileKey, Path path) {
+		if (fileKey == null)
+			return;
+
+		Position position = positions.get(fileKey);
+		if (position != null && !position.path.equals(path.toString())) {
+			positions.put(fileKey, new Position(path.toString(), position.offset));
+			dirty = true;
+		}
+	}
+
+	public void update(String fileKey, Path path, long offset) {
+		if (fileKey == null)
+			return;
+
+		positions.put(fileKey, new Position(path.toString(), offset));
+		dirty = true;
+	}
+
+	/**
+	 * True if positions were loaded from a previous run, files unknown to it
+	 * have been created since then
+	 */
+	public boolean isRecovered() {
+		return recovered;
+	}
+
+	public void remove(String fileKey) {
+		if (fileKey == null)
+			return;
+
+		if (positions.remove(fileKey) != null)
+			dirty = true;
+	}
+
+	private void load() {
+		if (!Files.exists(positionFile))
+			return;
+		recovered = true;
+
+		try (BufferedReader reader = Files.newBufferedReader(positionFile,
+				CHARSET)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(SEPARATOR, 3);
+				if (fields.length != 3) {
+					LOGGER.warn("Ignoring malformed position entry: {}", line);
+					continue;
+				}
+				try {
+					positions.put(fields[0],
+							new Position(fields[2], Long.parseLong(fields[1])));
+				} catch (NumberFormatException e) {
+					LOGGER.warn("Ignoring malformed position entry: {}", line);
+				}
+			}
+			LOGGER.info("Loaded {} file positions from {}", positions.size(),
+					positionFile);
+		} catch (IOException e) {
+			LOGGER.error("Unable to load positions from " + positionFile, e);
+		}
+		prune();
+	}
+
+	/**
+	 * Drops the positions of the files deleted while the source was stopped,
+	 * their inodes may be reused by new files
+	 */
+	private void prune() {
+		int pruned = 0;
+		Iterator<Position> it = positions.values().iterator();
+		while (it.hasNext()) {
+			if (!Files.exists(Paths.get(it.next().path))) {
+				it.remove();
+				pruned++;
+			}
+		}
+		if (pruned > 0) {
+			dirty = true;
+			LOGGER.info("Dropped {} positions of files that no longer exist",
+					pruned);
+		}
+	}
+
+	/**
+	 * Writes every position to a temporary file, forces it to disk and
+	 * replaces the position file with it.
+	 */
+	synchronized void write() {
+		if (!dirty)
+			return;
+		dirty = false;
+
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Position> entry : positions.entrySet()) {
+			sb.append(entry.getKey()).append(SEPARATOR)
+					.append(entry.getValue().offset).append(SEPARATOR)
+					.append(entry.getValue().path).append('\n');
+		}
+
+		Path tmpFile = positionFile.resolveSibling(positionFile.getFileName()
+				+ ".tmp");
+		try {
+			if (positionFile.getParent() != null)
+				Files.createDirectories(positionFile.getParent());
+
+			try (FileChannel channel = FileChannel.open(tmpFile,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer buffer = CHARSET.encode(sb.toString());
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+				channel.force(true);
+			}
+			Files.move(tmpFile, positionFile,
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			dirty = true;
+			LOGGER.error("Unable to write positions to " + positionFile, e);
+		}
+	}
+
+	private static class Position {
+		private final String path;
+		private final long offset;
+
+		Position(String path, long offset) {
+			this.path = path;
+			this.offset = offset;
+		}
+	}
+
+	private class WritePositions implements Runnable {
+
+		@Override
+		public void run() {
+			write();
+		}
+	}
+}
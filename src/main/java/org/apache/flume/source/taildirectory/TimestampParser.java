@@ -0,0 +1,228 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.nio.charset.Charset;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.flume.Context;
+
+/**
+ * Parses the timestamp an event starts with into a header holding its epoch
+ * milliseconds, the header Flume sinks use to bucket events by time. Formats
+ * made of numeric fields ( yyyy, MM, dd, HH, mm, ss and SSS ) and literals are
+ * matched on the bytes of the body, any other format of
+ * {@link SimpleDateFormat} is parsed from the decoded prefix it can match.
+ */
+public class TimestampParser implements LineParser {
+
+	private static final String FORMAT = "format";
+	private static final String TIMEZONE = "timezone";
+	private static final String HEADER = "header";
+
+	private static final long MILLIS_PER_DAY = 24L * 3600 * 1000;
+
+	private String format;
+	private TimeZone timeZone;
+	private String header;
+	// Fields and literals of a numeric format, null if it is not one
+	private Token[] tokens;
+	// Longest text the format matches, the prefix decoded from every body
+	private int maxLength;
+	private ThreadLocal<SimpleDateFormat> dateFormats;
+
+	@Override
+	public void configure(Context context) {
+		format = context.getString(FORMAT, "yyyy-MM-dd HH:mm:ss,SSS");
+		String zone = context.getString(TIMEZONE);
+		timeZone = zone == null ? TimeZone.getDefault() : TimeZone.getTimeZone(zone);
+		header = context.getString(HEADER, "timestamp");
+		tokens = compile(format);
+
+		SimpleDateFormat sample = newDateFormat();
+		// Text of some dates as wide as they get plus room for long names
+		maxLength = Math.max(sample.format(new Date(-1L)).length(), sample
+				.format(new Date(1700000000000L)).length()) + 8;
+		dateFormats = new ThreadLocal<SimpleDateFormat>() {
+			@Override
+			protected SimpleDateFormat initialValue() {
+				return newDateFormat();
+			}
+		};
+	}
+
+	private SimpleDateFormat newDateFormat() {
+		SimpleDateFormat dateFormat = new SimpleDateFormat(format, Locale.ROOT);
+		dateFormat.setTimeZone(timeZone);
+		dateFormat.setLenient(false);
+		return dateFormat;
+	}
+
+	@Override
+	public void parse(byte[] array, int offset, int length, Charset charset,
+			Map<String, String> headers) {
+		long time;
+		if (tokens != null) {
+			time = parseNumeric(array, offset, offset + length);
+			if (time == Long.MIN_VALUE)
+				return;
+		} else {
+			String prefix = new String(array, offset, Math.min(length,
+					maxLength), charset);
+			Date date = dateFormats.get().parse(prefix, new ParsePosition(0));
+			if (date == null)
+				return;
+			time = date.getTime();
+		}
+		headers.put(header, String.valueOf(time));
+	}
+
+	/**
+	 * Epoch milliseconds of the numeric timestamp at the offset,
+	 * Long.MIN_VALUE if there is none
+	 */
+	private long parseNumeric(byte[] array, int offset, int end) {
+		int year = 1970, month = 1, day = 1, hour = 0, minute = 0, second = 0;
+		int millis = 0;
+		int i = offset;
+
+		for (Token token : tokens) {
+			if (token.width == 0) {
+				if (i >= end || array[i] != token.literal)
+					return Long.MIN_VALUE;
+				i++;
+				continue;
+			}
+			if (i + token.width > end)
+				return Long.MIN_VALUE;
+			int value = 0;
+			for (int j = 0; j < token.width; j++) {
+				int digit = array[i++] - '0';
+				if (digit < 0 || digit > 9)
+					return Long.MIN_VALUE;
+				value = value * 10 + digit;
+			}
+			switch (token.field) {
+			case 'y': year = value; break;
+			case 'M': month = value; break;
+			case 'd': day = value; break;
+			case 'H': hour = value; break;
+			case 'm': minute = value; break;
+			case 's': second = value; break;
+			default: millis = value;
+			}
+		}
+
+		if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+				|| hour > 23 || minute > 59 || second > 59)
+			return Long.MIN_VALUE;
+
+		long local = daysFromEpoch(year, month, day) * MILLIS_PER_DAY
+				+ ((hour * 60L + minute) * 60 + second) * 1000 + millis;
+		// A second lookup settles local times next to a daylight saving
+		// transition; times in the gap take the offset in force before it,
+		// as SimpleDateFormat does
+		int guess = timeZone.getOffset(local - timeZone.getRawOffset());
+		return local - timeZone.getOffset(local - guess);
+	}
+
+	private static int daysInMonth(int year, int month) {
+		if (month == 2)
+			return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+		return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+	}
+
+	/**
+	 * Days from 1970-01-01 to the date of the proleptic Gregorian calendar
+	 */
+	private static long daysFromEpoch(int year, int month, int day) {
+		long y = month <= 2 ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/**
+	 * Splits a format made of yyyy, MM, dd, HH, mm, ss, SSS and ASCII
+	 * literals, returns null for any other format
+	 */
+	private static Token[] compile(String format) {
+		List<Token> tokens = new ArrayList<Token>();
+		int i = 0;
+		while (i < format.length()) {
+			char c = format.charAt(i);
+			if (c == '\'') {
+				int close = format.indexOf('\'', i + 1);
+				if (close <= i + 1)
+					return null;
+				for (int j = i + 1; j < close; j++) {
+					if (format.charAt(j) > 127)
+						return null;
+					tokens.add(new Token((byte) format.charAt(j)));
+				}
+				i = close + 1;
+			} else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+				int j = i;
+				while (j < format.length() && format.charAt(j) == c)
+					j++;
+				int width = j - i;
+				if (width != ("yMdHmsS".indexOf(c) < 0 ? -1
+						: c == 'y' ? 4 : c == 'S' ? 3 : 2))
+					return null;
+				tokens.add(new Token(c, width));
+				i = j;
+			} else {
+				if (c > 127)
+					return null;
+				tokens.add(new Token((byte) c));
+				i++;
+			}
+		}
+		return tokens.toArray(new Token[tokens.size()]);
+	}
+
+	private static class Token {
+
+		private final char field;
+		// Digits of the field, 0 for a literal
+		private final int width;
+		private final byte literal;
+
+		Token(char field, int width) {
+			this.field = field;
+			this.width = width;
+			this.literal = 0;
+		}
+
+		Token(byte literal) {
+			this.field = 0;
+			this.width = 0;
+			this.literal = literal;
+		}
+	}
+}
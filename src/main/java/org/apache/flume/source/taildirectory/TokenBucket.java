@@ -0,0 +1,64 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits a rate to a number of units per second, up to one second of units
+ * can be used at once. Units are taken after they have been used, so the
+ * bucket may go into debt, and the next use has to wait until it is paid.
+ */
+public class TokenBucket {
+
+	private final double rate;
+	private double tokens;
+	private long lastRefill;
+
+	public TokenBucket(long ratePerSecond) {
+		this.rate = ratePerSecond;
+		this.tokens = ratePerSecond;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Takes the units used
+	 */
+	public synchronized void consume(long units) {
+		refill();
+		tokens -= units;
+	}
+
+	/**
+	 * Milliseconds to wait before the next use, 0 if it can be used now
+	 */
+	public synchronized long delay() {
+		refill();
+		if (tokens > 0)
+			return 0;
+		return Math.max(1L, (long) Math.ceil((1 - tokens) * 1000 / rate));
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(rate, tokens + (now - lastRefill) * rate
+				/ TimeUnit.SECONDS.toNanos(1));
+		lastRefill = now;
+	}
+}
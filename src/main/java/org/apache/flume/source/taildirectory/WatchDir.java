@@ -1,5 +1,6 @@
 package org.apache.flume.source.taildirectory;
 
+import java.nio.charset.Charset;
 import java.nio.file.*;
 import java.nio.file.WatchEvent.Kind;
 
@@ -8,20 +9,25 @@ import static java.nio.file.LinkOption.*;
 
 import java.nio.file.attribute.*;
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
 import java.util.*;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.flume.ChannelException;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.flume.event.EventBuilder;
-import org.apache.flume.source.AbstractSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.regex.*;
-
 public class WatchDir {
 	
 	private static final String UNLOCK_TIME = "unlockFileTime";
@@ -29,58 +35,187 @@ public class WatchDir {
 	private static final String BASENAME_HEADER = "basenameHeader";
 	private static final String FILE_HEADER_KEY = "fileHeaderKey";
 	private static final String BASENAME_HEADER_KEY = "basenameHeaderKey";
+	private static final String OFFSET_HEADER = "offsetHeader";
+	private static final String LINE_HEADER = "lineHeader";
+	private static final String INODE_HEADER = "inodeHeader";
+	private static final String OFFSET_HEADER_KEY = "offsetHeaderKey";
+	private static final String LINE_HEADER_KEY = "lineHeaderKey";
+	private static final String INODE_HEADER_KEY = "inodeHeaderKey";
 	private static final String FOLLOW_LINKS = "followLinks";
+	private static final String BATCH_SIZE = "batchSize";
+	private static final String BATCH_TIMEOUT = "batchTimeout";
+	private static final String READ_BUFFER_SIZE = "readBufferSize";
+	private static final String READ_QUANTUM_LINES = "readQuantumLines";
+	private static final String READ_QUANTUM_BYTES = "readQuantumBytes";
+	private static final String MAX_LINE_BYTES = "maxLineBytes";
+	private static final String LONG_LINE_POLICY = "longLinePolicy";
+	private static final String WATCH_MODE = "watchMode";
+	private static final String POLL_MIN_INTERVAL = "pollMinInterval";
+	private static final String POLL_MAX_INTERVAL = "pollMaxInterval";
+	private static final String POLL_FILE_SYSTEMS = "pollFileSystems";
+	private static final String BACKPRESSURE = "backpressure";
+	private static final String BACKOFF_INITIAL_DELAY = "backoffInitialDelay";
+	private static final String BACKOFF_MAX_DELAY = "backoffMaxDelay";
+	private static final String COMPRESSED_FILES = "compressedFiles";
+	private static final String INPUT_CHARSET = "inputCharset";
+	private static final String OUTPUT_CHARSET = "outputCharset";
+	private static final String PARSERS = "parsers";
+	private static final String PARSER_TYPE = "type";
+
+	private static final String MODE_WATCH = "watch";
+	private static final String MODE_POLL = "poll";
+	private static final String MODE_HYBRID = "hybrid";
+	private static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+	private static final String DEFAULT_POLL_FILE_SYSTEMS = "nfs nfs4 cifs smbfs smb3 fuse.sshfs 9p";
 
-	private final WatchService watcher;
+	private final Path dir;
+	private final WatchDispatcher dispatcher;
 	private final Map<WatchKey, Path> keys;
-	private AbstractSource source;
-	private FileSetMap fileSetMap;
-	private Map<String, String> filePathsAndKeys;
+	private final Set<Path> registeredDirs;
+	private final Map<Path, Map<Path, PolledFile>> polledDirs;
+	private DirectoryTailSource source;
+	private FileRegistry registry;
+	// Renamed or deleted files by their former path, waiting for a new file
+	private Map<String, FileSet> rotatedFiles;
 	private long timeToUnlockFile;
 	private DirectoryTailSourceCounter counter;
 	private boolean fileHeader, basenameHeader;
 	private String fileHeaderKey, basenameHeaderKey;
+	private boolean offsetHeader, lineHeader, inodeHeader;
+	private String offsetHeaderKey, lineHeaderKey, inodeHeaderKey;
 	private boolean followLinks;
-	private String filenamePattern;
+	private PathFilter filter;
+	private int batchSize;
+	private long batchTimeout;
+	private int readBufferSize;
+	// Lines and bytes a file is read before the other files of its reader
+	private int readQuantumLines;
+	private long readQuantumBytes;
+	private int maxLineBytes;
+	private LineReader.LongLinePolicy longLinePolicy;
+	// Read rate caps of the directory, null if unlimited
+	private TokenBucket lineBucket, byteBucket;
+	private FileReaderPool readerPool;
+	private FileReaderPool decompressPool;
+	private FileHandlePool handlePool;
+	private ForkJoinPool scanPool;
+	private MemoryBudget memoryBudget;
+	private final Object batchLock = new Object();
+	// Held while events are sent so they reach the channel in order, readers
+	// only wait for it once the batch is full
+	private final Object deliveryLock = new Object();
+	private List<Event> eventBatch;
+	// File and position after each event of the batch, null once released
+	private FileSet[] batchFileSets;
+	private long[] batchPositions;
+	private long[] batchAppendTimes;
+	// Compressed files read to their end and the events of the batch before it
+	private Map<FileSet, Integer> completedFiles;
+	// Length of the files released once read to their end by their last path,
+	// their archives are not read again
+	private final Map<String, Long> drainedFiles =
+			new LinkedHashMap<String, Long>() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+					return size() > MAX_DRAINED_FILES;
+				}
+			};
+	private long batchStartTime;
+	// Bytes of the bodies of the batch, reserved in the memory budget
+	private long batchBytes;
+	private PositionStore positionStore;
+	private LineAggregator aggregator;
+	private String watchMode;
+	private long pollMinInterval, pollMaxInterval;
+	private Set<String> pollFileSystems;
+	private boolean backpressure;
+	private long backoffInitialDelay, backoffMaxDelay;
+	private boolean compressedFiles;
+	private Charset inputCharset, outputCharset;
+	private LineParser[] parsers;
+	// Bodies are the bytes of the file unless the charsets differ
+	private boolean transcode;
+	private final ScheduledExecutorService scheduler;
+	private final List<ScheduledFuture<?>> tasks;
+	private volatile boolean stopped;
 
 	private static final Logger LOGGER= LoggerFactory
 			.getLogger(WatchDir.class);
 
-	private final ScheduledExecutorService scheduler = Executors
-			.newScheduledThreadPool(2);
+	private static final long STOP_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+	// Time a compressed file must not change before it is read
+	private static final long COMPRESSED_SETTLE_TIME = 1000L;
+	// Released files remembered to skip their archives
+	private static final int MAX_DRAINED_FILES = 1000;
+	// Delay before a read paused by the memory budget checks it again
+	private static final long MEMORY_WAIT = 50L;
 
 	/**
-	 * Creates a WatchService and registers the given directory
+	 * Registers the given directory with the watch service, the reader pool
+	 * and the scheduler shared by the source
 	 */
-	WatchDir(Path dir, String filenamePattern, AbstractSource source, Context context,
-			DirectoryTailSourceCounter counter) throws IOException {
+	WatchDir(WatchDirConfig config, DirectoryTailSource source, Context context)
+			throws IOException {
 
 		LOGGER.trace("WatchDir: WatchDir");
 
-		this.filenamePattern = filenamePattern;
+		this.dir = FileSystems.getDefault().getPath(config.getDir());
+		this.filter = config.getFilter();
 		loadConfiguration(context);
+		if (config.getMaxLinesPerSecond() > 0)
+			this.lineBucket = new TokenBucket(config.getMaxLinesPerSecond());
+		if (config.getMaxBytesPerSecond() > 0)
+			this.byteBucket = new TokenBucket(config.getMaxBytesPerSecond());
+		this.aggregator = new LineAggregator(context, inputCharset);
 	
-		this.counter = counter;
-
 		this.source = source;
+		this.counter = source.getCounter();
+		this.positionStore = source.getPositionStore();
+		this.dispatcher = source.getDispatcher();
+		this.scheduler = source.getScheduler();
+		this.readerPool = source.getReaderPool();
+		this.decompressPool = source.getDecompressPool();
+		this.handlePool = source.getHandlePool();
+		this.scanPool = source.getScanPool();
+		this.memoryBudget = source.getMemoryBudget();
+		this.tasks = new ArrayList<ScheduledFuture<?>>();
+
+		this.eventBatch = new ArrayList<Event>(batchSize);
+		this.batchFileSets = new FileSet[batchSize];
+		this.batchPositions = new long[batchSize];
+		this.batchAppendTimes = new long[batchSize];
+		this.completedFiles = new HashMap<FileSet, Integer>();
 
-		this.watcher = FileSystems.getDefault().newWatchService();
-		this.keys = new HashMap<WatchKey, Path>();
+		this.keys = new ConcurrentHashMap<WatchKey, Path>();
+		this.registeredDirs = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+		this.polledDirs = new ConcurrentHashMap<Path, Map<Path, PolledFile>>();
 
-		this.filePathsAndKeys = new HashMap<String, String>();
-		this.fileSetMap = new FileSetMap(filePathsAndKeys);
+		this.registry = new FileRegistry(readBufferSize, maxLineBytes,
+				longLinePolicy, positionStore);
+		this.rotatedFiles = new HashMap<String, FileSet>();
 
 		LOGGER.info("Scanning directory: " + dir);
-		registerAll(dir);
-		
-		Thread t = new Thread(new WatchDirRunnable());
-		t.start();
+		registerAll(dir, true);
 
 		final Runnable lastAppend = new CheckLastTimeModified();
-		scheduler.scheduleAtFixedRate(lastAppend, 0, 1, TimeUnit.MINUTES);
+		tasks.add(scheduler.scheduleAtFixedRate(lastAppend, 0, 1, TimeUnit.MINUTES));
+
+		final Runnable flushBatch = new FlushBatchOnTimeout();
+		tasks.add(scheduler.scheduleAtFixedRate(flushBatch, batchTimeout, batchTimeout,
+				TimeUnit.MILLISECONDS));
 
-		final Runnable printThroughput = new PrintThroughput();
-		scheduler.scheduleAtFixedRate(printThroughput, 0, 5, TimeUnit.SECONDS);
+		if (!MODE_WATCH.equals(watchMode))
+			scheduler.schedule(new PollDirectories(), pollMinInterval,
+					TimeUnit.MILLISECONDS);
+
+		if (aggregator.isEnabled()) {
+			final Runnable flushLines = new FlushLinesOnTimeout();
+			long period = Math.max(1L, aggregator.getFlushTimeout() / 2);
+			tasks.add(scheduler.scheduleAtFixedRate(flushLines, period, period,
+					TimeUnit.MILLISECONDS));
+		}
 	}
 	
 	private void loadConfiguration(Context context) {
@@ -90,7 +225,171 @@ public class WatchDir {
 		fileHeaderKey = new String(context.getString(FILE_HEADER_KEY, "file"));
 		basenameHeader = new Boolean(context.getBoolean(BASENAME_HEADER, false));
 		basenameHeaderKey = new String(context.getString(BASENAME_HEADER_KEY, "basename"));
+		offsetHeader = context.getBoolean(OFFSET_HEADER, false);
+		offsetHeaderKey = context.getString(OFFSET_HEADER_KEY, "offset");
+		lineHeader = context.getBoolean(LINE_HEADER, false);
+		lineHeaderKey = context.getString(LINE_HEADER_KEY, "line");
+		inodeHeader = context.getBoolean(INODE_HEADER, false);
+		inodeHeaderKey = context.getString(INODE_HEADER_KEY, "inode");
 		followLinks = new Boolean(context.getBoolean(FOLLOW_LINKS, false));
+		batchSize = context.getInteger(BATCH_SIZE, 100);
+		batchTimeout = context.getLong(BATCH_TIMEOUT, 1000L);
+		readBufferSize = context.getInteger(READ_BUFFER_SIZE,
+				LineReader.DEFAULT_BUFFER_SIZE);
+		readQuantumLines = context.getInteger(READ_QUANTUM_LINES, 1000);
+		readQuantumBytes = context.getLong(READ_QUANTUM_BYTES, 1024L * 1024);
+		maxLineBytes = context.getInteger(MAX_LINE_BYTES,
+				LineReader.DEFAULT_MAX_LINE_BYTES);
+		longLinePolicy = loadLongLinePolicy(context.getString(LONG_LINE_POLICY,
+				"truncate"));
+		watchMode = context.getString(WATCH_MODE, MODE_WATCH);
+		pollMinInterval = context.getLong(POLL_MIN_INTERVAL, 500L);
+		pollMaxInterval = context.getLong(POLL_MAX_INTERVAL, 10000L);
+		backpressure = context.getBoolean(BACKPRESSURE, true);
+		backoffInitialDelay = context.getLong(BACKOFF_INITIAL_DELAY, 250L);
+		backoffMaxDelay = context.getLong(BACKOFF_MAX_DELAY, 5000L);
+		compressedFiles = context.getBoolean(COMPRESSED_FILES, false);
+		pollFileSystems = new HashSet<String>(Arrays.asList(context.getString(
+				POLL_FILE_SYSTEMS, DEFAULT_POLL_FILE_SYSTEMS).trim().split("\\s+")));
+		inputCharset = loadCharset(INPUT_CHARSET, context.getString(
+				INPUT_CHARSET, DEFAULT_CHARSET.name()), DEFAULT_CHARSET);
+		if (!BodyTranscoder.isAsciiCompatible(inputCharset)) {
+			LOGGER.warn(INPUT_CHARSET + " must encode a line feed as a single "
+					+ "byte, using " + DEFAULT_CHARSET.name());
+			inputCharset = DEFAULT_CHARSET;
+		}
+		outputCharset = loadCharset(OUTPUT_CHARSET, context.getString(
+				OUTPUT_CHARSET, inputCharset.name()), inputCharset);
+		if (!outputCharset.canEncode()) {
+			LOGGER.warn(OUTPUT_CHARSET + " " + outputCharset.name()
+					+ " can not be encoded, using " + inputCharset.name());
+			outputCharset = inputCharset;
+		}
+		transcode = !inputCharset.equals(outputCharset);
+		parsers = loadParsers(context);
+
+		if (batchSize < 1) {
+			LOGGER.warn(BATCH_SIZE + " must be greater than 0, using 1");
+			batchSize = 1;
+		}
+		if (batchTimeout < 1) {
+			LOGGER.warn(BATCH_TIMEOUT + " must be greater than 0, using 1000 ms");
+			batchTimeout = 1000L;
+		}
+		if (readBufferSize < 1) {
+			LOGGER.warn(READ_BUFFER_SIZE + " must be greater than 0, using "
+					+ LineReader.DEFAULT_BUFFER_SIZE);
+			readBufferSize = LineReader.DEFAULT_BUFFER_SIZE;
+		}
+		if (readQuantumLines < 1) {
+			LOGGER.warn(READ_QUANTUM_LINES + " must be greater than 0, using 1000");
+			readQuantumLines = 1000;
+		}
+		if (readQuantumBytes < 1) {
+			LOGGER.warn(READ_QUANTUM_BYTES + " must be greater than 0, using 1048576");
+			readQuantumBytes = 1024L * 1024;
+		}
+		if (maxLineBytes < 0) {
+			LOGGER.warn(MAX_LINE_BYTES + " must not be negative, using "
+					+ LineReader.DEFAULT_MAX_LINE_BYTES);
+			maxLineBytes = LineReader.DEFAULT_MAX_LINE_BYTES;
+		}
+		if (!MODE_WATCH.equals(watchMode) && !MODE_POLL.equals(watchMode)
+				&& !MODE_HYBRID.equals(watchMode)) {
+			LOGGER.warn(WATCH_MODE + " must be one of " + MODE_WATCH + ", "
+					+ MODE_POLL + " or " + MODE_HYBRID + ", using " + MODE_WATCH);
+			watchMode = MODE_WATCH;
+		}
+		if (pollMinInterval < 1) {
+			LOGGER.warn(POLL_MIN_INTERVAL + " must be greater than 0, using 500 ms");
+			pollMinInterval = 500L;
+		}
+		if (pollMaxInterval < pollMinInterval) {
+			LOGGER.warn(POLL_MAX_INTERVAL + " must not be lower than "
+					+ POLL_MIN_INTERVAL + ", using " + pollMinInterval + " ms");
+			pollMaxInterval = pollMinInterval;
+		}
+		if (backoffInitialDelay < 1) {
+			LOGGER.warn(BACKOFF_INITIAL_DELAY + " must be greater than 0, using 250 ms");
+			backoffInitialDelay = 250L;
+		}
+		if (backoffMaxDelay < backoffInitialDelay) {
+			LOGGER.warn(BACKOFF_MAX_DELAY + " must not be lower than "
+					+ BACKOFF_INITIAL_DELAY + ", using " + backoffInitialDelay + " ms");
+			backoffMaxDelay = backoffInitialDelay;
+		}
+	}
+
+	/**
+	 * Creates the parsers listed by name, each one is configured with the
+	 * properties under its name. The type is a built-in parser or the name of
+	 * a class implementing {@link LineParser}.
+	 */
+	private static LineParser[] loadParsers(Context context) {
+		String names = context.getString(PARSERS, "").trim();
+		if (names.isEmpty())
+			return new LineParser[0];
+
+		List<LineParser> parsers = new ArrayList<LineParser>();
+		for (String name : names.split("\\s+")) {
+			Context parserContext = new Context(context.getSubProperties(PARSERS
+					+ "." + name + "."));
+			String type = parserContext.getString(PARSER_TYPE);
+			if (type == null) {
+				LOGGER.warn(PARSERS + "." + name + "." + PARSER_TYPE
+						+ " is not set, ignoring parser " + name);
+				continue;
+			}
+			LineParser parser = newParser(type.trim());
+			if (parser == null)
+				continue;
+			parser.configure(parserContext);
+			parsers.add(parser);
+		}
+		return parsers.toArray(new LineParser[parsers.size()]);
+	}
+
+	private static LineParser newParser(String type) {
+		if ("timestamp".equals(type))
+			return new TimestampParser();
+		if ("keyValue".equals(type))
+			return new KeyValueParser();
+		if ("json".equals(type))
+			return new JsonFieldParser();
+		try {
+			return Class.forName(type).asSubclass(LineParser.class)
+					.getDeclaredConstructor().newInstance();
+		} catch (ClassNotFoundException | ClassCastException
+				| NoSuchMethodException | InstantiationException
+				| IllegalAccessException e) {
+			LOGGER.warn("Unable to create parser " + type + ", ignoring it: "
+					+ e);
+			return null;
+		} catch (InvocationTargetException e) {
+			LOGGER.warn("Parser " + type + " failed to start, ignoring it",
+					e.getCause());
+			return null;
+		}
+	}
+
+	private static LineReader.LongLinePolicy loadLongLinePolicy(String name) {
+		try {
+			return LineReader.LongLinePolicy.valueOf(name.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			LOGGER.warn(LONG_LINE_POLICY + " must be one of truncate, split or "
+					+ "skip, using truncate");
+			return LineReader.LongLinePolicy.TRUNCATE;
+		}
+	}
+
+	private static Charset loadCharset(String key, String name, Charset defaultCharset) {
+		try {
+			return Charset.forName(name);
+		} catch (IllegalArgumentException e) {
+			LOGGER.warn(key + " " + name + " is not supported, using "
+					+ defaultCharset.name());
+			return defaultCharset;
+		}
 	}
 
 	@SuppressWarnings("unchecked")
@@ -100,49 +399,89 @@ public class WatchDir {
 
 	/**
 	 * Register the given directory, and all its sub-directories, with the
-	 * WatchService.
+	 * WatchService, and the files found in them. The tree is walked once and
+	 * the attributes of every entry are read once. Sub-directories are
+	 * scanned in parallel by the scan pool of the source, except for the
+	 * directories created while the source runs: they are scanned by the
+	 * thread handling their event, which holds the lock of the file sets.
 	 */
-	private void registerAll(final Path start) throws IOException {
+	private void registerAll(final Path start, boolean parallel)
+			throws IOException {
 
 		LOGGER.trace("WatchDir: registerAll");
-		
-		EnumSet<FileVisitOption> opts;
-		
-		if (followLinks)
-			opts = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
+
+		long startTime = System.currentTimeMillis();
+		Scan scan = new Scan(parallel);
+		scan.visit(Files.readAttributes(start, BasicFileAttributes.class));
+		ScanDirectory task = new ScanDirectory(start, scan);
+
+		if (parallel)
+			scanPool.invoke(task);
 		else
-			opts = EnumSet.noneOf(FileVisitOption.class);
-		
-		Files.walkFileTree(start, opts, Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
-			@Override
-			public FileVisitResult preVisitDirectory(Path dir,
-					BasicFileAttributes attrs) throws IOException {
-				register(dir);
-				return FileVisitResult.CONTINUE;
-			}
-		});
+			task.compute();
 
-		// register directory and sub-directories
-		
-		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
-			@Override
-			public FileVisitResult preVisitDirectory(Path dir,
-					BasicFileAttributes attrs) throws IOException {
-				register(dir);
-				return FileVisitResult.CONTINUE;
-			}
-		});
+		long time = System.currentTimeMillis() - startTime;
+		counter.addScanTime(time);
+		LOGGER.info("Scanned " + scan.directories.get() + " directories and "
+				+ scan.files.get() + " files of " + start + " in " + time + " ms");
+
+		if (scan.error != null)
+			throw scan.error;
 	}
 
 	/**
-	 * Register the given directory with the WatchService
+	 * Register the given directory with the WatchService, or with the poller
+	 * if the directory can not be watched. Returns the files of the poller if
+	 * the directory is polled.
 	 */
-	private void register(Path dir) throws IOException {
+	private Map<Path, PolledFile> register(Path dir) throws IOException {
 
 		LOGGER.trace("WatchDir: register");
 
-		WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE,
-				ENTRY_MODIFY);
+		Map<Path, PolledFile> polledFiles = null;
+
+		if (isPolled(dir)) {
+			polledFiles = startPolling(dir);
+		} else {
+			try {
+				watch(dir);
+			} catch (IOException e) {
+				if (!MODE_HYBRID.equals(watchMode))
+					throw e;
+				LOGGER.warn("Unable to watch directory " + dir + ", polling it: "
+						+ e.getMessage());
+				polledFiles = startPolling(dir);
+			}
+		}
+		registeredDirs.add(dir);
+		return polledFiles;
+	}
+
+	/**
+	 * Adds the files found in a directory, the rotated generations are read
+	 * before the files that replaced them
+	 */
+	private void addScannedFiles(List<ScannedFile> files,
+			Map<Path, PolledFile> polledFiles) throws IOException {
+
+		Collections.sort(files);
+
+		synchronized (registry) {
+			for (ScannedFile scanned : files) {
+				FileSet fileSet = registry.addFileSet(scanned.path, "end",
+						scanned.attrs);
+				// Files resumed from a saved position may have pending lines
+				if (fileSet != null && fileSet.hasUnreadData(scanned.attrs.size()))
+					scheduleRead(fileSet);
+				if (polledFiles != null)
+					polledFiles.put(scanned.path, new PolledFile(scanned.attrs));
+			}
+		}
+	}
+
+	private void watch(Path dir) throws IOException {
+
+		WatchKey key = dispatcher.register(dir, this);
 		Path prev = keys.get(key);
 
 		LOGGER.info("Previous directory: " + prev);
@@ -155,30 +494,222 @@ public class WatchDir {
 		}
 
 		keys.put(key, dir);
+	}
 
-		
-		File folder = dir.toFile();
+	private boolean isPolled(Path dir) throws IOException {
+		if (MODE_POLL.equals(watchMode))
+			return true;
+		if (MODE_WATCH.equals(watchMode))
+			return false;
+		return pollFileSystems.contains(Files.getFileStore(dir).type());
+	}
+
+	private Map<Path, PolledFile> startPolling(Path dir) {
+		LOGGER.info("Polling directory: " + dir);
+		Map<Path, PolledFile> polledFiles = new ConcurrentHashMap<Path, PolledFile>();
+		polledDirs.put(dir, polledFiles);
+		return polledFiles;
+	}
+
+	/**
+	 * Handles a change of a directory entry, changes reported by the
+	 * WatchService and by the poller are handled one at a time
+	 */
+	private void handleEvent(Kind<?> kind, Path path) throws IOException {
 
-		for (final File fileEntry : folder.listFiles()) {
-			if (!fileEntry.isDirectory() && (filenamePattern.isEmpty() != Pattern.matches(filenamePattern, fileEntry.getPath())))
-				fileSetMap.addFileSetToMap(fileEntry.toPath(), "end");
+		LOGGER.trace(kind.name() + ": " + path);
+
+		synchronized (registry) {
+			if (kind == ENTRY_MODIFY) {
+				fileModified(path);
+			} else if (kind == ENTRY_CREATE) {
+				fileCreated(path);
+			} else if (kind == ENTRY_DELETE) {
+				fileDeleted(path);
+			}
 		}
 	}
 	
-	private void readLines(FileSet fileSet) throws IOException{
-		String buffer;
-		while ((buffer = fileSet.readLine()) != null) {
-			if (buffer.length() == 0) {
-				LOGGER.debug("Readed empty line");
-				continue;
-			} else {
-				fileSet.appendLine(buffer);
-				if (fileSet.getBufferList().isEmpty())
-					return;
+	/**
+	 * Catches up with the events of a directory lost by the watch service.
+	 * New entries are created, files whose key changed are replaced, files
+	 * gone are deleted and known files with unread or truncated data are
+	 * read, as if their events had been received.
+	 */
+	private void reconcile(Path dir) {
+
+		LinkOption[] linkOptions = followLinks ? new LinkOption[0]
+				: new LinkOption[] { NOFOLLOW_LINKS };
+		Set<Path> seen = new HashSet<Path>();
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path path : stream) {
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes(path,
+							BasicFileAttributes.class, linkOptions);
+				} catch (IOException e) {
+					// Deleted after being listed
+					continue;
+				}
+
+				if (attrs.isDirectory()) {
+					if (!registeredDirs.contains(path))
+						reconcileEvent(ENTRY_CREATE, path);
+					continue;
+				}
+
+				if (!accept(path))
+					continue;
+
+				seen.add(path);
+				String knownKey = registry.getFileKey(path);
+				String fileKey = FileKeys.getFileKey(path, attrs);
+				if (knownKey == null) {
+					reconcileEvent(ENTRY_CREATE, path);
+				} else if (!knownKey.equals(fileKey)) {
+					reconcileEvent(ENTRY_DELETE, path);
+					reconcileEvent(ENTRY_CREATE, path);
+				} else {
+					FileSet fileSet = registry.get(fileKey);
+					if (fileSet != null && fileSet.hasUnreadData(attrs.size()))
+						reconcileEvent(ENTRY_MODIFY, path);
+				}
+			}
 
+			for (Path path : registry.getPaths()) {
+				if (dir.equals(path.getParent()) && !seen.contains(path))
+					reconcileEvent(ENTRY_DELETE, path);
+			}
+		} catch (NoSuchFileException e) {
+			LOGGER.info("Directory deleted: " + dir);
+		} catch (IOException e) {
+			LOGGER.error("Unable to reconcile directory " + dir, e);
+		}
+	}
+
+	private void reconcileEvent(Kind<?> kind, Path path) {
+		try {
+			handleEvent(kind, path);
+		} catch (IOException e) {
+			LOGGER.error(e.getMessage(), e);
+		}
+	}
+
+	void readLines(FileSet fileSet) throws IOException{
+		readLines(fileSet, Integer.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Reads the lines of the file up to the given number of lines or bytes,
+	 * returns true if it stopped there and the file may have more
+	 */
+	boolean readLines(FileSet fileSet, int maxLines, long maxBytes)
+			throws IOException {
+		synchronized (fileSet) {
+			long bytesRead = fileSet.getBytesRead();
+			fileSet.updateLastModified();
+
+			// Copied and truncated, what was not read yet is lost
+			if (fileSet.isTruncated()) {
 				sendEvent(fileSet);
+				fileSet.restart();
 			}
+			// A compressed file resumes from its offset on the next start
+			boolean interruptible = fileSet.isCompressed();
+			long maxBytesRead = bytesRead + maxBytes < bytesRead ? Long.MAX_VALUE
+					: bytesRead + maxBytes;
+			int lines = 0;
+			boolean yielded = false;
+			while (!(interruptible && stopped)) {
+				if (lines >= maxLines || fileSet.getBytesRead() >= maxBytesRead) {
+					yielded = true;
+					break;
+				}
+				if (!fileSet.readLine())
+					break;
+				lines++;
+				if (fileSet.getLineLength() == 0) {
+					LOGGER.debug("Readed empty line");
+					continue;
+				} else {
+					if (aggregator.startsEvent(fileSet)) {
+						sendEvent(fileSet);
+					} else if (!aggregator.fits(fileSet)) {
+						counter.increaseCounterEventLimited();
+						sendEvent(fileSet);
+					}
+
+					fileSet.appendLine();
+
+					if (aggregator.isComplete(fileSet)) {
+						if (aggregator.isEnabled())
+							counter.increaseCounterEventLimited();
+						sendEvent(fileSet);
+					}
+				}
+			}
+			bytesRead = fileSet.getBytesRead() - bytesRead;
+			counter.addBytesRead(bytesRead);
+			counter.increaseCounterLongLines(fileSet.drainLongLines());
+			if (lineBucket != null)
+				lineBucket.consume(lines);
+			if (byteBucket != null)
+				byteBucket.consume(bytesRead);
+			return yielded;
+		}
+	}
+
+	/**
+	 * Milliseconds the reads of the directory have to wait for its rate caps
+	 */
+	private long throttleDelay() {
+		long delay = 0;
+		if (lineBucket != null)
+			delay = lineBucket.delay();
+		if (byteBucket != null)
+			delay = Math.max(delay, byteBucket.delay());
+		return delay;
+	}
+
+	/**
+	 * True if the file is tailed, compressed files are only read if they are
+	 * enabled, otherwise they would be read as binary lines
+	 */
+	private boolean accept(Path path) {
+		return filter.accept(path)
+				&& (compressedFiles || !CompressedLineReader.isCompressed(path));
+	}
+
+	/**
+	 * Queues a read of the file in the reader pool, signals for a file that is
+	 * already queued are merged. Compressed files are read by their own pool
+	 * so decompressing them does not delay the tailed files.
+	 */
+	private void scheduleRead(FileSet fileSet) {
+		if (fileSet.isCompressed())
+			decompressPool.read(fileSet, new ReadCompressedFile(fileSet));
+		else
+			readerPool.read(fileSet, new ReadFile(fileSet));
+	}
+
+	/**
+	 * Sends the lines still buffered by the file and closes it
+	 */
+	private void closeFileSet(FileSet fileSet) throws IOException {
+		synchronized (fileSet) {
+			sendEvent(fileSet);
+			fileSet.close();
 		}
+		handlePool.closed(fileSet);
+	}
+
+	/**
+	 * Closes a file evicted from the handle pool once its pending reads are
+	 * done, it is opened again at the same offset by its next read
+	 */
+	void evict(FileSet fileSet) {
+		readerPool.execute(fileSet, new EvictFile(fileSet));
 	}
 
 	private void fileCreated(Path path) throws IOException{
@@ -189,19 +720,32 @@ public class WatchDir {
 		
 		if (followLinks){
 			if (Files.isDirectory(path)){
-				registerAll(path);
+				registerAll(path, false);
 				directory=true;
 			}
 		}else
 			if (Files.isDirectory(path, NOFOLLOW_LINKS)){
-				registerAll(path);
+				registerAll(path, false);
 				directory=true;
 			}
 		
-		if(!directory && (filenamePattern.isEmpty() != Pattern.matches(filenamePattern, path.toString()))){
-			FileSet fileSet = fileSetMap.addFileSetToMap(path,"begin");
-			if (fileSet != null && fileSet.isFileIsOpen())
-				readLines(fileSet);
+		if(!directory && accept(path)){
+			FileSet fileSet = registry.addFileSet(path,"begin");
+			if (fileSet == null)
+				return;
+
+			// The file that had this name is read to its end first
+			FileSet predecessor = rotatedFiles.remove(path.toString());
+			if (predecessor != null && predecessor != fileSet)
+				fileSet.setPredecessor(predecessor);
+
+			// Opened right away, before it can be renamed
+			if (fileSet.isFileIsOpen()) {
+				handlePool.opened(fileSet, this);
+				scheduleRead(fileSet);
+			} else if (fileSet.isCompressed()) {
+				scheduleRead(fileSet);
+			}
 		}
 	}
 
@@ -209,14 +753,13 @@ public class WatchDir {
 
 		LOGGER.trace("WatchDir: fileModified");
 
-		if(filenamePattern.isEmpty() != Pattern.matches(filenamePattern, path.toString())) {
-			FileSet fileSet = fileSetMap.getFileSet(path);
+		if(accept(path)) {
+			FileSet fileSet = registry.getFileSet(path);
 		
 			if (fileSet != null) {
-				if (!fileSet.isFileIsOpen())
-					fileSet.open();
-		
-				readLines(fileSet);
+				if (fileSet.isFileIsOpen())
+					handlePool.opened(fileSet, this);
+				scheduleRead(fileSet);
 			}
 		}
 	}
@@ -224,63 +767,419 @@ public class WatchDir {
 	private void fileDeleted(Path path) throws IOException {
 		LOGGER.trace("WatchDir: fileDeleted");
 
-		if (filenamePattern.isEmpty() != Pattern.matches(filenamePattern, path.toString())) {
-			String fileKey = FileKeys.getFileKey(path);
-		
-			if (fileKey == null) {
-				fileKey = filePathsAndKeys.get(path.toString());
-			}
+		if (accept(path)) {
+			// A late event of a file replaced since then, the path still holds
+			// the file last seen there
+			String fileKey = registry.getFileKey(path);
+			if (fileKey == null || (fileKey.equals(FileKeys.getFileKey(path))
+					&& Files.exists(path, NOFOLLOW_LINKS)))
+				return;
+
+			// The path may already belong to a new file
+			fileKey = registry.removePath(path);
+			if (fileKey == null)
+				return;
 
-			if (fileKey != null) {
-				FileSet fileSet = fileSetMap.get(fileKey);
-				if (fileSet.isFileIsOpen()) {
-					fileSet.clear();
-					fileSet.close();
+			FileSet fileSet = registry.get(fileKey);
+			if (fileSet == null)
+				return;
+
+			// Only a file still open can be read once it is deleted, a closed
+			// one is read if it was renamed in the same directory
+			if (!fileSet.isFileIsOpen() && fileSet.getFilePath().equals(path)) {
+				Path renamed = findRenamed(path, fileKey);
+				if (renamed == null) {
+					LOGGER.info("File deleted: " + path);
+					releaseFileSet(fileSet);
+					return;
 				}
+				LOGGER.info("File " + path + " renamed to " + renamed);
+				registry.renamed(fileSet, renamed);
+			}
+
+			// Its writer may keep appending to it until it opens a new file
+			fileSet.setRotated(true);
+			rotatedFiles.put(path.toString(), fileSet);
+			readerPool.execute(fileSet, new ReadFile(fileSet));
+		}
+	}
 
-				if (filePathsAndKeys.containsKey(path.toString())) {
-					filePathsAndKeys.remove(path.toString());
+	/**
+	 * Returns the file of the same directory with the given key, null if
+	 * there is none
+	 */
+	private Path findRenamed(Path path, String fileKey) throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(path
+				.getParent())) {
+			for (Path candidate : stream) {
+				if (fileKey.equals(FileKeys.getFileKey(candidate)))
+					return candidate;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Forgets a rotated file once it has been read to its end. It is still
+	 * tailed if it was renamed to a path accepted by the filter, the events
+	 * of its last renames may not have been handled yet.
+	 */
+	private void releaseFileSet(FileSet fileSet) throws IOException {
+		Path path = fileSet.getFilePath();
+		String fileKey = fileSet.getFileKey();
+		if (fileKey != null && !fileKey.equals(FileKeys.getFileKey(path))) {
+			Path renamed = findRenamed(path, fileKey);
+			if (renamed != null)
+				path = renamed;
+		}
+		boolean tailed = fileKey != null && accept(path)
+				&& fileKey.equals(FileKeys.getFileKey(path));
+
+		synchronized (registry) {
+			rotatedFiles.values().removeAll(Collections.singleton(fileSet));
+			if (tailed) {
+				if (!path.equals(fileSet.getFilePath())) {
+					LOGGER.info("File " + fileSet.getFilePath() + " renamed to "
+							+ path);
+					registry.renamed(fileSet, path);
 				}
+				fileSet.setRotated(false);
+				return;
+			}
+			registry.remove(fileSet);
+			fileSet.setReleased(true);
+			if (compressedFiles && !fileSet.isCompressed())
+				drainedFiles.put(path.toString(), fileSet.getBufferPosition());
+		}
+
+		LOGGER.debug("Releasing file: " + path);
+		// Its position must not be saved again by a pending batch
+		synchronized (batchLock) {
+			for (int i = 0; i < eventBatch.size(); i++) {
+				if (batchFileSets[i] == fileSet)
+					batchFileSets[i] = null;
 			}
+			completedFiles.remove(fileSet);
 		}
+		if (positionStore != null)
+			positionStore.remove(fileKey);
 	}
 
-	private void sendEvent(FileSet fileSet) {
+	void sendEvent(FileSet fileSet) {
 
 		LOGGER.trace("WatchDir: sendEvent");
 
-		if (fileSet.getBufferList().isEmpty())
+		if (fileSet.isEmpty())
 			return;
 
-		StringBuilder sb = fileSet.getAllLines();
-		Event event = EventBuilder.withBody(String.valueOf(sb).getBytes(),
-				fileSet.getHeaders());
-		
-		Map<String,String> headers = new HashMap<String, String>();
+		if (transcode && fileSet.getTranscoder() == null)
+			fileSet.setTranscoder(new BodyTranscoder(inputCharset, outputCharset));
+
+		Map<String, String> headers = fileSet.getHeaders();
+		if (headers == null) {
+			Path path = fileSet.getFilePath();
+			headers = fileHeaders(fileSet, path);
+			fileSet.setHeaders(path, headers);
+		}
+
+		Map<String, String> parsedHeaders = parsers.length == 0 ? null
+				: parseHeaders(fileSet);
+
+		Event event = EventBuilder.withBody(fileSet.getAllLines());
+		if (offsetHeader || lineHeader)
+			event.setHeaders(new EventHeaders(headers, parsedHeaders,
+					offsetHeader ? offsetHeaderKey : null, fileSet.getEventPosition(),
+					lineHeader ? lineHeaderKey : null, fileSet.getEventLineNumber()));
+		else if (!headers.isEmpty() || parsedHeaders != null)
+			event.setHeaders(new EventHeaders(headers, parsedHeaders, null, 0,
+					null, 0));
+
+		addEventToBatch(event, fileSet);
+		fileSet.clear();
+	}
+
+	/**
+	 * Headers found by the parsers in the bytes of the buffered event, null if
+	 * there are none. A failing parser does not stop the others.
+	 */
+	private Map<String, String> parseHeaders(FileSet fileSet) {
+		byte[] array = fileSet.getEventArray();
+		int offset = fileSet.getEventOffset();
+		int length = fileSet.getEventLength();
+
+		Map<String, String> parsed = new HashMap<String, String>(8);
+		for (LineParser parser : parsers) {
+			try {
+				parser.parse(array, offset, length, inputCharset, parsed);
+			} catch (RuntimeException e) {
+				LOGGER.debug("Parser " + parser.getClass().getName()
+						+ " failed on " + fileSet.getFilePath(), e);
+			}
+		}
+		return parsed.isEmpty() ? null : parsed;
+	}
+
+	/**
+	 * Headers shared by all the events of the file
+	 */
+	private Map<String, String> fileHeaders(FileSet fileSet, Path path) {
+		Map<String, String> headers = new HashMap<String, String>();
 		if (fileHeader)
-			headers.put(fileHeaderKey,fileSet.getFilePath().toString());
+			headers.put(fileHeaderKey, path.toString());
 		if (basenameHeader)
-			headers.put(basenameHeaderKey, fileSet.getFileName().toString());
-		if (!headers.isEmpty())
-			event.setHeaders(headers);
-		
-		source.getChannelProcessor().processEvent(event);
+			headers.put(basenameHeaderKey, path.getFileName().toString());
+		if (inodeHeader && fileSet.getFileKey() != null)
+			headers.put(inodeHeaderKey, fileSet.getFileKey());
+		return Collections.unmodifiableMap(headers);
+	}
 
-		counter.increaseCounterMessageSent();
-		fileSet.clear();
+	private void addEventToBatch(Event event, FileSet fileSet) {
+		boolean full;
+		synchronized (batchLock) {
+			if (eventBatch.isEmpty())
+				batchStartTime = System.currentTimeMillis();
+
+			int i = eventBatch.size();
+			if (i == batchAppendTimes.length) {
+				// Readers add events while a full batch waits for the channel
+				batchFileSets = Arrays.copyOf(batchFileSets, i * 2);
+				batchPositions = Arrays.copyOf(batchPositions, i * 2);
+				batchAppendTimes = Arrays.copyOf(batchAppendTimes, i * 2);
+			}
+			batchFileSets[i] = fileSet;
+			batchPositions[i] = fileSet.getBufferPosition();
+			batchAppendTimes[i] = fileSet.getLastModified();
+			eventBatch.add(event);
+			batchBytes += event.getBody().length;
+			memoryBudget.reserve(event.getBody().length);
+			full = eventBatch.size() >= batchSize;
+		}
+
+		if (full)
+			flushBatch(true);
+	}
+
+	/**
+	 * Sends the pending events to the channel. If the channel does not accept
+	 * them and the caller can wait, the delivery is retried with an
+	 * exponential backoff so the caller stops reading at its current offset
+	 * until the channel has room. Returns true if the events were delivered.
+	 */
+	private boolean flushBatch(boolean wait) {
+
+		LOGGER.trace("WatchDir: flushBatch");
+
+		long backoff = backoffInitialDelay;
+		long blockedSince = 0;
+
+		try {
+			for (;;) {
+				if (deliverBatch())
+					return true;
+
+				if (!backpressure) {
+					discardBatch();
+					return false;
+				}
+				if (!wait || stopped)
+					return false;
+
+				if (blockedSince == 0)
+					blockedSince = System.currentTimeMillis();
+				counter.increaseCounterChannelRetry();
+
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+				backoff = Math.min(backoff * 2, backoffMaxDelay);
+			}
+		} finally {
+			if (blockedSince > 0)
+				counter.addChannelBlockedTime(System.currentTimeMillis()
+						- blockedSince);
+		}
+	}
+
+	/**
+	 * Sends the pending events to the channel in transactions of at most
+	 * batchSize events, saving the positions of the files once their events
+	 * are delivered. The events not accepted by the channel are kept for a
+	 * later attempt, readers go on adding events meanwhile.
+	 */
+	private boolean deliverBatch() {
+		synchronized (deliveryLock) {
+			int pending;
+			synchronized (batchLock) {
+				pending = eventBatch.size();
+			}
+			// Events added during the delivery wait for the next one
+			do {
+				List<Event> slice;
+				synchronized (batchLock) {
+					slice = new ArrayList<Event>(eventBatch.subList(0,
+							Math.min(pending, batchSize)));
+				}
+
+				if (!slice.isEmpty()) {
+					try {
+						source.getChannelProcessor().processEventBatch(slice);
+					} catch (ChannelException e) {
+						LOGGER.warn("Unable to send {} events to the channel: {}",
+								slice.size(), e.getMessage());
+						counter.increaseCounterMessageSentError();
+						return false;
+					}
+				}
+
+				synchronized (batchLock) {
+					removeDelivered(slice.size());
+				}
+				pending -= slice.size();
+			} while (pending > 0);
+			return true;
+		}
+	}
+
+	/**
+	 * Removes the first delivered events from the batch and saves the
+	 * positions of their files, called holding the batch lock
+	 */
+	private void removeDelivered(int delivered) {
+		Map<FileSet, Long> positions = new HashMap<FileSet, Long>();
+		long now = System.currentTimeMillis();
+		long bytes = 0;
+		for (int i = 0; i < delivered; i++) {
+			bytes += eventBatch.get(i).getBody().length;
+			// Unknown if the file was gone when it was read
+			if (batchAppendTimes[i] > 0)
+				counter.recordCommitLatency(now - batchAppendTimes[i]);
+			if (batchFileSets[i] != null)
+				positions.put(batchFileSets[i], batchPositions[i]);
+		}
+		if (delivered > 0)
+			counter.increaseCounterBatchSent(delivered);
+
+		Iterator<Map.Entry<FileSet, Integer>> completed = completedFiles
+				.entrySet().iterator();
+		while (completed.hasNext()) {
+			Map.Entry<FileSet, Integer> entry = completed.next();
+			entry.setValue(entry.getValue() - delivered);
+			if (entry.getValue() <= 0) {
+				positions.put(entry.getKey(), FileSet.COMPLETED);
+				completed.remove();
+			}
+		}
+
+		if (positionStore != null) {
+			for (Map.Entry<FileSet, Long> entry : positions.entrySet()) {
+				FileSet fileSet = entry.getKey();
+				positionStore.update(fileSet.getFileKey(), fileSet.getFilePath(),
+						entry.getValue());
+			}
+		}
+
+		int remaining = eventBatch.size() - delivered;
+		eventBatch.subList(0, delivered).clear();
+		System.arraycopy(batchFileSets, delivered, batchFileSets, 0, remaining);
+		Arrays.fill(batchFileSets, remaining, remaining + delivered, null);
+		System.arraycopy(batchPositions, delivered, batchPositions, 0, remaining);
+		System.arraycopy(batchAppendTimes, delivered, batchAppendTimes, 0,
+				remaining);
+		if (remaining > 0 && delivered > 0)
+			batchStartTime = now;
+		memoryBudget.release(bytes);
+		batchBytes -= bytes;
+	}
+
+	/**
+	 * Saves a compressed file as read to its end once its last events are
+	 * delivered
+	 */
+	private void markCompleted(FileSet fileSet) {
+		synchronized (batchLock) {
+			completedFiles.put(fileSet, eventBatch.size());
+		}
+	}
+
+	private void discardBatch() {
+		synchronized (deliveryLock) {
+			synchronized (batchLock) {
+				LOGGER.error("Discarding {} events not accepted by the channel",
+						eventBatch.size());
+				eventBatch.clear();
+				Arrays.fill(batchFileSets, null);
+				completedFiles.clear();
+				releaseBatchBytes();
+			}
+		}
+	}
+
+	private void releaseBatchBytes() {
+		memoryBudget.release(batchBytes);
+		batchBytes = 0;
+	}
+
+	Path getDir() {
+		return dir;
+	}
+
+	Collection<FileSet> getFileSets() {
+		return registry.getFileSets();
+	}
+
+	/**
+	 * The events of the directory are handled holding its lock
+	 */
+	FileRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * Directories registered with the WatchService
+	 */
+	Collection<Path> getWatchedDirs() {
+		return keys.values();
+	}
+
+	/**
+	 * Directories compared with their last poll
+	 */
+	Set<Path> getPolledDirs() {
+		return polledDirs.keySet();
 	}
 
 	public void stop() {
 
 		LOGGER.trace("WatchDir: stop");
+		stopped = true;
+		for (ScheduledFuture<?> task : tasks) {
+			task.cancel(false);
+		}
+		for (WatchKey key : keys.keySet()) {
+			dispatcher.unregister(key, this);
+		}
+
+		// Files are closed by their reader once its pending reads are done
+		List<FileSet> fileSets = new ArrayList<FileSet>(getFileSets());
+		CountDownLatch closed = new CountDownLatch(fileSets.size());
+		for (FileSet fileSet : fileSets) {
+			LOGGER.debug("Closing file: " + fileSet.getFilePath());
+			if (!readerPool.execute(fileSet, new CloseFile(fileSet, closed)))
+				new CloseFile(fileSet, closed).run();
+		}
 		try {
-			for (FileSet fileSet : fileSetMap.values()) {
-				LOGGER.debug("Closing file: " + fileSet.getFilePath());
-				fileSet.clear();
-				fileSet.close();
-			}
-		} catch (IOException x) {
-			LOGGER.error(x.getMessage(),x);
+			if (!closed.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS))
+				LOGGER.warn("Timeout closing the files of " + keys.values());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flushBatch(false);
+		// What the channel did not accept is dropped with the directory
+		synchronized (batchLock) {
+			releaseBatchBytes();
 		}
 	}
 
@@ -290,15 +1189,10 @@ public class WatchDir {
 		public void run() {
 
 			long lastAppendTime, currentTime;
-			FileSet fileSet;
 
 			try {
-				Set<String> fileKeySet = new HashSet<String>(
-						fileSetMap.keySet());
+				for (FileSet fileSet : getFileSets()) {
 
-				for (String fileKey : fileKeySet) {
-
-					fileSet = fileSetMap.get(fileKey);
 					if (fileSet.isFileIsOpen()){
 						lastAppendTime = fileSet.getLastAppendTime();
 						currentTime = System.currentTimeMillis();
@@ -317,81 +1211,685 @@ public class WatchDir {
 							LOGGER.info("File: " + fileSet.getFilePath()
 									+ " not modified after " + timeToUnlockFile
 									+ " minutes" + " closing file");
-							fileSetMap.get(fileKey).clear();
-							fileSetMap.get(fileKey).close();
+							readerPool.execute(fileSet, new CloseFile(fileSet, null));
 						}
 					}
 				}
-			} catch (IOException e) {
+			} catch (RuntimeException e) {
 				LOGGER.error(e.getMessage(),e);
 			}
 		}
 	}
 
-	private class PrintThroughput implements Runnable {
+	private class ReadFile implements Runnable {
+
+		private final FileSet fileSet;
+
+		ReadFile(FileSet fileSet) {
+			this.fileSet = fileSet;
+		}
 
 		@Override
 		public void run() {
-			LOGGER.debug("Current throughput: "
-					+ counter.getCurrentThroughput());
+			// Still queued meanwhile, so changes are merged with this read
+			long wait = throttleDelay();
+			if (wait > 0 && !stopped) {
+				counter.increaseCounterReadThrottled();
+				retryLater(wait);
+				return;
+			}
+			if (memoryBudget.isExceeded() && !stopped) {
+				counter.increaseCounterReadPaused();
+				retryLater(MEMORY_WAIT);
+				return;
+			}
+
+			// Signals arriving from now on need a new read
+			fileSet.clearReadQueued();
+			boolean yielded = false;
+			try {
+				synchronized (fileSet) {
+					if (fileSet.isReleased())
+						return;
+
+					FileSet predecessor = fileSet.getPredecessor();
+					if (predecessor != null)
+						readPredecessor(fileSet, predecessor);
+
+					if (!fileSet.isFileIsOpen())
+						fileSet.open();
+					handlePool.opened(fileSet, WatchDir.this);
+
+					yielded = readLines(fileSet, readQuantumLines,
+							readQuantumBytes);
+				}
+			} catch (NoSuchFileException e) {
+				relocate(fileSet);
+			} catch (IOException e) {
+				LOGGER.error(e.getMessage(), e);
+			} catch (RuntimeException e) {
+				LOGGER.error(e.getMessage(), e);
+			}
+
+			// The rest is read after the files queued meanwhile
+			if (yielded && !stopped) {
+				counter.increaseCounterReadYielded();
+				scheduleRead(fileSet);
+			}
 		}
 
+		private void retryLater(long delay) {
+			try {
+				scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						readerPool.execute(fileSet, ReadFile.this);
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				LOGGER.debug("Scheduler stopped, not reading " + fileSet.getFilePath());
+			}
+		}
 	}
-	
-	private class WatchDirRunnable implements Runnable {
+
+	/**
+	 * Looks for a file whose path holds another file or nothing when it is
+	 * opened, before the events of its rename are handled. It is read from
+	 * its new path or forgotten if it was deleted.
+	 */
+	private void relocate(FileSet fileSet) {
+		Path path = fileSet.getFilePath();
+		try {
+			Path renamed = fileSet.getFileKey() == null ? null : findRenamed(path,
+					fileSet.getFileKey());
+			if (renamed == null) {
+				LOGGER.info("File deleted: " + path);
+				releaseFileSet(fileSet);
+				return;
+			}
+			synchronized (registry) {
+				if (fileSet.isReleased())
+					return;
+				registry.renamed(fileSet, renamed);
+			}
+			LOGGER.info("File " + path + " renamed to " + renamed);
+			scheduleRead(fileSet);
+		} catch (IOException e) {
+			LOGGER.error("Unable to find the file read from " + path, e);
+		}
+	}
+
+	/**
+	 * Reads what is left of the rotated file that had the name of the given
+	 * one. Once the writer has moved to the new file the rotated one is
+	 * closed and forgotten.
+	 */
+	private void readPredecessor(FileSet fileSet, FileSet predecessor)
+			throws IOException {
+		boolean moved = fileSet.length() > 0;
+
+		synchronized (predecessor) {
+			if (predecessor.isFileIsOpen()) {
+				readLines(predecessor);
+				if (moved)
+					closeFileSet(predecessor);
+			}
+		}
+		if (moved || predecessor.isReleased()) {
+			fileSet.setPredecessor(null);
+			if (!predecessor.isReleased())
+				releaseFileSet(predecessor);
+		}
+	}
+
+	/**
+	 * Sends the lines buffered by a file and releases it. What is left of a
+	 * rotated file is read first and, unless the source is stopping, the file
+	 * is forgotten.
+	 */
+	private class CloseFile implements Runnable {
+
+		private final FileSet fileSet;
+		private final CountDownLatch closed;
+
+		CloseFile(FileSet fileSet, CountDownLatch closed) {
+			this.fileSet = fileSet;
+			this.closed = closed;
+		}
 
 		@Override
 		public void run() {
 			try {
-				for (;;) {
-					// wait for key to be signaled
-					WatchKey key;
-					key = watcher.take();
-					Path dir = keys.get(key);
-
-					if (dir == null) {
-						LOGGER.error("WatchKey not recognized!!");
-						continue;
+				boolean rotated = fileSet.isRotated();
+				synchronized (fileSet) {
+					if (fileSet.isFileIsOpen()) {
+						if (rotated)
+							readLines(fileSet);
+						closeFileSet(fileSet);
 					}
+				}
+				if (rotated && !stopped && !fileSet.isReleased())
+					releaseFileSet(fileSet);
+			} catch (IOException e) {
+				LOGGER.error(e.getMessage(), e);
+			} catch (RuntimeException e) {
+				LOGGER.error(e.getMessage(), e);
+			} finally {
+				if (closed != null)
+					closed.countDown();
+			}
+		}
+	}
 
-					for (WatchEvent<?> event : key.pollEvents()) {
-						try{
-							Kind<?> kind = event.kind();
-	
-							// Context for directory entry event is the file name of
-							// entry
-							WatchEvent<Path> ev = cast(event);
-							Path name = ev.context();
-							Path path = dir.resolve(name);
-	
-							// print out event
-							LOGGER.trace(event.kind().name() + ": " + path);
-	
-							if (kind == ENTRY_MODIFY) {
-								fileModified(path);
-							} else if (kind == ENTRY_CREATE) {
-								fileCreated(path);				
-							} else if (kind == ENTRY_DELETE) {
-								fileDeleted(path);
-							}
-						} catch (IOException x) {
-							LOGGER.error(x.getMessage(), x);
-						}	
+	/**
+	 * Decompresses a compressed file and sends its lines in a single pass. A
+	 * file still being written is read once it has not changed for a while,
+	 * its offset is kept if its data ends too early so the next change
+	 * resumes it.
+	 */
+	private class ReadCompressedFile implements Runnable {
+
+		private final FileSet fileSet;
+
+		ReadCompressedFile(FileSet fileSet) {
+			this.fileSet = fileSet;
+		}
+
+		@Override
+		public void run() {
+			// Still queued meanwhile, so changes are merged with this read
+			long wait = fileSet.getFile().lastModified() + COMPRESSED_SETTLE_TIME
+					- System.currentTimeMillis();
+			if (wait > 0 && !stopped) {
+				retryLater(wait);
+				return;
+			}
+
+			fileSet.clearReadQueued();
+			try {
+				synchronized (fileSet) {
+					if (fileSet.isReleased()
+							|| fileSet.getSavedPosition() == FileSet.COMPLETED)
+						return;
+
+					if (fileSet.getSavedPosition() <= 0 && isArchiveOfTailedFile(fileSet)) {
+						LOGGER.info("Skipping compressed file " + fileSet.getFilePath()
+								+ ", its lines were read before it was compressed");
+						markCompleted(fileSet);
+						fileSet.setSavedPosition(FileSet.COMPLETED);
+						return;
 					}
-					// reset key and remove from set if directory no longer
-					// accessible
-					boolean valid = key.reset();
-					if (!valid) {
-						keys.remove(key);
-						// all directories are inaccessible
-						if (keys.isEmpty()) {
-							break;
+
+					LOGGER.info("Reading compressed file: " + fileSet.getFilePath());
+					try {
+						fileSet.open();
+						readLines(fileSet);
+					} finally {
+						if (fileSet.isFinished()) {
+							closeFileSet(fileSet);
+							markCompleted(fileSet);
+							fileSet.setSavedPosition(FileSet.COMPLETED);
+							LOGGER.info("Compressed file read: "
+									+ fileSet.getFilePath());
+						} else if (fileSet.isFileIsOpen()) {
+							closeFileSet(fileSet);
+							if (!stopped)
+								LOGGER.warn("Compressed file " + fileSet.getFilePath()
+										+ " ends too early, waiting for it to change");
 						}
 					}
 				}
-			} catch (InterruptedException x) {
-				LOGGER.error(x.getMessage(), x);
+			} catch (IOException e) {
+				LOGGER.error("Unable to read compressed file "
+						+ fileSet.getFilePath() + ": " + e.getMessage());
+			} catch (RuntimeException e) {
+				LOGGER.error(e.getMessage(), e);
+			}
+		}
+
+		private void retryLater(long delay) {
+			try {
+				scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						decompressPool.execute(fileSet, ReadCompressedFile.this);
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				LOGGER.debug("Scheduler stopped, not reading " + fileSet.getFilePath());
+			}
+		}
+	}
+
+	/**
+	 * True if the compressed file was made from a file tailed by this
+	 * directory, the one at its path without the extension. The length
+	 * recorded by a gzip file must match the length of that file, the path may
+	 * hold other files since then.
+	 */
+	private boolean isArchiveOfTailedFile(FileSet fileSet) throws IOException {
+		Path source = CompressedLineReader.getSourcePath(fileSet.getFilePath());
+		if (source == null || !accept(source))
+			return false;
+
+		Long length = null;
+		synchronized (registry) {
+			// Still tailed, or deleted and not released yet
+			for (FileSet tailed : registry.getFileSets()) {
+				if (!tailed.isCompressed() && source.equals(tailed.getFilePath()))
+					length = Math.max(tailed.length(), tailed.getBufferPosition());
+			}
+			if (length == null)
+				length = drainedFiles.get(source.toString());
+		}
+		if (length == null)
+			return false;
+
+		long recorded = CompressedLineReader.getRecordedLength(fileSet.getFile());
+		return recorded < 0 || recorded == (length & 0xffffffffL);
+	}
+
+	/**
+	 * Closes a file keeping its buffered lines, they are completed by the
+	 * lines read once it is opened again
+	 */
+	private class EvictFile implements Runnable {
+
+		private final FileSet fileSet;
+
+		EvictFile(FileSet fileSet) {
+			this.fileSet = fileSet;
+		}
+
+		@Override
+		public void run() {
+			try {
+				synchronized (fileSet) {
+					if (fileSet.isFileIsOpen()) {
+						LOGGER.debug("Evicting file: " + fileSet.getFilePath());
+						fileSet.close();
+						counter.increaseCounterFileEvicted();
+					}
+					// Read again since it was picked
+					handlePool.closed(fileSet);
+				}
+			} catch (IOException e) {
+				LOGGER.error(e.getMessage(), e);
+			} catch (RuntimeException e) {
+				LOGGER.error(e.getMessage(), e);
 			}
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Sends the lines buffered by a file that waited too long for a
+	 * continuation
+	 */
+	private class FlushLines implements Runnable {
+
+		private final FileSet fileSet;
+
+		FlushLines(FileSet fileSet) {
+			this.fileSet = fileSet;
+		}
+
+		@Override
+		public void run() {
+			try {
+				synchronized (fileSet) {
+					if (aggregator.isExpired(fileSet, System.currentTimeMillis()))
+						sendEvent(fileSet);
+				}
+			} catch (RuntimeException e) {
+				LOGGER.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * State shared by the tasks scanning a directory tree
+	 */
+	private static class Scan {
+		private final boolean parallel;
+		// Directories already scanned, links may lead to them again
+		private final Set<Object> visited = Collections
+				.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+		private final AtomicLong directories = new AtomicLong();
+		private final AtomicLong files = new AtomicLong();
+		private volatile IOException error;
+
+		Scan(boolean parallel) {
+			this.parallel = parallel;
+		}
+
+		/**
+		 * False if the directory has already been scanned
+		 */
+		boolean visit(BasicFileAttributes attrs) {
+			Object fileKey = attrs.fileKey();
+			return fileKey == null || visited.add(fileKey);
+		}
+	}
+
+	private static class ScannedFile implements Comparable<ScannedFile> {
+		private final Path path;
+		private final BasicFileAttributes attrs;
+
+		ScannedFile(Path path, BasicFileAttributes attrs) {
+			this.path = path;
+			this.attrs = attrs;
+		}
+
+		@Override
+		public int compareTo(ScannedFile other) {
+			return attrs.lastModifiedTime().compareTo(
+					other.attrs.lastModifiedTime());
+		}
+	}
+
+	/**
+	 * Registers a directory and adds its files, its sub-directories are
+	 * scanned by tasks of their own
+	 */
+	private class ScanDirectory extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+		private static final int PROGRESS_FILES = 10000;
+
+		private final Path dir;
+		private final Scan scan;
+
+		ScanDirectory(Path dir, Scan scan) {
+			this.dir = dir;
+			this.scan = scan;
+		}
+
+		@Override
+		protected void compute() {
+			List<ScanDirectory> subdirs = new ArrayList<ScanDirectory>();
+			List<ScannedFile> files = new ArrayList<ScannedFile>();
+
+			try {
+				Map<Path, PolledFile> polledFiles = register(dir);
+
+				try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+					for (Path path : stream) {
+						BasicFileAttributes attrs;
+						boolean link;
+						try {
+							attrs = Files.readAttributes(path,
+									BasicFileAttributes.class, NOFOLLOW_LINKS);
+							link = attrs.isSymbolicLink();
+							if (link && followLinks)
+								attrs = Files.readAttributes(path,
+										BasicFileAttributes.class);
+						} catch (IOException e) {
+							// Deleted after being listed
+							continue;
+						}
+
+						if (attrs.isDirectory()) {
+							if (scan.visit(attrs))
+								subdirs.add(new ScanDirectory(path, scan));
+						} else if (accept(path)) {
+							if (link)
+								LOGGER.warn("Symbolic links not accepted, ignoring {}",
+										path);
+							else
+								files.add(new ScannedFile(path, attrs));
+						}
+					}
+				}
+
+				if (scan.parallel)
+					invokeAll(subdirs);
+				else
+					for (ScanDirectory subdir : subdirs)
+						subdir.compute();
+
+				addScannedFiles(files, polledFiles);
+			} catch (IOException e) {
+				LOGGER.error("Unable to scan directory " + dir, e);
+				scan.error = e;
+				return;
+			}
+
+			scan.directories.incrementAndGet();
+			counter.increaseScannedDirectories();
+			long scanned = scan.files.addAndGet(files.size());
+			counter.addScannedFiles(files.size());
+			if (scanned / PROGRESS_FILES > (scanned - files.size()) / PROGRESS_FILES)
+				LOGGER.info("Scanned " + scanned + " files of " + WatchDir.this.dir);
+		}
+	}
+
+	/**
+	 * Last size, modification time and file key seen by the poller
+	 */
+	private static class PolledFile {
+		private long size;
+		private long lastModified;
+		private Object fileKey;
+
+		PolledFile(BasicFileAttributes attrs) {
+			update(attrs);
+		}
+
+		private void update(BasicFileAttributes attrs) {
+			size = attrs.size();
+			lastModified = attrs.lastModifiedTime().toMillis();
+			fileKey = attrs.fileKey();
+		}
+
+		/**
+		 * Returns the change since the last poll, null if there is none
+		 */
+		Kind<Path> check(BasicFileAttributes attrs) {
+			Kind<Path> change = null;
+			if (fileKey != null && !fileKey.equals(attrs.fileKey()))
+				change = ENTRY_CREATE;
+			else if (size != attrs.size()
+					|| lastModified != attrs.lastModifiedTime().toMillis())
+				change = ENTRY_MODIFY;
+
+			if (change != null)
+				update(attrs);
+			return change;
+		}
+	}
+
+	/**
+	 * Compares the files of the polled directories with the last poll. It
+	 * runs again after the minimum interval while files change and backs off
+	 * up to the maximum interval while they do not.
+	 */
+	private class PollDirectories implements Runnable {
+
+		private long interval = pollMinInterval;
+
+		@Override
+		public void run() {
+			boolean changed = false;
+			try {
+				for (Path dir : new ArrayList<Path>(polledDirs.keySet())) {
+					changed |= poll(dir);
+				}
+			} catch (RuntimeException e) {
+				LOGGER.error(e.getMessage(), e);
+			}
+
+			interval = changed ? pollMinInterval : Math.min(interval * 2,
+					pollMaxInterval);
+			if (stopped)
+				return;
+			try {
+				scheduler.schedule(this, interval, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				LOGGER.debug("Scheduler stopped, polling finished");
+			}
+		}
+
+		private boolean poll(Path dir) {
+			Map<Path, PolledFile> polledFiles = polledDirs.get(dir);
+			if (polledFiles == null)
+				return false;
+
+			LinkOption[] linkOptions = followLinks ? new LinkOption[0]
+					: new LinkOption[] { NOFOLLOW_LINKS };
+			Set<Path> seen = new HashSet<Path>();
+			boolean changed = false;
+
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path path : stream) {
+					BasicFileAttributes attrs;
+					try {
+						attrs = Files.readAttributes(path,
+								BasicFileAttributes.class, linkOptions);
+					} catch (IOException e) {
+						// Deleted after being listed
+						continue;
+					}
+
+					if (attrs.isDirectory()) {
+						if (!registeredDirs.contains(path)) {
+							handleEvent(ENTRY_CREATE, path);
+							changed = true;
+						}
+						continue;
+					}
+
+					if (!accept(path))
+						continue;
+
+					seen.add(path);
+					PolledFile polledFile = polledFiles.get(path);
+					Kind<Path> change;
+					if (polledFile == null) {
+						polledFiles.put(path, new PolledFile(attrs));
+						change = ENTRY_CREATE;
+					} else {
+						change = polledFile.check(attrs);
+					}
+
+					if (change != null) {
+						// A new file replaced the one with this name
+						if (change == ENTRY_CREATE && polledFile != null)
+							handleEvent(ENTRY_DELETE, path);
+						handleEvent(change, path);
+						changed = true;
+					}
+				}
+			} catch (NoSuchFileException e) {
+				LOGGER.info("Polled directory deleted: " + dir);
+				polledDirs.remove(dir);
+				registeredDirs.remove(dir);
+			} catch (IOException e) {
+				LOGGER.error(e.getMessage(), e);
+				return changed;
+			}
+
+			Iterator<Path> it = polledFiles.keySet().iterator();
+			while (it.hasNext()) {
+				Path path = it.next();
+				if (!seen.contains(path)) {
+					it.remove();
+					try {
+						handleEvent(ENTRY_DELETE, path);
+					} catch (IOException e) {
+						LOGGER.error(e.getMessage(), e);
+					}
+					changed = true;
+				}
+			}
+			return changed;
+		}
+	}
+
+	private class FlushLinesOnTimeout implements Runnable {
+
+		@Override
+		public void run() {
+			try {
+				long now = System.currentTimeMillis();
+				for (FileSet fileSet : getFileSets()) {
+					// Checked again by the reader of the file
+					if (aggregator.isExpired(fileSet, now))
+						readerPool.execute(fileSet, new FlushLines(fileSet));
+				}
+			} catch (RuntimeException e) {
+				LOGGER.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	private class FlushBatchOnTimeout implements Runnable {
+
+		@Override
+		public void run() {
+			try {
+				boolean expired;
+				synchronized (batchLock) {
+					expired = !eventBatch.isEmpty()
+							&& System.currentTimeMillis() - batchStartTime >= batchTimeout;
+				}
+				// The scheduler is shared, it never waits for the channel
+				if (expired)
+					flushBatch(false);
+			} catch (RuntimeException e) {
+				LOGGER.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Handles the events taken from a key of this directory, the key is reset
+	 * by the dispatcher once every WatchDir sharing it has seen them
+	 */
+	void processEvents(WatchKey key, List<WatchEvent<?>> events) {
+		Path dir = keys.get(key);
+
+		if (dir == null) {
+			LOGGER.error("WatchKey not recognized!!");
+			return;
+		}
+
+		boolean overflow = false;
+
+		for (WatchEvent<?> event : events) {
+			try{
+				Kind<?> kind = event.kind();
+
+				// Events were lost, they have no entry
+				if (kind == OVERFLOW) {
+					overflow = true;
+					continue;
+				}
+
+				// Context for directory entry event is the file name of
+				// entry
+				WatchEvent<Path> ev = cast(event);
+				Path name = ev.context();
+				Path path = dir.resolve(name);
+
+				handleEvent(kind, path);
+			} catch (IOException x) {
+				LOGGER.error(x.getMessage(), x);
+			}	
+		}
+
+		if (overflow) {
+			LOGGER.warn("Events of directory " + dir + " were lost, reconciling it");
+			counter.increaseCounterWatchOverflow();
+			reconcile(dir);
+		}
+	}
+
+	/**
+	 * Forgets a key whose directory is no longer accessible
+	 */
+	void keyInvalid(WatchKey key) {
+		Path dir = keys.remove(key);
+		if (dir != null)
+			registeredDirs.remove(dir);
+	}
+}
@@ -3,16 +3,33 @@ package org.apache.flume.source.taildirectory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Objects;
+
 public class WatchDirConfig {
 	private static final Logger LOGGER = LoggerFactory.getLogger(WatchDirConfig.class);
 	private String dir;
 	private String filenamePattern;
+	private String includePatterns;
+	private String excludePatterns;
+	private int filterCacheSize = PathFilter.DEFAULT_CACHE_SIZE;
+	// Read rate caps of the directory, 0 if unlimited
+	private long maxLinesPerSecond;
+	private long maxBytesPerSecond;
+	private PathFilter filter;
 	
 	public WatchDirConfig(String dir, String filenamePattern) {
 		this.dir = dir;
 		this.filenamePattern = filenamePattern;
 	}
 	
+	public WatchDirConfig(String dir, String filenamePattern,
+			String includePatterns, String excludePatterns, int filterCacheSize) {
+		this(dir, filenamePattern);
+		this.includePatterns = includePatterns;
+		this.excludePatterns = excludePatterns;
+		this.filterCacheSize = filterCacheSize;
+	}
+	
 	public String getDir() {
 		return dir;
 	}
@@ -27,5 +44,85 @@ public class WatchDirConfig {
 	
 	public void setFilenamePattern(String filenamePattern) {
 		this.filenamePattern = filenamePattern;
+		this.filter = null;
+	}
+	
+	public String getIncludePatterns() {
+		return includePatterns;
+	}
+	
+	public void setIncludePatterns(String includePatterns) {
+		this.includePatterns = includePatterns;
+		this.filter = null;
+	}
+	
+	public String getExcludePatterns() {
+		return excludePatterns;
+	}
+	
+	public void setExcludePatterns(String excludePatterns) {
+		this.excludePatterns = excludePatterns;
+		this.filter = null;
+	}
+	
+	public long getMaxLinesPerSecond() {
+		return maxLinesPerSecond;
+	}
+	
+	public void setMaxLinesPerSecond(long maxLinesPerSecond) {
+		this.maxLinesPerSecond = maxLinesPerSecond;
+	}
+	
+	public long getMaxBytesPerSecond() {
+		return maxBytesPerSecond;
+	}
+	
+	public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+		this.maxBytesPerSecond = maxBytesPerSecond;
+	}
+	
+	/**
+	 * Returns the filter of the files to tail, it is compiled once for this
+	 * configuration
+	 */
+	public synchronized PathFilter getFilter() {
+		if (filter == null) {
+			LOGGER.debug("Compiling filter for directory " + dir);
+			filter = new PathFilter(filenamePattern, includePatterns,
+					excludePatterns, filterCacheSize);
+		}
+		return filter;
+	}
+
+	/**
+	 * Configurations are equal if they tail the same files the same way, a
+	 * reconfigured source keeps the directories whose configuration is equal
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof WatchDirConfig))
+			return false;
+		WatchDirConfig other = (WatchDirConfig) obj;
+		return Objects.equal(dir, other.dir)
+				&& Objects.equal(filenamePattern, other.filenamePattern)
+				&& Objects.equal(includePatterns, other.includePatterns)
+				&& Objects.equal(excludePatterns, other.excludePatterns)
+				&& filterCacheSize == other.filterCacheSize
+				&& maxLinesPerSecond == other.maxLinesPerSecond
+				&& maxBytesPerSecond == other.maxBytesPerSecond;
+	}
+	
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(dir, filenamePattern, includePatterns,
+				excludePatterns, filterCacheSize, maxLinesPerSecond,
+				maxBytesPerSecond);
+	}
+	
+	@Override
+	public String toString() {
+		return dir;
 	}
 }
@@ -0,0 +1,166 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Owns the single WatchService of a source and the thread taking its keys.
+ * The service returns the same key for a directory registered twice, by two
+ * configured directories with the same path or by a directory nested in the
+ * tree of another one, so a key is shared by every WatchDir that registered
+ * it: its events are handed to all of them and it is cancelled once the last
+ * one unregisters it.
+ */
+public class WatchDispatcher implements Runnable {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(WatchDispatcher.class);
+
+	private final WatchService watcher;
+	private final Map<WatchKey, List<WatchDir>> watchDirs;
+	private Thread thread;
+
+	public WatchDispatcher() throws IOException {
+		this.watcher = FileSystems.getDefault().newWatchService();
+		this.watchDirs = new HashMap<WatchKey, List<WatchDir>>();
+	}
+
+	public void start(String name) {
+		thread = new Thread(this, name + "-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() {
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			LOGGER.error(e.getMessage(), e);
+		}
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Watches the directory, its events are handled by the given WatchDir and
+	 * by the other ones watching it
+	 */
+	public WatchKey register(Path dir, WatchDir watchDir) throws IOException {
+		// The key may be signaled before it is routed
+		synchronized (watchDirs) {
+			WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE,
+					ENTRY_MODIFY);
+			List<WatchDir> owners = watchDirs.get(key);
+			if (owners == null) {
+				owners = new ArrayList<WatchDir>(1);
+				watchDirs.put(key, owners);
+			}
+			if (!owners.contains(watchDir))
+				owners.add(watchDir);
+			return key;
+		}
+	}
+
+	/**
+	 * Stops handing the events of the key to the given WatchDir, the key is
+	 * cancelled if no other one watches its directory
+	 */
+	public void unregister(WatchKey key, WatchDir watchDir) {
+		synchronized (watchDirs) {
+			List<WatchDir> owners = watchDirs.get(key);
+			if (owners != null) {
+				owners.remove(watchDir);
+				if (!owners.isEmpty())
+					return;
+				watchDirs.remove(key);
+			}
+		}
+		key.cancel();
+	}
+
+	private List<WatchDir> route(WatchKey key) {
+		synchronized (watchDirs) {
+			List<WatchDir> owners = watchDirs.get(key);
+			return owners == null ? null : new ArrayList<WatchDir>(owners);
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			for (;;) {
+				// wait for key to be signaled
+				WatchKey key = watcher.take();
+				List<WatchDir> owners = route(key);
+
+				if (owners == null) {
+					LOGGER.error("WatchKey not recognized!!");
+					key.cancel();
+					continue;
+				}
+
+				// Events are taken once and seen by every owner
+				List<WatchEvent<?>> events = key.pollEvents();
+				for (WatchDir watchDir : owners) {
+					try {
+						watchDir.processEvents(key, events);
+					} catch (RuntimeException e) {
+						LOGGER.error(e.getMessage(), e);
+					}
+				}
+
+				// The directory is no longer accessible
+				if (!key.reset()) {
+					for (WatchDir watchDir : owners) {
+						watchDir.keyInvalid(key);
+						unregister(key, watchDir);
+					}
+				}
+			}
+		} catch (ClosedWatchServiceException x) {
+			LOGGER.debug("WatchService closed");
+		} catch (InterruptedException x) {
+			LOGGER.debug("Watcher thread interrupted");
+		}
+	}
+}
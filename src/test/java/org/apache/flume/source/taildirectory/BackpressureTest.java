@@ -0,0 +1,179 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.flume.Context;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BackpressureTest {
+
+	private static final int CAPACITY = 200;
+	private static final int LINES = 3000;
+	private static final int DIRECTORIES = 10;
+
+	private Path dir;
+	private TestSource source;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("backpressure");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (source != null)
+			source.stop();
+		TestFiles.delete(dir);
+	}
+
+	private void start(Context context, int capacity, int transactionCapacity) {
+		source = new TestSource("backpressure-" + System.nanoTime(), capacity,
+				transactionCapacity);
+		source.start(context);
+	}
+
+	private void start(Context context) {
+		start(context, CAPACITY, CAPACITY);
+	}
+
+	private Context context() {
+		Context context = TestSource.context(dir);
+		context.put("backoffInitialDelay", "20");
+		context.put("backoffMaxDelay", "100");
+		return context;
+	}
+
+	private static List<String> writeLines(Path file, int count)
+			throws IOException {
+		List<String> lines = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++)
+			lines.add(file.getParent().getFileName() + "/" + file.getFileName()
+					+ " line " + i);
+		TestSource.append(file, lines.toArray(new String[count]));
+		return lines;
+	}
+
+	@Test
+	public void rejectedBatchesAreRetriedWithoutLoss() throws Exception {
+		start(context());
+		Thread.sleep(200);
+		List<String> expected = writeLines(dir.resolve("a.log"), LINES);
+
+		// Nothing is taken from the channel, it fills up
+		Thread.sleep(1000);
+		DirectoryTailSourceCounter counter = source.getSource().getCounter();
+		assertTrue(counter.getCounterChannelRetry() > 0);
+		assertEquals(CAPACITY, source.drain().size());
+
+		source.waitFor(LINES, 10000);
+		assertEquals(expected, source.settle(300));
+	}
+
+	@Test
+	public void rejectedBatchesAreDroppedWithoutBackpressure()
+			throws Exception {
+		Context context = context();
+		context.put("backpressure", "false");
+		start(context);
+		Thread.sleep(200);
+		writeLines(dir.resolve("a.log"), LINES);
+
+		Thread.sleep(1000);
+		DirectoryTailSourceCounter counter = source.getSource().getCounter();
+		assertTrue(counter.getCounterMessageSentError() > 0);
+		assertEquals(0, counter.getCounterChannelRetry());
+		assertEquals(CAPACITY, source.settle(300).size());
+	}
+
+	/**
+	 * Readers add events to the batch while a full one is retried, it is
+	 * still sent in transactions of at most batchSize events
+	 */
+	@Test
+	public void batchesFitTheTransactionCapacity() throws Exception {
+		Context context = context();
+		context.put("readerThreads", "4");
+		context.put("readQuantumLines", "10");
+		// The transaction capacity of the channel is the batch size
+		start(context, 1000, 100);
+		Thread.sleep(200);
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 8; i++)
+			expected.addAll(writeLines(dir.resolve("a" + i + ".log"), LINES / 2));
+
+		// Nothing is taken from the channel, readers pile events up meanwhile
+		Thread.sleep(1000);
+		assertTrue(source.getSource().getCounter().getCounterChannelRetry() > 0);
+
+		source.waitFor(expected.size(), 20000);
+		List<String> bodies = source.settle(300);
+		Collections.sort(expected);
+		Collections.sort(bodies);
+		assertEquals(expected, bodies);
+	}
+
+	/**
+	 * The budget is shared by the directories, each one holds a batch while
+	 * the channel is full. A reader thread waits while the batch it sends is
+	 * retried, several threads are needed to fill the budget.
+	 */
+	@Test
+	public void readsPauseAtMaxBufferedBytes() throws Exception {
+		Path[] dirs = new Path[DIRECTORIES];
+		for (int i = 0; i < DIRECTORIES; i++)
+			dirs[i] = Files.createDirectory(dir.resolve("d" + i));
+		Context context = TestSource.context(dirs);
+		context.put("backoffInitialDelay", "20");
+		context.put("backoffMaxDelay", "100");
+		context.put("maxBufferedBytes", "4096");
+		context.put("readQuantumBytes", "1024");
+		context.put("readerThreads", "4");
+		start(context);
+		Thread.sleep(200);
+		List<String> expected = new ArrayList<String>();
+		for (Path d : dirs)
+			expected.addAll(writeLines(d.resolve("a.log"), LINES / DIRECTORIES));
+
+		Thread.sleep(1000);
+		DirectoryTailSourceCounter counter = source.getSource().getCounter();
+		assertTrue(counter.getCounterReadPaused() > 0);
+		// Exceeded by at most a read quantum per reader thread
+		long buffered = counter.getBufferedBytes();
+		assertTrue("buffered " + buffered, buffered <= 4096 + 4 * 1024);
+
+		source.waitFor(expected.size(), 10000);
+		List<String> bodies = source.settle(300);
+		Collections.sort(expected);
+		Collections.sort(bodies);
+		assertEquals(expected, bodies);
+		assertEquals(0, counter.getBufferedBytes());
+	}
+}
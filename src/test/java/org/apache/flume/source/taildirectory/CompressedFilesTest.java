@@ -0,0 +1,127 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.flume.Context;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompressedFilesTest {
+
+	private Path dir;
+	private Path file;
+	private TestSource source;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("compressedfiles");
+		file = dir.resolve("app.log");
+		source = new TestSource("compressedfiles-" + System.nanoTime());
+		Context context = TestSource.context(dir);
+		context.put("compressedFiles", "true");
+		source.start(context);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		source.stop();
+		TestFiles.delete(dir);
+	}
+
+	/**
+	 * Compresses the file like logrotate does, the archive is written before
+	 * the file is deleted
+	 */
+	private static Path compress(Path path) throws IOException {
+		Path archive = path.resolveSibling(path.getFileName() + ".gz");
+		try (OutputStream out = new GZIPOutputStream(
+				Files.newOutputStream(archive))) {
+			Files.copy(path, out);
+		}
+		Files.delete(path);
+		return archive;
+	}
+
+	private static void gzip(Path archive, String... lines) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (String line : lines)
+			sb.append(line).append('\n');
+		try (OutputStream out = new GZIPOutputStream(
+				Files.newOutputStream(archive))) {
+			out.write(sb.toString().getBytes(TestSource.UTF8));
+		}
+	}
+
+	@Test
+	public void archivesOfRotatedFilesAreNotReadAgain() throws Exception {
+		Thread.sleep(200);
+		TestSource.append(file, "1", "2");
+		source.waitFor(2, 5000);
+
+		Path rotated = dir.resolve("app.log.1");
+		Files.move(file, rotated);
+		TestSource.append(file, "3");
+		source.waitFor(3, 5000);
+		compress(rotated);
+
+		Files.move(file, rotated);
+		TestSource.append(file, "4");
+		source.waitFor(4, 5000);
+		// Still tailed while it is compressed
+		compress(rotated);
+
+		// Read once the archives have not changed for a while
+		Thread.sleep(1500);
+		assertEquals(Arrays.asList("1", "2", "3", "4"), source.settle(500));
+	}
+
+	@Test
+	public void otherArchivesAreRead() throws Exception {
+		Thread.sleep(200);
+		TestSource.append(file, "1", "2");
+		source.waitFor(2, 5000);
+		Path rotated = dir.resolve("app.log.1");
+		Files.move(file, rotated);
+		Files.delete(rotated);
+		Thread.sleep(200);
+
+		// An archive of other lines at the path of a released file
+		gzip(dir.resolve("app.log.1.gz"), "a", "b", "c");
+		// An archive of a file never tailed
+		gzip(dir.resolve("old.log.gz"), "d");
+
+		// The archives are read in any order
+		source.waitFor(6, 5000);
+		List<String> lines = source.settle(500);
+		Collections.sort(lines);
+		assertEquals(Arrays.asList("1", "2", "a", "b", "c", "d"), lines);
+	}
+}
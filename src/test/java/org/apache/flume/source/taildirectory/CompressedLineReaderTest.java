@@ -0,0 +1,167 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompressedLineReaderTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private Path dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("compressed");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		TestFiles.delete(dir);
+	}
+
+	private Path gzip(String name, String content) throws IOException {
+		Path file = dir.resolve(name);
+		try (OutputStream out = new GZIPOutputStream(
+				Files.newOutputStream(file))) {
+			out.write(content.getBytes(UTF8));
+		}
+		return file;
+	}
+
+	private static List<String> lines(AbstractLineReader reader)
+			throws IOException {
+		List<String> lines = new ArrayList<String>();
+		while (reader.readLine())
+			lines.add(new String(reader.getLineArray(), reader.getLineOffset(),
+					reader.getLineLength(), UTF8));
+		return lines;
+	}
+
+	@Test
+	public void gzipLinesAreRead() throws IOException {
+		Path file = gzip("a.log.gz", "one\r\ntwo\nthree");
+		try (CompressedLineReader reader = new CompressedLineReader(
+				file.toFile(), 4)) {
+			// The last line has no terminator, the end of the file ends it
+			assertEquals(Arrays.asList("one", "two", "three"), lines(reader));
+			assertTrue(reader.isFinished());
+			assertEquals(14, reader.getPosition());
+		}
+	}
+
+	@Test
+	public void skipResumesAtTheDecompressedOffset() throws IOException {
+		Path file = gzip("a.log.gz", "one\ntwo\nthree\n");
+		try (CompressedLineReader reader = new CompressedLineReader(
+				file.toFile(), 64)) {
+			reader.skip(4);
+			assertEquals(4, reader.getPosition());
+			assertEquals(Arrays.asList("two", "three"), lines(reader));
+		}
+	}
+
+	@Test
+	public void zipEntriesAreReadAsOneFile() throws IOException {
+		Path file = dir.resolve("a.zip");
+		try (ZipOutputStream out = new ZipOutputStream(
+				Files.newOutputStream(file))) {
+			out.putNextEntry(new ZipEntry("dir/"));
+			out.putNextEntry(new ZipEntry("dir/1.log"));
+			out.write("one\ntwo".getBytes(UTF8));
+			out.putNextEntry(new ZipEntry("dir/2.log"));
+			out.write("three\n".getBytes(UTF8));
+		}
+		try (CompressedLineReader reader = new CompressedLineReader(
+				file.toFile(), 64)) {
+			assertEquals(Arrays.asList("one", "two", "three"), lines(reader));
+		}
+	}
+
+	@Test
+	public void truncatedGzipIsNotFinished() throws IOException {
+		Path file = gzip("a.log.gz", "one\ntwo\n");
+		byte[] bytes = Files.readAllBytes(file);
+		Files.write(file, Arrays.copyOf(bytes, bytes.length - 8));
+		try (CompressedLineReader reader = new CompressedLineReader(
+				file.toFile(), 64)) {
+			assertEquals(Arrays.asList("one", "two"), lines(reader));
+			assertFalse(reader.isFinished());
+		}
+	}
+
+	@Test
+	public void compressedNamesAreRecognized() {
+		assertTrue(CompressedLineReader.isCompressed(Paths.get("a.log.gz")));
+		assertTrue(CompressedLineReader.isCompressed(Paths.get("A.ZIP")));
+		assertFalse(CompressedLineReader.isCompressed(Paths.get("a.log")));
+	}
+
+	@Test
+	public void sourcePathDropsTheExtension() {
+		assertEquals(Paths.get("/logs/app.log.1"),
+				CompressedLineReader.getSourcePath(Paths.get("/logs/app.log.1.gz")));
+		assertEquals(Paths.get("/logs/app.log"),
+				CompressedLineReader.getSourcePath(Paths.get("/logs/app.log.ZIP")));
+		assertEquals(null,
+				CompressedLineReader.getSourcePath(Paths.get("/logs/app.log")));
+		assertEquals(null,
+				CompressedLineReader.getSourcePath(Paths.get("/logs/.gz")));
+	}
+
+	@Test
+	public void recordedLengthOfGzipFiles() throws IOException {
+		assertEquals(14, CompressedLineReader.getRecordedLength(gzip("a.log.gz",
+				"one\r\ntwo\nthree").toFile()));
+		assertEquals(0, CompressedLineReader.getRecordedLength(gzip("e.log.gz",
+				"").toFile()));
+
+		Path zip = dir.resolve("a.zip");
+		try (ZipOutputStream out = new ZipOutputStream(
+				Files.newOutputStream(zip))) {
+			out.putNextEntry(new ZipEntry("a.log"));
+			out.write("one\n".getBytes(UTF8));
+		}
+		assertEquals(-1, CompressedLineReader.getRecordedLength(zip.toFile()));
+
+		Path truncated = dir.resolve("t.log.gz");
+		Files.write(truncated, new byte[] { 0x1f, (byte) 0x8b, 8 });
+		assertEquals(-1,
+				CompressedLineReader.getRecordedLength(truncated.toFile()));
+	}
+}
@@ -0,0 +1,111 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DirectoryTailSourceCounterTest {
+
+	private Path dir;
+	private TestSource source;
+	private MBeanServer server;
+	private ObjectName name;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("counter");
+		String sourceName = "counter-" + System.nanoTime();
+		source = new TestSource(sourceName);
+		source.start(TestSource.context(dir));
+
+		server = ManagementFactory.getPlatformMBeanServer();
+		Set<ObjectName> names = server.queryNames(new ObjectName(
+				"org.apache.flume.*:type=SOURCE.DirectoryTailSource-" + sourceName),
+				null);
+		assertEquals(1, names.size());
+		name = names.iterator().next();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		source.stop();
+		TestFiles.delete(dir);
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Long> map(String attribute) throws Exception {
+		return (Map<String, Long>) server.getAttribute(name, attribute);
+	}
+
+	private long value(String attribute) throws Exception {
+		return (Long) server.getAttribute(name, attribute);
+	}
+
+	@Test
+	public void lagAndBytesReadOfEachFile() throws Exception {
+		Thread.sleep(200);
+		Path file = dir.resolve("app.log");
+		TestSource.append(file, "a", "b", "c");
+		source.waitFor(3, 5000);
+		source.settle(200);
+
+		String path = file.toString();
+		assertEquals(Collections.singletonMap(path, 6L), map("FileBytesRead"));
+		assertEquals(Collections.singletonMap(path, 0L), map("FileLag"));
+		assertEquals(Collections.singletonMap(dir.toString(), 6L),
+				map("DirectoryBytesRead"));
+		assertEquals(0, value("Lag"));
+
+		// Lines appended while the events of the directory wait are lag
+		WatchDir watchDir = source.getSource().getWatchDirs().iterator().next();
+		synchronized (watchDir.getRegistry()) {
+			TestSource.append(file, "dddd");
+			assertEquals(Collections.singletonMap(path, 5L), map("FileLag"));
+			assertEquals(Collections.singletonMap(dir.toString(), 5L),
+					map("DirectoryLag"));
+			assertEquals(5, value("Lag"));
+		}
+
+		source.waitFor(4, 5000);
+		source.settle(200);
+		assertEquals(Collections.singletonMap(path, 11L), map("FileBytesRead"));
+		assertEquals(Collections.singletonMap(path, 0L), map("FileLag"));
+		assertTrue(value("BytesRead") >= 11);
+
+		long commits = 0;
+		for (long count : map("CommitLatencyHistogram").values())
+			commits += count;
+		assertTrue(commits >= 1);
+	}
+}
@@ -0,0 +1,183 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.junit.Test;
+
+public class EventHeadersTest {
+
+	private static Map<String, String> fileHeaders() {
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("file", "/var/log/app.log");
+		headers.put("basename", "app.log");
+		return Collections.unmodifiableMap(headers);
+	}
+
+	@Test
+	public void offsetAndLineAreFormattedWhenRead() {
+		EventHeaders headers = new EventHeaders(fileHeaders(), "offset", 1234,
+				"line", 56);
+		assertEquals("1234", headers.get("offset"));
+		assertEquals("56", headers.get("line"));
+		assertEquals("app.log", headers.get("basename"));
+		assertTrue(headers.containsKey("offset"));
+		assertEquals(4, headers.size());
+		assertFalse(headers.isEmpty());
+	}
+
+	@Test
+	public void nullKeysDisableTheirHeaders() {
+		EventHeaders headers = new EventHeaders(
+				Collections.<String, String> emptyMap(), null, 1234, null, 56);
+		assertTrue(headers.isEmpty());
+		assertFalse(headers.containsKey("offset"));
+		assertNull(headers.get("null"));
+	}
+
+	@Test
+	public void parsedHeadersOverrideFileHeaders() {
+		Map<String, String> parsed = new HashMap<String, String>();
+		parsed.put("basename", "parsed");
+		parsed.put("level", "INFO");
+		EventHeaders headers = new EventHeaders(fileHeaders(), parsed, "offset",
+				0, null, 0);
+		assertEquals("parsed", headers.get("basename"));
+		assertEquals("INFO", headers.get("level"));
+		assertEquals("/var/log/app.log", headers.get("file"));
+
+		Map<String, String> expected = new HashMap<String, String>(fileHeaders());
+		expected.putAll(parsed);
+		expected.put("offset", "0");
+		assertEquals(expected, new HashMap<String, String>(headers));
+	}
+
+	@Test
+	public void changesDoNotReachTheSharedHeaders() {
+		Map<String, String> shared = fileHeaders();
+		Map<String, String> parsed = new HashMap<String, String>();
+		parsed.put("level", "INFO");
+		EventHeaders headers = new EventHeaders(shared, parsed, "offset", 10,
+				"line", 2);
+
+		headers.put("file", "changed");
+		headers.remove("basename");
+		headers.remove("level");
+		headers.put("offset", "0");
+		assertEquals("changed", headers.get("file"));
+		assertNull(headers.get("basename"));
+		assertFalse(headers.containsKey("level"));
+		assertEquals("0", headers.get("offset"));
+		assertEquals("2", headers.get("line"));
+
+		assertEquals(fileHeaders(), shared);
+		assertEquals(Collections.singletonMap("level", "INFO"), parsed);
+
+		headers.clear();
+		assertTrue(headers.isEmpty());
+		assertEquals(fileHeaders(), shared);
+	}
+
+	@Test
+	public void eventsCarryTheHeadersOfTheirLines() throws Exception {
+		Path dir = Files.createTempDirectory("headers");
+		TestSource source = new TestSource("headers-" + System.nanoTime());
+		try {
+			Context context = TestSource.context(dir);
+			context.put("fileHeader", "true");
+			context.put("basenameHeader", "true");
+			context.put("offsetHeader", "true");
+			context.put("lineHeader", "true");
+			context.put("inodeHeader", "true");
+			context.put("parsers", "kv");
+			context.put("parsers.kv.type", "keyValue");
+			context.put("parsers.kv.keys", "level");
+			source.start(context);
+			Thread.sleep(200);
+
+			Path file = dir.resolve("app.log");
+			TestSource.append(file, "level=INFO first", "second",
+					"level=WARN third");
+			source.waitFor(3, 5000);
+			String inode = FileKeys.getFileKey(file);
+
+			List<Event> events = source.getEvents();
+			assertEquals(3, events.size());
+			assertHeaders(events.get(0), file, inode, 0, 1, "INFO");
+			assertHeaders(events.get(1), file, inode, 17, 2, null);
+			assertHeaders(events.get(2), file, inode, 24, 3, "WARN");
+
+			// A sink changing the headers of an event does not change the others
+			Map<String, String> changed = events.get(0).getHeaders();
+			changed.put("file", "changed");
+			changed.remove("inode");
+			changed.put("level", "ERROR");
+
+			TestSource.append(file, "fourth");
+			source.waitFor(4, 5000);
+			events = source.getEvents();
+			assertHeaders(events.get(1), file, inode, 17, 2, null);
+			assertHeaders(events.get(3), file, inode, 41, 4, null);
+
+			Map<String, String> cached = source.getSource().getWatchDirs()
+					.iterator().next().getFileSets().iterator().next().getHeaders();
+			assertEquals(file.toString(), cached.get("file"));
+			assertEquals(inode, cached.get("inode"));
+			assertFalse(cached.containsKey("level"));
+
+			// The renamed file gets new headers, the events sent keep theirs
+			Path rotated = dir.resolve("app.log.1");
+			Files.move(file, rotated);
+			Thread.sleep(200);
+			TestSource.append(rotated, "fifth");
+			source.waitFor(5, 5000);
+			events = source.getEvents();
+			assertHeaders(events.get(3), file, inode, 41, 4, null);
+			assertHeaders(events.get(4), rotated, inode, 48, 5, null);
+		} finally {
+			source.stop();
+			TestFiles.delete(dir);
+		}
+	}
+
+	private static void assertHeaders(Event event, Path file, String inode,
+			long offset, long line, String level) {
+		Map<String, String> headers = event.getHeaders();
+		assertEquals(file.toString(), headers.get("file"));
+		assertEquals(file.getFileName().toString(), headers.get("basename"));
+		assertEquals(inode, headers.get("inode"));
+		assertEquals(String.valueOf(offset), headers.get("offset"));
+		assertEquals(String.valueOf(line), headers.get("line"));
+		assertEquals(level, headers.get("level"));
+		assertEquals(level == null ? 5 : 6, headers.size());
+	}
+}
@@ -0,0 +1,96 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.flume.Context;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Eviction is checked through a source, the evicted files are closed by
+ * their directory
+ */
+public class FileHandlePoolTest {
+
+	private static final int FILES = 6;
+	private static final int ROUNDS = 5;
+
+	private Path dir;
+	private TestSource source;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("handles");
+		source = new TestSource("handles-" + System.nanoTime());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		source.stop();
+		TestFiles.delete(dir);
+	}
+
+	@Test
+	public void evictedFilesResumeAtTheirOffset() throws Exception {
+		Context context = TestSource.context(dir);
+		context.put("maxOpenFiles", "2");
+		source.start(context);
+		Thread.sleep(200);
+
+		Map<String, List<String>> expected = new HashMap<String, List<String>>();
+		for (int round = 0; round < ROUNDS; round++) {
+			for (int i = 0; i < FILES; i++) {
+				String name = "f" + i;
+				String line = name + " " + round;
+				TestSource.append(dir.resolve(name + ".log"), line);
+				if (!expected.containsKey(name))
+					expected.put(name, new ArrayList<String>());
+				expected.get(name).add(line);
+			}
+			Thread.sleep(100);
+		}
+		source.waitFor(FILES * ROUNDS, 5000);
+
+		// Every file keeps its order, with nothing lost or read twice
+		Map<String, List<String>> received = new HashMap<String, List<String>>();
+		for (String body : source.settle(300)) {
+			String name = body.substring(0, body.indexOf(' '));
+			if (!received.containsKey(name))
+				received.put(name, new ArrayList<String>());
+			received.get(name).add(body);
+		}
+		assertEquals(expected, received);
+
+		DirectoryTailSourceCounter counter = source.getSource().getCounter();
+		assertTrue(counter.getCounterFileEvicted() > 0);
+		assertTrue(counter.getOpenFiles() <= 2);
+	}
+}
@@ -0,0 +1,150 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileReaderPoolTest {
+
+	private FileReaderPool pool;
+
+	@Before
+	public void setUp() {
+		pool = new FileReaderPool("pool-test", 4);
+	}
+
+	@After
+	public void tearDown() {
+		pool.stop(1000);
+	}
+
+	private static FileSet fileSet(String name) throws IOException {
+		// Not opened, the file does not have to exist
+		return new FileSet(Paths.get("/var/log", name), "end");
+	}
+
+	@Test
+	public void tasksOfAFileRunInOrderOnOneThread() throws Exception {
+		FileSet fileSet = fileSet("a.log");
+		final List<Integer> order = Collections
+				.synchronizedList(new ArrayList<Integer>());
+		final Set<String> threads = Collections
+				.synchronizedSet(new HashSet<String>());
+		final CountDownLatch done = new CountDownLatch(100);
+
+		for (int i = 0; i < 100; i++) {
+			final int task = i;
+			assertTrue(pool.execute(fileSet, new Runnable() {
+				@Override
+				public void run() {
+					order.add(task);
+					threads.add(Thread.currentThread().getName());
+					done.countDown();
+				}
+			}));
+		}
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i = 0; i < 100; i++)
+			expected.add(i);
+		assertEquals(expected, order);
+		assertEquals(1, threads.size());
+		assertTrue(threads.iterator().next().startsWith("pool-test-reader-"));
+	}
+
+	@Test
+	public void queuedFileIsReadOnce() throws Exception {
+		FileSet fileSet = fileSet("a.log");
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final AtomicInteger reads = new AtomicInteger();
+		Runnable read = new Runnable() {
+			@Override
+			public void run() {
+				reads.incrementAndGet();
+				try {
+					blocked.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+
+		pool.read(fileSet, read);
+		pool.read(fileSet, read);
+		pool.read(fileSet, read);
+		blocked.countDown();
+		pool.stop(1000);
+
+		assertEquals(1, reads.get());
+	}
+
+	@Test
+	public void fileIsQueuedAgainOnceCleared() throws Exception {
+		final FileSet fileSet = fileSet("a.log");
+		final AtomicInteger reads = new AtomicInteger();
+		Runnable read = new Runnable() {
+			@Override
+			public void run() {
+				fileSet.clearReadQueued();
+				reads.incrementAndGet();
+			}
+		};
+
+		pool.read(fileSet, read);
+		waitFor(reads, 1);
+		pool.read(fileSet, read);
+		waitFor(reads, 2);
+		assertEquals(2, reads.get());
+	}
+
+	@Test
+	public void stoppedPoolRejectsTasks() throws Exception {
+		pool.stop(1000);
+		assertFalse(pool.execute(fileSet("a.log"), new Runnable() {
+			@Override
+			public void run() {
+			}
+		}));
+	}
+
+	private static void waitFor(AtomicInteger counter, int value)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (counter.get() < value && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+	}
+}
@@ -0,0 +1,150 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileRegistryTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private Path dir;
+	private FileRegistry registry;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("registry");
+		registry = new FileRegistry(LineReader.DEFAULT_BUFFER_SIZE, 0,
+				LineReader.LongLinePolicy.TRUNCATE, null);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for (FileSet fileSet : registry.getFileSets())
+			fileSet.close();
+		TestFiles.delete(dir);
+	}
+
+	private Path write(String name, String content) throws IOException {
+		return Files.write(dir.resolve(name), content.getBytes(UTF8));
+	}
+
+	@Test
+	public void fileIsFoundByPathAndKey() throws IOException {
+		Path file = write("a.log", "1\n");
+		FileSet fileSet = registry.addFileSet(file, "end");
+
+		String fileKey = FileKeys.getFileKey(file);
+		assertEquals(fileKey, registry.getFileKey(file));
+		assertSame(fileSet, registry.get(fileKey));
+		assertSame(fileSet, registry.getFileSet(file));
+		assertSame(fileSet, registry.addFileSet(file, "end"));
+		assertEquals(1, registry.size());
+	}
+
+	@Test
+	public void renameFollowedByRecreate() throws IOException {
+		Path file = write("a.log", "1\n");
+		FileSet first = registry.addFileSet(file, "end");
+
+		Path rotated = dir.resolve("a.log.1");
+		Files.move(file, rotated);
+		// The rename is seen as the same file under another path
+		assertSame(first, registry.addFileSet(rotated, "end"));
+		assertEquals(rotated, first.getFilePath());
+		assertEquals(first.getFileKey(), registry.getFileKey(rotated));
+
+		write("a.log", "2\n");
+		FileSet second = registry.addFileSet(file, "begin");
+		assertNotSame(first, second);
+		assertEquals(second.getFileKey(), registry.getFileKey(file));
+		assertEquals(first.getFileKey(), registry.getFileKey(rotated));
+		assertEquals(2, registry.size());
+		assertEquals(new HashSet<Path>(Arrays.asList(file, rotated)),
+				new HashSet<Path>(registry.getPaths()));
+	}
+
+	@Test
+	public void removingARotatedFileKeepsItsSuccessor() throws IOException {
+		Path file = write("a.log", "1\n");
+		FileSet first = registry.addFileSet(file, "end");
+		// Written aside first so it can not reuse the inode of the first one
+		Files.move(write("a.log.tmp", "2\n"), file,
+				StandardCopyOption.REPLACE_EXISTING);
+		FileSet second = registry.addFileSet(file, "begin");
+
+		// The path now points to the new file, it is kept
+		registry.remove(first);
+		assertNull(registry.get(first.getFileKey()));
+		assertSame(second, registry.getFileSet(file));
+		assertEquals(1, registry.size());
+
+		registry.remove(second);
+		assertNull(registry.getFileKey(file));
+		assertEquals(0, registry.size());
+	}
+
+	@Test
+	public void renameKeepsTheFileSet() throws IOException {
+		Path file = write("a.log", "1\n");
+		FileSet fileSet = registry.addFileSet(file, "end");
+		Path rotated = dir.resolve("a.log.1");
+		Files.move(file, rotated);
+
+		registry.renamed(fileSet, rotated);
+		assertEquals(fileSet.getFileKey(), registry.removePath(file));
+		assertNull(registry.getFileKey(file));
+		assertSame(fileSet, registry.get(registry.getFileKey(rotated)));
+		List<Path> paths = registry.getPaths();
+		assertEquals(Collections.singletonList(rotated), paths);
+	}
+
+	@Test
+	public void missingFilesAndLinksAreNotAdded() throws IOException {
+		assertNull(registry.addFileSet(dir.resolve("missing.log"), "end"));
+
+		Path file = write("a.log", "1\n");
+		Path link = dir.resolve("link.log");
+		try {
+			Files.createSymbolicLink(link, file);
+		} catch (UnsupportedOperationException e) {
+			return;
+		}
+		assertNull(registry.addFileSet(link, "end"));
+		assertNotNull(registry.addFileSet(file, "end"));
+	}
+}
@@ -0,0 +1,114 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.flume.Context;
+import org.junit.Test;
+
+public class JsonFieldParserTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static JsonFieldParser parser(String fields) {
+		Context context = new Context();
+		context.put("fields", fields);
+		JsonFieldParser parser = new JsonFieldParser();
+		parser.configure(context);
+		return parser;
+	}
+
+	private static Map<String, String> parse(JsonFieldParser parser,
+			String line) {
+		byte[] bytes = ("ignored\n" + line + "\nignored").getBytes(UTF8);
+		Map<String, String> headers = new HashMap<String, String>();
+		parser.parse(bytes, 8, line.getBytes(UTF8).length, UTF8, headers);
+		return headers;
+	}
+
+	private static Map<String, String> map(String... entries) {
+		Map<String, String> map = new HashMap<String, String>();
+		for (int i = 0; i < entries.length; i += 2)
+			map.put(entries[i], entries[i + 1]);
+		return map;
+	}
+
+	@Test
+	public void topLevelAndNestedFieldsAreCopied() {
+		JsonFieldParser parser = parser("level http.status http.ok user.id");
+		assertEquals(map("level", "ERROR", "http.status", "503",
+				"http.ok", "false"),
+				parse(parser, " {\"level\": \"ERROR\", \"http\": {\"status\": 503,"
+						+ " \"ok\": false}, \"user\": null}"));
+	}
+
+	@Test
+	public void otherFieldsAreSkipped() {
+		JsonFieldParser parser = parser("level");
+		assertEquals(map("level", "INFO"),
+				parse(parser, "{\"list\": [1, {\"level\": \"x\"}, \"]}\"], "
+						+ "\"obj\": {\"level\": \"y\"}, \"level\": \"INFO\"}"));
+	}
+
+	@Test
+	public void nonStringValuesAreCopiedAsWritten() {
+		JsonFieldParser parser = parser("n f list obj");
+		assertEquals(map("n", "-1.5e3", "f", "true", "list", "[1, 2]",
+				"obj", "{\"a\": 1}"),
+				parse(parser, "{\"n\": -1.5e3, \"f\": true, \"list\": [1, 2], "
+						+ "\"obj\": {\"a\": 1}}"));
+	}
+
+	@Test
+	public void stringsAreUnescaped() {
+		JsonFieldParser parser = parser("msg");
+		assertEquals(map("msg", "a \"b\"\n\u00e9\\"),
+				parse(parser, "{\"msg\": \"a \\\"b\\\"\\n\\u00e9\\\\\"}"));
+		assertEquals(map("msg", "caf\u00e9"),
+				parse(parser, "{\"msg\": \"caf\u00e9\"}"));
+	}
+
+	@Test
+	public void invalidBodiesStopAtTheError() {
+		JsonFieldParser parser = parser("a b");
+		assertEquals(Collections.<String, String> emptyMap(),
+				parse(parser, "plain text a=1"));
+		assertEquals(Collections.<String, String> emptyMap(),
+				parse(parser, "[{\"a\": 1}]"));
+		// Fields before the error are kept
+		assertEquals(map("a", "1"), parse(parser, "{\"a\": 1, \"b\" 2}"));
+	}
+
+	@Test
+	public void prefixIsAddedToHeaders() {
+		Context context = new Context();
+		context.put("fields", "level");
+		context.put("headerPrefix", "json.");
+		JsonFieldParser parser = new JsonFieldParser();
+		parser.configure(context);
+		assertEquals(map("json.level", "INFO"),
+				parse(parser, "{\"level\":\"INFO\"}"));
+	}
+}
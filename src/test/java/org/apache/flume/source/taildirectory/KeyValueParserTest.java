@@ -0,0 +1,109 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.flume.Context;
+import org.junit.Test;
+
+public class KeyValueParserTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static KeyValueParser parser(String... properties) {
+		Context context = new Context();
+		for (int i = 0; i < properties.length; i += 2)
+			context.put(properties[i], properties[i + 1]);
+		KeyValueParser parser = new KeyValueParser();
+		parser.configure(context);
+		return parser;
+	}
+
+	private static Map<String, String> parse(KeyValueParser parser,
+			String line) {
+		byte[] bytes = ("ignored\n" + line + "\nignored").getBytes(UTF8);
+		Map<String, String> headers = new HashMap<String, String>();
+		parser.parse(bytes, 8, line.getBytes(UTF8).length, UTF8, headers);
+		return headers;
+	}
+
+	private static Map<String, String> map(String... entries) {
+		Map<String, String> map = new HashMap<String, String>();
+		for (int i = 0; i < entries.length; i += 2)
+			map.put(entries[i], entries[i + 1]);
+		return map;
+	}
+
+	@Test
+	public void everyPairIsAHeaderWithoutKeys() {
+		assertEquals(map("level", "INFO", "user", "bob", "empty", ""),
+				parse(parser(), "level=INFO  user=bob empty= noise =x"));
+	}
+
+	@Test
+	public void onlyConfiguredKeysAreKept() {
+		KeyValueParser parser = parser("keys", "level user",
+				"headerPrefix", "kv.");
+		assertEquals(map("kv.level", "WARN", "kv.user", "al"),
+				parse(parser, "ts=1 level=WARN user=al levels=2 use=x"));
+	}
+
+	@Test
+	public void quotedValuesKeepTheirSeparators() {
+		assertEquals(map("msg", "disk full, retrying", "path", "/tmp/a b",
+				"n", "3"),
+				parse(parser(), "msg=\"disk full, retrying\" path=\"/tmp/a b\" n=3"));
+	}
+
+	@Test
+	public void escapedQuotesAreUnescaped() {
+		assertEquals(map("msg", "say \"hi\" \\ bye", "next", "1"),
+				parse(parser(), "msg=\"say \\\"hi\\\" \\\\ bye\" next=1"));
+	}
+
+	@Test
+	public void unterminatedQuoteRunsToTheEnd() {
+		assertEquals(map("a", "1", "msg", "no end b=2"),
+				parse(parser(), "a=1 msg=\"no end b=2"));
+	}
+
+	@Test
+	public void separatorsAreConfigurable() {
+		KeyValueParser parser = parser("pairSeparator", ",",
+				"valueSeparator", ":");
+		assertEquals(map("level", "INFO", "msg", "a b", "quoted", "x,y"),
+				parse(parser, "level:INFO,msg:a b,,quoted:\"x,y\""));
+	}
+
+	@Test
+	public void nonAsciiValuesAreDecoded() {
+		assertEquals(map("user", "J\u00fcrgen", "city", "\u6771\u4eac"),
+				parse(parser(), "user=J\u00fcrgen city=\"\u6771\u4eac\""));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void separatorMustBeASingleCharacter() {
+		parser("pairSeparator", ", ");
+	}
+}
@@ -0,0 +1,100 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void emptyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(50));
+		assertEquals(0, histogram.getPercentile(99));
+	}
+
+	@Test
+	public void latenciesFallInTheBucketOfTheirUpperBound() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(0, 1);
+		histogram.record(1, 1);
+		histogram.record(2, 2);
+		histogram.record(3, 1);
+		histogram.record(1000, 1);
+		histogram.record(1001, 1);
+		histogram.record(400000, 1);
+
+		Map<String, Long> buckets = histogram.getBuckets();
+		assertEquals(17, buckets.size());
+		assertEquals(Long.valueOf(2), buckets.get("<=1ms"));
+		assertEquals(Long.valueOf(2), buckets.get("<=2ms"));
+		assertEquals(Long.valueOf(1), buckets.get("<=5ms"));
+		assertEquals(Long.valueOf(1), buckets.get("<=1000ms"));
+		assertEquals(Long.valueOf(1), buckets.get("<=2000ms"));
+		assertEquals(Long.valueOf(1), buckets.get(">300000ms"));
+		assertEquals(Long.valueOf(0), buckets.get("<=10ms"));
+		assertEquals(8, histogram.getCount());
+		assertEquals(400000, histogram.getMax());
+	}
+
+	@Test
+	public void negativeLatenciesAndEmptyRecordings() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5, 3);
+		histogram.record(10, 0);
+		histogram.record(10, -1);
+		assertEquals(3, histogram.getCount());
+		assertEquals(Long.valueOf(3), histogram.getBuckets().get("<=1ms"));
+		assertEquals(0, histogram.getMax());
+	}
+
+	@Test
+	public void percentilesAreBucketUpperBounds() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		// 90 commits of 3 ms, 9 of 40 ms and 1 of 700 ms
+		histogram.record(3, 90);
+		histogram.record(40, 9);
+		histogram.record(700, 1);
+
+		assertEquals(100, histogram.getCount());
+		assertEquals(5, histogram.getPercentile(0));
+		assertEquals(5, histogram.getPercentile(50));
+		assertEquals(5, histogram.getPercentile(90));
+		assertEquals(50, histogram.getPercentile(91));
+		assertEquals(50, histogram.getPercentile(99));
+		assertEquals(700, histogram.getPercentile(99.5));
+		assertEquals(700, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void percentilesDoNotExceedTheMax() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(7, 10);
+		assertEquals(7, histogram.getPercentile(50));
+
+		histogram.record(400000, 1);
+		assertEquals(400000, histogram.getPercentile(100));
+	}
+}
@@ -0,0 +1,111 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+
+import org.apache.flume.Context;
+import org.junit.Test;
+
+public class LineAggregatorTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private static LineAggregator aggregator(String key, String pattern,
+			Charset charset) {
+		Context context = new Context();
+		context.put(key, pattern);
+		return new LineAggregator(context, charset);
+	}
+
+	private static boolean startsEvent(LineAggregator aggregator, String line,
+			Charset charset) {
+		// The line is read in the middle of a larger buffer
+		byte[] bytes = ("xx\n" + line + "\nyy").getBytes(charset);
+		int offset = "xx\n".getBytes(charset).length;
+		return aggregator.startsEvent(bytes, offset,
+				line.getBytes(charset).length);
+	}
+
+	@Test
+	public void everyLineIsAnEventWithoutPatterns() {
+		LineAggregator aggregator = new LineAggregator(new Context(), UTF8);
+		assertFalse(aggregator.isEnabled());
+		assertTrue(startsEvent(aggregator, "\tat Foo.bar()", UTF8));
+	}
+
+	@Test
+	public void startPatternStartsEvents() {
+		LineAggregator aggregator = aggregator("multilineStartPattern",
+				"^\\d{4}-\\d{2}-\\d{2} ", UTF8);
+		assertTrue(startsEvent(aggregator, "2024-01-02 ERROR failed", UTF8));
+		assertFalse(startsEvent(aggregator, "\tat Foo.bar()", UTF8));
+		assertFalse(startsEvent(aggregator, "", UTF8));
+	}
+
+	@Test
+	public void continuePatternAppendsLines() {
+		LineAggregator aggregator = aggregator("multilineContinuePattern",
+				"^(\\s|Caused by:)", UTF8);
+		assertTrue(startsEvent(aggregator, "ERROR failed", UTF8));
+		assertFalse(startsEvent(aggregator, "\tat Foo.bar()", UTF8));
+		assertFalse(startsEvent(aggregator, "Caused by: x", UTF8));
+	}
+
+	@Test
+	public void asciiPatternMatchesLinesWithOtherCharacters() {
+		LineAggregator aggregator = aggregator("multilineStartPattern",
+				"^\\[.*\\]$", UTF8);
+		assertTrue(startsEvent(aggregator, "[caf\u00e9 \u65e5\u672c]", UTF8));
+		assertFalse(startsEvent(aggregator, "caf\u00e9", UTF8));
+	}
+
+	@Test
+	public void nonAsciiPatternMatchesDecodedLines() {
+		LineAggregator aggregator = aggregator("multilineStartPattern",
+				"^(D\u00e9but|\u958b\u59cb) ", UTF8);
+		assertTrue(startsEvent(aggregator, "D\u00e9but de la requ\u00eate", UTF8));
+		assertTrue(startsEvent(aggregator, "\u958b\u59cb \u8981\u6c42", UTF8));
+		assertFalse(startsEvent(aggregator, "Debut sans accent", UTF8));
+		assertFalse(startsEvent(aggregator, " D\u00e9but indent\u00e9", UTF8));
+	}
+
+	@Test
+	public void nonAsciiPatternUsesTheInputCharset() {
+		LineAggregator aggregator = aggregator("multilineContinuePattern",
+				"^\u00bb", LATIN1);
+		assertFalse(startsEvent(aggregator, "\u00bb suite", LATIN1));
+		assertTrue(startsEvent(aggregator, "d\u00e9but", LATIN1));
+	}
+
+	@Test
+	public void longDecodedLinesAreMatched() {
+		LineAggregator aggregator = aggregator("multilineStartPattern",
+				"\u00e9$", UTF8);
+		StringBuilder line = new StringBuilder();
+		while (line.length() < 100000)
+			line.append("\u00e0 ");
+		assertTrue(startsEvent(aggregator, line + "\u00e9", UTF8));
+		assertFalse(startsEvent(aggregator, "\u00e9 ", UTF8));
+	}
+}
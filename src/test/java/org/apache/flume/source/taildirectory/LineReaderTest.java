@@ -0,0 +1,247 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LineReaderTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private Path dir;
+	private Path file;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("lines");
+		file = dir.resolve("a.log");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		TestFiles.delete(dir);
+	}
+
+	private void write(String content) throws IOException {
+		Files.write(file, content.getBytes(UTF8), StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND);
+	}
+
+	private LineReader open(int bufferSize) throws IOException {
+		return new LineReader(file.toFile(), bufferSize);
+	}
+
+	private static List<String> lines(AbstractLineReader reader)
+			throws IOException {
+		List<String> lines = new ArrayList<String>();
+		while (reader.readLine())
+			lines.add(new String(reader.getLineArray(), reader.getLineOffset(),
+					reader.getLineLength(), UTF8));
+		return lines;
+	}
+
+	@Test
+	public void linesAreSplitOnLineFeeds() throws IOException {
+		write("one\ntwo\n\nfour\n");
+		try (LineReader reader = open(64)) {
+			assertEquals(Arrays.asList("one", "two", "", "four"), lines(reader));
+			assertEquals(14, reader.getPosition());
+		}
+	}
+
+	@Test
+	public void carriageReturnBeforeLineFeedIsDropped() throws IOException {
+		write("one\r\ntwo\r\n\r\nfo\rur\n");
+		try (LineReader reader = open(64)) {
+			assertEquals(Arrays.asList("one", "two", "", "fo\rur"),
+					lines(reader));
+		}
+	}
+
+	@Test
+	public void incompleteLastLineWaitsForItsTerminator() throws IOException {
+		write("one\ntw");
+		try (LineReader reader = open(64)) {
+			assertEquals(Arrays.asList("one"), lines(reader));
+			assertEquals(4, reader.getPosition());
+
+			write("o\r");
+			assertEquals(Arrays.<String> asList(), lines(reader));
+			write("\nthree\n");
+			assertEquals(Arrays.asList("two", "three"), lines(reader));
+			assertEquals(15, reader.getPosition());
+		}
+	}
+
+	@Test
+	public void linesSpanningBufferFillsAreJoined() throws IOException {
+		StringBuilder content = new StringBuilder();
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 50; i++) {
+			StringBuilder line = new StringBuilder();
+			for (int j = 0; j < i; j++)
+				line.append((char) ('a' + j % 26));
+			expected.add(line.toString());
+			content.append(line).append("\r\n");
+		}
+		write(content.toString());
+		// Lines and terminators are cut at every offset of the buffer
+		try (LineReader reader = open(7)) {
+			assertEquals(expected, lines(reader));
+			assertEquals(content.length(), reader.getPosition());
+		}
+	}
+
+	@Test
+	public void multiByteCharactersAreKept() throws IOException {
+		String line = "caf\u00e9 \u65e5\u672c \ud83d\ude00";
+		write(line + "\n" + line + "\n");
+		try (LineReader reader = open(5)) {
+			assertEquals(Arrays.asList(line, line), lines(reader));
+		}
+	}
+
+	@Test
+	public void seekResumesAtAnOffset() throws IOException {
+		write("one\ntwo\nthree\n");
+		try (LineReader reader = open(64)) {
+			reader.seek(4);
+			assertEquals(Arrays.asList("two", "three"), lines(reader));
+		}
+	}
+
+	@Test
+	public void seekToLastLineSkipsTheCompleteLines() throws IOException {
+		write("one\ntwo\nthree\n");
+		try (LineReader reader = open(4)) {
+			reader.seekToLastLine();
+			assertEquals(8, reader.getPosition());
+			assertEquals(Arrays.asList("three"), lines(reader));
+		}
+	}
+
+	@Test
+	public void seekToLastLineOfAFileWithoutTerminator() throws IOException {
+		write("one\ntwo");
+		try (LineReader reader = open(64)) {
+			reader.seekToLastLine();
+			assertEquals(4, reader.getPosition());
+		}
+	}
+
+	@Test
+	public void truncatedFileIsDetected() throws IOException {
+		write("one\ntwo\n");
+		try (LineReader reader = open(64)) {
+			lines(reader);
+			assertFalse(reader.isTruncated());
+			Files.write(file, "1\n".getBytes(UTF8));
+			assertTrue(reader.isTruncated());
+			assertEquals(2, reader.length());
+		}
+	}
+
+	private LineReader open(int bufferSize, int maxLineBytes,
+			AbstractLineReader.LongLinePolicy policy) throws IOException {
+		LineReader reader = open(bufferSize);
+		reader.setMaxLineBytes(maxLineBytes, policy);
+		return reader;
+	}
+
+	@Test
+	public void longLinesAreTruncated() throws IOException {
+		write("0123456789\nabc\n0123456789abcdef\r\n");
+		try (LineReader reader = open(4, 8,
+				AbstractLineReader.LongLinePolicy.TRUNCATE)) {
+			assertEquals(Arrays.asList("01234567", "abc", "01234567"),
+					lines(reader));
+			assertEquals(2, reader.drainLongLines());
+			assertEquals(0, reader.drainLongLines());
+			assertEquals(33, reader.getPosition());
+		}
+	}
+
+	@Test
+	public void longLinesAreSplit() throws IOException {
+		write("0123456789\nabc\n0123456789abcdef\n");
+		try (LineReader reader = open(4, 8,
+				AbstractLineReader.LongLinePolicy.SPLIT)) {
+			assertEquals(Arrays.asList("01234567", "89", "abc", "01234567",
+					"89abcdef"), lines(reader));
+			// A split line is counted once
+			assertEquals(2, reader.drainLongLines());
+		}
+	}
+
+	@Test
+	public void splitPartsResumeAtTheirOffset() throws IOException {
+		write("0123456789\nabc\n");
+		try (LineReader reader = open(64, 4,
+				AbstractLineReader.LongLinePolicy.SPLIT)) {
+			assertTrue(reader.readLine());
+			assertEquals(4, reader.getPosition());
+		}
+		try (LineReader reader = open(64, 4,
+				AbstractLineReader.LongLinePolicy.SPLIT)) {
+			reader.seek(4);
+			assertEquals(Arrays.asList("4567", "89", "abc"), lines(reader));
+		}
+	}
+
+	@Test
+	public void longLinesAreSkipped() throws IOException {
+		write("0123456789\nabc\n01234567\n");
+		try (LineReader reader = open(4, 8,
+				AbstractLineReader.LongLinePolicy.SKIP)) {
+			assertEquals(Arrays.asList("abc", "01234567"), lines(reader));
+			assertEquals(1, reader.drainLongLines());
+			assertEquals(24, reader.getPosition());
+		}
+	}
+
+	@Test
+	public void longLineBeingWrittenIsReturnedOnceComplete()
+			throws IOException {
+		write("");
+		try (LineReader reader = open(16, 8,
+				AbstractLineReader.LongLinePolicy.TRUNCATE)) {
+			for (int i = 0; i < 100; i++) {
+				write("0123456789");
+				assertFalse(reader.readLine());
+			}
+			write("\nabc\n");
+			assertEquals(Arrays.asList("01234567", "abc"), lines(reader));
+		}
+	}
+}
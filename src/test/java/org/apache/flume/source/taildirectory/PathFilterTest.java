@@ -0,0 +1,95 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+public class PathFilterTest {
+
+	private static final Path DIR = Paths.get("/var/log/app");
+
+	private static PathFilter filter(String filenamePattern, String includes,
+			String excludes) {
+		return new PathFilter(filenamePattern, includes, excludes,
+				PathFilter.DEFAULT_CACHE_SIZE);
+	}
+
+	@Test
+	public void everyFileIsAcceptedWithoutPatterns() {
+		PathFilter filter = filter(null, null, null);
+		assertTrue(filter.accept(DIR.resolve("app.log")));
+		assertTrue(filter.accept(DIR.resolve("app.log.1.gz")));
+	}
+
+	@Test
+	public void filenamePatternMatchesTheWholeAbsolutePath() {
+		PathFilter filter = filter(".*/app/[^/]*\\.log", "", "");
+		assertTrue(filter.accept(DIR.resolve("app.log")));
+		assertFalse(filter.accept(DIR.resolve("app.log.1")));
+		// A partial match is not enough
+		assertFalse(filter(".*\\.log", null, null).accept(
+				DIR.resolve("app.log.1")));
+	}
+
+	@Test
+	public void includeGlobsMatchTheFileName() {
+		PathFilter filter = filter(null, "*.log  access-*.txt", null);
+		assertTrue(filter.accept(DIR.resolve("app.log")));
+		assertTrue(filter.accept(DIR.resolve("access-2024.txt")));
+		assertFalse(filter.accept(DIR.resolve("app.txt")));
+		// Globs are matched against the name, not the path
+		assertFalse(filter(null, "app/*.log", null).accept(
+				DIR.resolve("app.log")));
+	}
+
+	@Test
+	public void excludesWinOverIncludes() {
+		PathFilter filter = filter(null, "*.log*", "*.gz *.tmp");
+		assertTrue(filter.accept(DIR.resolve("app.log.1")));
+		assertFalse(filter.accept(DIR.resolve("app.log.1.gz")));
+		assertFalse(filter(null, null, "*.tmp").accept(
+				DIR.resolve("app.log.tmp")));
+	}
+
+	@Test
+	public void regexPatternsAreSupported() {
+		PathFilter filter = filter(null, "regex:app-\\d+\\.log glob:*.out",
+				"regex:.*-debug\\..*");
+		assertTrue(filter.accept(DIR.resolve("app-12.log")));
+		assertTrue(filter.accept(DIR.resolve("server.out")));
+		assertFalse(filter.accept(DIR.resolve("app-x.log")));
+		assertFalse(filter.accept(DIR.resolve("server-debug.out")));
+	}
+
+	@Test
+	public void decisionsDoNotDependOnTheCache() {
+		PathFilter filter = new PathFilter(null, "*.log", null, 2);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(filter.accept(DIR.resolve("a.log")));
+			assertFalse(filter.accept(DIR.resolve("b.txt")));
+			assertTrue(filter.accept(DIR.resolve("c.log")));
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.flume.Context;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PollingTest {
+
+	private Path dir;
+	private Path file;
+	private TestSource source;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("polling");
+		file = dir.resolve("app.log");
+		source = new TestSource("polling-" + System.nanoTime());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		source.stop();
+		TestFiles.delete(dir);
+	}
+
+	private WatchDir start(String watchMode, String pollFileSystems) {
+		Context context = TestSource.context(dir);
+		context.put("watchMode", watchMode);
+		context.put("pollMinInterval", "50");
+		context.put("pollMaxInterval", "200");
+		if (pollFileSystems != null)
+			context.put("pollFileSystems", pollFileSystems);
+		source.start(context);
+		return source.getSource().getWatchDirs().iterator().next();
+	}
+
+	/**
+	 * Waits until the directory tails the given number of files
+	 */
+	private static void waitForFiles(WatchDir watchDir, int count)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (watchDir.getFileSets().size() != count
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(50);
+		assertEquals(count, watchDir.getFileSets().size());
+	}
+
+	/**
+	 * Creates, appends to, rotates and deletes the file of a polled directory
+	 */
+	private void followChanges(WatchDir watchDir) throws Exception {
+		Thread.sleep(200);
+		TestSource.append(file, "1", "2");
+		source.waitFor(2, 5000);
+		TestSource.append(file, "3");
+		source.waitFor(3, 5000);
+
+		Path rotated = dir.resolve("app.log.1");
+		Files.move(file, rotated);
+		TestSource.append(rotated, "4");
+		TestSource.append(file, "5");
+		source.waitFor(5, 5000);
+		assertEquals(Arrays.asList("1", "2", "3", "4", "5"), source.bodies());
+		waitForFiles(watchDir, 2);
+
+		Files.delete(rotated);
+		waitForFiles(watchDir, 1);
+		TestSource.append(file, "6");
+		source.waitFor(6, 5000);
+		assertEquals(Arrays.asList("1", "2", "3", "4", "5", "6"),
+				source.settle(300));
+	}
+
+	@Test
+	public void pollModeFollowsChangesWithoutWatchService() throws Exception {
+		WatchDir watchDir = start("poll", null);
+		assertEquals(Collections.singleton(dir), watchDir.getPolledDirs());
+		assertTrue(watchDir.getWatchedDirs().isEmpty());
+
+		followChanges(watchDir);
+	}
+
+	@Test
+	public void hybridModePollsListedFileSystems() throws Exception {
+		String type = Files.getFileStore(dir).type();
+		WatchDir watchDir = start("hybrid", "nfs " + type);
+		assertEquals(Collections.singleton(dir), watchDir.getPolledDirs());
+		assertTrue(watchDir.getWatchedDirs().isEmpty());
+
+		followChanges(watchDir);
+	}
+
+	@Test
+	public void hybridModeWatchesOtherFileSystems() throws Exception {
+		WatchDir watchDir = start("hybrid", "nfs cifs");
+		assertTrue(watchDir.getPolledDirs().isEmpty());
+		assertEquals(Collections.singletonList(dir),
+				new ArrayList<Path>(watchDir.getWatchedDirs()));
+
+		followChanges(watchDir);
+	}
+
+	@Test
+	public void subdirectoriesArePolled() throws Exception {
+		WatchDir watchDir = start("poll", null);
+		Thread.sleep(200);
+		Path sub = Files.createDirectory(dir.resolve("sub"));
+		// Files found when a directory is scanned are tailed from their end
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!watchDir.getPolledDirs().contains(sub)
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(50);
+		assertTrue(watchDir.getPolledDirs().contains(sub));
+		// Its files are listed once it is polled
+		Thread.sleep(200);
+
+		TestSource.append(sub.resolve("b.log"), "b1");
+		source.waitFor(1, 5000);
+		assertEquals(Collections.singletonList("b1"), source.settle(300));
+	}
+}
@@ -0,0 +1,137 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PositionStoreTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private Path dir;
+	private Path positionFile;
+	private ScheduledExecutorService scheduler;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("positions");
+		positionFile = dir.resolve("positions.txt");
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		scheduler.shutdownNow();
+		TestFiles.delete(dir);
+	}
+
+	private PositionStore start() {
+		PositionStore store = new PositionStore(positionFile, 60000L);
+		store.start(scheduler);
+		return store;
+	}
+
+	private Path write(String name, String content) throws IOException {
+		return Files.write(dir.resolve(name), content.getBytes(UTF8));
+	}
+
+	@Test
+	public void positionsAreReloaded() throws IOException {
+		Path file = write("a.log", "line 1\nline 2\n");
+		PositionStore store = start();
+		store.update("1:10", file, 7);
+		store.stop();
+
+		PositionStore reloaded = start();
+		assertEquals(Long.valueOf(7), reloaded.getPosition("1:10", file));
+		assertNull(reloaded.getPosition("1:11", file));
+	}
+
+	@Test
+	public void deletedFilesArePruned() throws IOException {
+		Path kept = write("kept.log", "kept\n");
+		Path deleted = write("deleted.log", "deleted\n");
+		PositionStore store = start();
+		store.update("1:10", kept, 5);
+		store.update("1:11", deleted, 8);
+		store.stop();
+
+		Files.delete(deleted);
+		PositionStore reloaded = start();
+		reloaded.stop();
+
+		String saved = new String(Files.readAllBytes(positionFile), UTF8);
+		assertEquals("1:10\t5\t" + kept + "\n", saved);
+		// A new file reusing the inode is not resumed at the old offset
+		Path created = write("deleted.log", "new\n");
+		assertNull(start().getPosition("1:11", created));
+	}
+
+	@Test
+	public void sameKeyWithAnotherPathIsUnknown() throws IOException {
+		Path file = write("a.log", "line\n");
+		Path other = write("b.log", "other line\n");
+		PositionStore store = start();
+		store.update("1:10", file, 5);
+
+		assertNull(store.getPosition("1:10", other));
+		assertEquals(Long.valueOf(5), store.getPosition("1:10", file));
+	}
+
+	@Test
+	public void renameSeenBySourceKeepsPosition() throws IOException {
+		Path file = write("a.log", "line\n");
+		Path rotated = dir.resolve("a.log.1");
+		PositionStore store = start();
+		store.update("1:10", file, 5);
+
+		Files.move(file, rotated);
+		store.renamed("1:10", rotated);
+		store.stop();
+
+		PositionStore reloaded = start();
+		assertEquals(Long.valueOf(5), reloaded.getPosition("1:10", rotated));
+		assertNull(reloaded.getPosition("1:10", file));
+	}
+
+	@Test
+	public void positionPastTheEndIsReadFromTheBeginning() throws IOException {
+		Path file = write("a.log", "short\n");
+		String fileKey = FileKeys.getFileKey(file);
+		PositionStore store = start();
+		store.update(fileKey, file, 1000);
+
+		FileRegistry registry = new FileRegistry(LineReader.DEFAULT_BUFFER_SIZE,
+				0, LineReader.LongLinePolicy.TRUNCATE, store);
+		FileSet fileSet = registry.addFileSet(file, "end");
+		assertEquals(0, fileSet.getSavedPosition());
+	}
+}
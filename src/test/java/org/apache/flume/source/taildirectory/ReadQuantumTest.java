@@ -0,0 +1,118 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReadQuantumTest {
+
+	private static final int BUSY_LINES = 600000;
+	private static final int QUIET_LINES = 20;
+	private static final long QUIET_INTERVAL = 100L;
+
+	private Path dir;
+	private TestSource source;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("quantum");
+		source = new TestSource("quantum-" + System.nanoTime(), 1000000);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		source.stop();
+		TestFiles.delete(dir);
+	}
+
+	private static void writeBusy(Path file) throws IOException {
+		try (OutputStream out = new BufferedOutputStream(
+				Files.newOutputStream(file), 1024 * 1024)) {
+			for (int i = 0; i < BUSY_LINES; i++)
+				out.write(("B a busy debug line with some payload " + i + "\n")
+						.getBytes(TestSource.UTF8));
+		}
+	}
+
+	/**
+	 * Lines of a quiet file are not delayed by a file sharing its reader
+	 * thread that has a large backlog
+	 */
+	@Test
+	public void quietFileIsReadWhileBusyFileIsCaughtUp() throws Exception {
+		Path quiet = dir.resolve("quiet.log");
+		TestSource.append(quiet);
+		Context context = TestSource.context(dir);
+		context.put("batchSize", "1000");
+		// Both files share the reader thread
+		context.put("readerThreads", "1");
+		source.start(context);
+		Thread.sleep(300);
+
+		writeBusy(dir.resolve("busy.log"));
+		List<Long> latencies = new ArrayList<Long>();
+		int busy = 0;
+		long nextQuiet = System.currentTimeMillis();
+		int quietWritten = 0;
+		long deadline = nextQuiet + 30000;
+
+		while ((latencies.size() < QUIET_LINES || busy < BUSY_LINES)
+				&& System.currentTimeMillis() < deadline) {
+			long now = System.currentTimeMillis();
+			if (quietWritten < QUIET_LINES && now >= nextQuiet) {
+				TestSource.append(quiet, "Q " + now);
+				quietWritten++;
+				nextQuiet += QUIET_INTERVAL;
+			}
+			for (Event event : source.drain()) {
+				String body = new String(event.getBody(), TestSource.UTF8);
+				if (body.startsWith("Q "))
+					latencies.add(System.currentTimeMillis()
+							- Long.parseLong(body.substring(2)));
+				else
+					busy++;
+			}
+			Thread.sleep(10);
+		}
+
+		assertEquals(QUIET_LINES, latencies.size());
+		assertEquals(BUSY_LINES, busy);
+		Collections.sort(latencies);
+		// Reading the busy file to its end at once takes more than a second
+		assertTrue("Quiet lines waited " + latencies,
+				latencies.get(QUIET_LINES - 1) < 750);
+		assertTrue(source.getSource().getCounter().getCounterReadYielded() > 0);
+	}
+}
@@ -0,0 +1,181 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.flume.Context;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReconfigureTest {
+
+	private static final int ROUNDS = 8;
+	private static final int LINES = 50;
+	// A reader, two scheduler threads, the watcher and the reconfiguration
+	// thread, the scheduler threads are started when they are first needed
+	private static final int MAX_THREADS = 5;
+
+	private Path dir;
+	private Path a;
+	private Path b;
+	private String name;
+	private TestSource source;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("reconfigure");
+		a = Files.createDirectory(dir.resolve("a"));
+		b = Files.createDirectory(dir.resolve("b"));
+		name = "reconfigure-" + System.nanoTime();
+		source = new TestSource(name);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		source.stop();
+		TestFiles.delete(dir);
+	}
+
+	private Context context(Path... dirs) {
+		Context context = TestSource.context(dirs);
+		context.put("positionFile", dir.resolve("positions.txt").toString());
+		return context;
+	}
+
+	/**
+	 * Threads of the source, the scan threads come and go with the scans
+	 */
+	private int threads() {
+		int threads = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.isAlive() && thread.getName().startsWith(name + "-")
+					&& !thread.getName().startsWith(name + "-scanner-"))
+				threads++;
+		}
+		return threads;
+	}
+
+	private int waitForThreads() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		int threads = threads();
+		while (threads > MAX_THREADS && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+			threads = threads();
+		}
+		return threads;
+	}
+
+	private static List<String> lines(String prefix, int count) {
+		List<String> lines = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++)
+			lines.add(prefix + i);
+		return lines;
+	}
+
+	private static void append(Path file, List<String> lines)
+			throws IOException {
+		TestSource.append(file, lines.toArray(new String[lines.size()]));
+	}
+
+	@Test
+	public void directoriesAreAddedAndRemoved() throws Exception {
+		source.start(context(a));
+		Thread.sleep(200);
+		TestSource.append(a.resolve("1.log"), "a1");
+		source.waitFor(1, 5000);
+
+		source.getSource().configure(context(a, b));
+		Thread.sleep(300);
+		TestSource.append(a.resolve("1.log"), "a2");
+		TestSource.append(b.resolve("1.log"), "b1");
+		source.waitFor(3, 5000);
+
+		// The kept directory moves from d1 to d2, it has the same settings
+		source.getSource().configure(context(b));
+		Thread.sleep(300);
+		TestSource.append(a.resolve("1.log"), "a3");
+		TestSource.append(b.resolve("1.log"), "b2");
+		source.waitFor(4, 5000);
+
+		List<String> bodies = source.settle(300);
+		Collections.sort(bodies);
+		assertEquals(Arrays.asList("a1", "a2", "b1", "b2"), bodies);
+	}
+
+	@Test
+	public void reconfiguringKeepsThreadsAndDeliversLinesOnce()
+			throws Exception {
+		Path file = a.resolve("1.log");
+		List<String> expected = new ArrayList<String>();
+
+		source.start(context(a));
+		Thread.sleep(200);
+
+		for (int round = 0; round < ROUNDS; round++) {
+			List<String> lines = lines("r" + round + "-", LINES);
+			append(file, lines);
+			expected.addAll(lines);
+			source.getSource().configure(
+					round % 2 == 0 ? context(a) : context(a, b));
+		}
+		source.waitFor(expected.size(), 10000);
+
+		assertEquals(expected, source.settle(300));
+		assertTrue(waitForThreads() <= MAX_THREADS);
+	}
+
+	@Test
+	public void restartKeepsCountersAndDeliversLinesOnce() throws Exception {
+		Path file = a.resolve("1.log");
+		source.start(context(a));
+		Thread.sleep(200);
+		List<String> before = lines("before-", LINES);
+		append(file, before);
+		source.waitFor(LINES, 5000);
+		source.settle(300);
+		long sent = source.getSource().getCounter().getCounterMessageSent();
+		assertEquals(LINES, sent);
+
+		// Another batch size restarts the source
+		Context restarted = context(a);
+		restarted.put("batchSize", "10");
+		source.getSource().configure(restarted);
+		List<String> after = lines("after-", LINES);
+		append(file, after);
+		source.waitFor(2 * LINES, 5000);
+
+		List<String> expected = new ArrayList<String>(before);
+		expected.addAll(after);
+		assertEquals(expected, source.settle(300));
+		assertEquals(2 * LINES, source.getSource().getCounter()
+				.getCounterMessageSent());
+		assertTrue(waitForThreads() <= MAX_THREADS);
+	}
+}
@@ -0,0 +1,202 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RotationTest {
+
+	private Path dir;
+	private Path file;
+	private TestSource source;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("rotation");
+		file = dir.resolve("app.log");
+		source = new TestSource("rotation-" + System.nanoTime());
+		source.start(TestSource.context(dir));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		source.stop();
+		TestFiles.delete(dir);
+	}
+
+	@Test
+	public void renamedFileIsReadToItsEndBeforeItsSuccessor()
+			throws Exception {
+		Thread.sleep(200);
+		TestSource.append(file, "1", "2");
+		source.waitFor(2, 5000);
+
+		Path rotated = dir.resolve("app.log.1");
+		Files.move(file, rotated);
+		// The writer appends to the file it has open until it moves to the
+		// new one
+		TestSource.append(rotated, "3", "4");
+		TestSource.append(file, "5", "6");
+
+		source.waitFor(6, 5000);
+		assertEquals(Arrays.asList("1", "2", "3", "4", "5", "6"),
+				source.settle(300));
+	}
+
+	/**
+	 * Each generation is read before the file is rotated, its events are
+	 * handled as they arrive
+	 */
+	@Test
+	public void renameFollowedByRecreateKeepsEveryLine() throws Exception {
+		Thread.sleep(200);
+		for (int i = 0; i < 5; i++) {
+			TestSource.append(file, "r" + i + "-1", "r" + i + "-2");
+			source.waitFor(2 * i + 2, 5000);
+			Files.move(file, dir.resolve("app.log." + i));
+			TestSource.append(file);
+		}
+		TestSource.append(file, "last");
+
+		source.waitFor(11, 5000);
+		assertEquals(Arrays.asList("r0-1", "r0-2", "r1-1", "r1-2", "r2-1",
+				"r2-2", "r3-1", "r3-2", "r4-1", "r4-2", "last"),
+				source.settle(300));
+	}
+
+	/**
+	 * The files are rotated while the events of the directory wait, as on a
+	 * busy host, they are handled once the files are at their final paths.
+	 * The generations never seen under the name of the file are found under
+	 * their rotated names, their order relative to the last one is unknown.
+	 */
+	@Test
+	public void rotationsHandledLateKeepEveryLine() throws Exception {
+		Thread.sleep(200);
+		TestSource.append(file, "r0-1");
+		source.waitFor(1, 5000);
+
+		synchronized (registry()) {
+			TestSource.append(file, "r0-2");
+			for (int i = 0; i < 5; i++) {
+				if (i > 0)
+					TestSource.append(file, "r" + i + "-1", "r" + i + "-2");
+				Files.move(file, dir.resolve("app.log." + i));
+				TestSource.append(file);
+			}
+			TestSource.append(file, "last");
+			// The watcher takes the first events and waits for the registry
+			Thread.sleep(200);
+		}
+
+		source.waitFor(11, 5000);
+		List<String> bodies = source.settle(300);
+		// The file known under the name is read to its end first
+		assertEquals(Arrays.asList("r0-1", "r0-2"), bodies.subList(0, 2));
+		assertSameLines(Arrays.asList("r0-1", "r0-2", "r1-1", "r1-2", "r2-1",
+				"r2-2", "r3-1", "r3-2", "r4-1", "r4-2", "last"), bodies);
+	}
+
+	/**
+	 * Rotated files are renamed again by every rotation, as logrotate does,
+	 * before any of their events is handled
+	 */
+	@Test
+	public void shiftedRotationsHandledLateKeepEveryLine() throws Exception {
+		Thread.sleep(200);
+		TestSource.append(file, "r0-1");
+		source.waitFor(1, 5000);
+
+		List<String> expected = new ArrayList<String>();
+		expected.add("r0-1");
+		synchronized (registry()) {
+			for (int i = 0; i < 4; i++) {
+				TestSource.append(file, "r" + i + "-2");
+				expected.add("r" + i + "-2");
+				for (int j = i; j >= 1; j--)
+					Files.move(dir.resolve("app.log." + j),
+							dir.resolve("app.log." + (j + 1)));
+				Files.move(file, dir.resolve("app.log.1"));
+				TestSource.append(file, "r" + (i + 1) + "-1");
+				expected.add("r" + (i + 1) + "-1");
+			}
+			Thread.sleep(200);
+		}
+
+		source.waitFor(expected.size(), 5000);
+		assertSameLines(expected, source.settle(300));
+	}
+
+	/**
+	 * Events are handled holding the lock of the registry of the directory
+	 */
+	private FileRegistry registry() {
+		return source.getSource().getWatchDirs().iterator().next().getRegistry();
+	}
+
+	/**
+	 * Every line once, the lines of each file in order
+	 */
+	private static void assertSameLines(List<String> expected,
+			List<String> bodies) {
+		List<String> sorted = new ArrayList<String>(bodies);
+		Collections.sort(sorted);
+		List<String> expectedSorted = new ArrayList<String>(expected);
+		Collections.sort(expectedSorted);
+		assertEquals(expectedSorted, sorted);
+		for (String line : bodies) {
+			if (line.endsWith("-2"))
+				assertTrue(bodies.indexOf(line.replace("-2", "-1")) < bodies
+						.indexOf(line));
+		}
+	}
+
+	@Test
+	public void truncatedFileIsReadFromTheBeginning() throws Exception {
+		Thread.sleep(200);
+		TestSource.append(file, "a long first line", "a long second line");
+		source.waitFor(2, 5000);
+
+		// copytruncate: the file is emptied and written again
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.WRITE)) {
+			channel.truncate(0);
+		}
+		TestSource.append(file, "new");
+		source.waitFor(3, 5000);
+
+		assertEquals(Arrays.asList("a long first line", "a long second line",
+				"new"), source.settle(300));
+	}
+}
@@ -0,0 +1,183 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.flume.Channel;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.channel.MemoryChannel;
+import org.apache.flume.channel.ReplicatingChannelSelector;
+import org.apache.flume.conf.Configurables;
+
+/**
+ * A DirectoryTailSource writing to a memory channel, with helpers to append
+ * lines to files and to wait for the events they become
+ */
+class TestSource {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long POLL_INTERVAL = 50L;
+
+	private final MemoryChannel channel;
+	private final int transactionCapacity;
+	private final DirectoryTailSource source;
+	private final List<Event> events = new ArrayList<Event>();
+
+	TestSource(String name, int channelCapacity, int transactionCapacity) {
+		channel = new MemoryChannel();
+		channel.setName(name + "-channel");
+		Context channelContext = new Context();
+		channelContext.put("capacity", String.valueOf(channelCapacity));
+		// take() returns at once on an empty channel
+		channelContext.put("keep-alive", "0");
+		this.transactionCapacity = transactionCapacity;
+		channelContext.put("transactionCapacity",
+				String.valueOf(transactionCapacity));
+		Configurables.configure(channel, channelContext);
+		channel.start();
+
+		ReplicatingChannelSelector selector = new ReplicatingChannelSelector();
+		selector.setChannels(Collections.<Channel> singletonList(channel));
+		source = new DirectoryTailSource();
+		source.setName(name);
+		source.setChannelProcessor(new ChannelProcessor(selector));
+	}
+
+	TestSource(String name, int channelCapacity) {
+		this(name, channelCapacity, Math.min(channelCapacity, 10000));
+	}
+
+	TestSource(String name) {
+		this(name, 100000);
+	}
+
+	DirectoryTailSource getSource() {
+		return source;
+	}
+
+	/**
+	 * A configuration tailing the given directories, named d1, d2...
+	 */
+	static Context context(Path... dirs) {
+		Context context = new Context();
+		StringBuilder names = new StringBuilder();
+		for (int i = 0; i < dirs.length; i++) {
+			String name = "d" + (i + 1);
+			names.append(i == 0 ? "" : " ").append(name);
+			context.put("dirs." + name + ".path", dirs[i].toString());
+		}
+		context.put("dirs", names.toString());
+		context.put("batchSize", "100");
+		context.put("batchTimeout", "100");
+		return context;
+	}
+
+	void start(Context context) {
+		source.configure(context);
+		source.start();
+	}
+
+	void stop() {
+		source.stop();
+		channel.stop();
+	}
+
+	static void append(Path file, String... lines) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (String line : lines)
+			sb.append(line).append('\n');
+		Files.write(file, sb.toString().getBytes(UTF8),
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Moves the events committed to the channel to the received ones, returns
+	 * the events moved
+	 */
+	synchronized List<Event> drain() {
+		int received = events.size();
+		int taken;
+		do {
+			taken = 0;
+			Transaction transaction = channel.getTransaction();
+			transaction.begin();
+			try {
+				Event event;
+				while (taken < transactionCapacity
+						&& (event = channel.take()) != null) {
+					events.add(event);
+					taken++;
+				}
+				transaction.commit();
+			} finally {
+				transaction.close();
+			}
+		} while (taken == transactionCapacity);
+		return new ArrayList<Event>(events.subList(received, events.size()));
+	}
+
+	/**
+	 * Waits until the given number of events has been received or the timeout
+	 * expires, returns the bodies of all the events received
+	 */
+	List<String> waitFor(int count, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		for (;;) {
+			drain();
+			if (events.size() >= count || System.currentTimeMillis() > deadline)
+				return bodies();
+			Thread.sleep(POLL_INTERVAL);
+		}
+	}
+
+	/**
+	 * Waits for the source to go quiet and returns the bodies received
+	 */
+	List<String> settle(long quiet) throws InterruptedException {
+		int received;
+		do {
+			received = events.size();
+			Thread.sleep(quiet);
+			drain();
+		} while (events.size() != received);
+		return bodies();
+	}
+
+	synchronized List<Event> getEvents() {
+		return new ArrayList<Event>(events);
+	}
+
+	synchronized List<String> bodies() {
+		List<String> bodies = new ArrayList<String>(events.size());
+		for (Event event : events)
+			bodies.add(new String(event.getBody(), UTF8));
+		return bodies;
+	}
+}
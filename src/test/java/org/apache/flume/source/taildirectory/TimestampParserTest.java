@@ -0,0 +1,123 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.flume.Context;
+import org.junit.Test;
+
+public class TimestampParserTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static TimestampParser parser(String format, String timezone) {
+		Context context = new Context();
+		if (format != null)
+			context.put("format", format);
+		context.put("timezone", timezone);
+		TimestampParser parser = new TimestampParser();
+		parser.configure(context);
+		return parser;
+	}
+
+	private static String parse(TimestampParser parser, String line) {
+		// The line is in the middle of a larger buffer
+		byte[] bytes = ("ignored\n" + line + "\nignored").getBytes(UTF8);
+		Map<String, String> headers = new HashMap<String, String>();
+		parser.parse(bytes, 8, line.getBytes(UTF8).length, UTF8, headers);
+		assertEquals(headers.isEmpty() ? 0 : 1, headers.size());
+		return headers.isEmpty() ? null : headers.values().iterator().next();
+	}
+
+	private static String millis(String format, String timezone, String date)
+			throws ParseException {
+		SimpleDateFormat dateFormat = new SimpleDateFormat(format, Locale.ROOT);
+		dateFormat.setTimeZone(TimeZone.getTimeZone(timezone));
+		return String.valueOf(dateFormat.parse(date).getTime());
+	}
+
+	@Test
+	public void defaultFormatIsParsed() {
+		TimestampParser parser = parser(null, "UTC");
+		assertEquals("1704164645123",
+				parse(parser, "2024-01-02 03:04:05,123 INFO started"));
+	}
+
+	@Test
+	public void numericFormatMatchesSimpleDateFormat() throws ParseException {
+		String format = "yyyy-MM-dd'T'HH:mm:ss.SSS";
+		for (String zone : new String[] { "UTC", "Europe/Paris",
+				"America/New_York", "Asia/Kolkata" }) {
+			TimestampParser parser = parser(format, zone);
+			for (String date : new String[] { "2024-02-29T23:59:59.999",
+					"2024-03-31T02:30:00.000", "2024-03-10T02:30:00.000",
+					"2024-10-27T02:30:00.000", "2024-11-03T01:30:00.000",
+					"1969-12-31T23:59:59.000", "2000-01-01T00:00:00.000" }) {
+				assertEquals(zone + " " + date, millis(format, zone, date),
+						parse(parser, date + " message"));
+			}
+		}
+	}
+
+	@Test
+	public void invalidDatesAddNoHeader() {
+		TimestampParser parser = parser(null, "UTC");
+		assertNull(parse(parser, "2023-02-29 00:00:00,000 not a leap year"));
+		assertNull(parse(parser, "2024-13-01 00:00:00,000 no such month"));
+		assertNull(parse(parser, "2024-01-01 24:00:00,000 no such hour"));
+		assertNull(parse(parser, "2024-01-01 00:00"));
+		assertNull(parse(parser, "\tat Foo.bar()"));
+		assertNull(parse(parser, ""));
+	}
+
+	@Test
+	public void textualFormatIsParsedWithSimpleDateFormat()
+			throws ParseException {
+		String format = "dd/MMM/yyyy:HH:mm:ss Z";
+		TimestampParser parser = parser(format, "UTC");
+		String date = "10/Oct/2023:13:55:36 -0700";
+		assertEquals(millis(format, "UTC", date),
+				parse(parser, date + " \"GET / HTTP/1.1\" 200"));
+		assertNull(parse(parser, "10/Foo/2023:13:55:36 -0700"));
+	}
+
+	@Test
+	public void headerNameIsConfigurable() {
+		Context context = new Context();
+		context.put("timezone", "UTC");
+		context.put("header", "eventTime");
+		TimestampParser parser = new TimestampParser();
+		parser.configure(context);
+
+		byte[] line = "1970-01-01 00:00:01,000 x".getBytes(UTF8);
+		Map<String, String> headers = new HashMap<String, String>();
+		parser.parse(line, 0, line.length, UTF8, headers);
+		assertEquals("1000", headers.get("eventTime"));
+	}
+}
@@ -0,0 +1,61 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+	@Test
+	public void fullBucketCanBeUsedAtOnce() {
+		TokenBucket bucket = new TokenBucket(1000);
+		assertEquals(0, bucket.delay());
+		bucket.consume(999);
+		assertEquals(0, bucket.delay());
+	}
+
+	@Test
+	public void debtIsPaidAtTheRate() {
+		TokenBucket bucket = new TokenBucket(1000);
+		// A quantum larger than the bucket puts it into debt
+		bucket.consume(1500);
+		long delay = bucket.delay();
+		assertTrue("delay " + delay, delay > 450 && delay <= 501);
+	}
+
+	@Test
+	public void bucketRefillsOverTime() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(100);
+		bucket.consume(101);
+		assertTrue(bucket.delay() > 0);
+		Thread.sleep(50);
+		assertEquals(0, bucket.delay());
+	}
+
+	@Test
+	public void bucketHoldsAtMostOneSecond() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(100);
+		Thread.sleep(200);
+		bucket.consume(101);
+		assertTrue(bucket.delay() > 0);
+	}
+}
@@ -0,0 +1,93 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.flume.Context;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WatchDispatcherTest {
+
+	private Path dir;
+	private TestSource source;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("dispatcher");
+		source = new TestSource("dispatcher-" + System.nanoTime());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		source.stop();
+		TestFiles.delete(dir);
+	}
+
+	/**
+	 * Two directories with the same path share the key of the watch service
+	 */
+	private Context sharedDirectory() {
+		Context context = TestSource.context(dir, dir);
+		context.put("dirs.d1.includePatterns", "a*.log");
+		context.put("dirs.d2.includePatterns", "b*.log");
+		return context;
+	}
+
+	@Test
+	public void eventsReachEveryDirectoryWatchingThePath() throws Exception {
+		source.start(sharedDirectory());
+		Thread.sleep(200);
+
+		TestSource.append(dir.resolve("a1.log"), "a1");
+		TestSource.append(dir.resolve("b1.log"), "b1");
+		TestSource.append(dir.resolve("c1.log"), "c1");
+
+		source.waitFor(2, 5000);
+		List<String> bodies = source.settle(300);
+		Collections.sort(bodies);
+		assertEquals(Arrays.asList("a1", "b1"), bodies);
+	}
+
+	@Test
+	public void removingOneDirectoryKeepsTheOtherWatched() throws Exception {
+		Context context = sharedDirectory();
+		source.start(context);
+		Thread.sleep(200);
+
+		Context remaining = new Context(context.getParameters());
+		remaining.put("dirs", "d2");
+		source.getSource().configure(remaining);
+		Thread.sleep(500);
+
+		TestSource.append(dir.resolve("a2.log"), "a2");
+		TestSource.append(dir.resolve("b2.log"), "b2");
+		source.waitFor(1, 5000);
+		assertEquals(Arrays.asList("b2"), source.settle(300));
+	}
+}
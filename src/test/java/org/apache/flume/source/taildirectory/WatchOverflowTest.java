@@ -0,0 +1,79 @@
+/***************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ ****************************************************************/
+package org.apache.flume.source.taildirectory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.flume.Context;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WatchOverflowTest {
+
+	// Far more than the events a watch key keeps before it overflows
+	private static final int FILES = 20000;
+
+	private Path dir;
+	private TestSource source;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("overflow");
+		source = new TestSource("overflow-" + System.nanoTime());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		source.stop();
+		TestFiles.delete(dir);
+	}
+
+	@Test
+	public void burstOfFilesIsDeliveredAfterOverflow() throws Exception {
+		Path known = dir.resolve("known.log");
+		TestSource.append(known, "k0");
+		Context context = TestSource.context(dir);
+		context.put("batchSize", "1000");
+		source.start(context);
+		Thread.sleep(300);
+
+		for (int i = 0; i < FILES; i++)
+			TestSource.append(dir.resolve("f" + i + ".log"), "f" + i);
+		TestSource.append(known, "k1");
+
+		source.waitFor(FILES + 1, 60000);
+		Set<String> bodies = new HashSet<String>(source.settle(500));
+
+		Set<String> expected = new HashSet<String>();
+		for (int i = 0; i < FILES; i++)
+			expected.add("f" + i);
+		expected.add("k1");
+		assertEquals(expected, bodies);
+		assertEquals(FILES + 1, source.bodies().size());
+		assertTrue(source.getSource().getCounter().getCounterWatchOverflow() > 0);
+	}
+}